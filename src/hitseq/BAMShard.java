@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import java.util.ArrayList;
+
+/**
+ * A genomic range of an indexed, coordinate-sorted BAM file. Records belong
+ * to the shard where their alignment start is located, so that every record is
+ * assigned to exactly one shard.
+ */
+public class BAMShard implements Comparable<BAMShard> {
+    private final String chrom;
+    private final int chromIndex;
+    private final int start;
+    private final int end;
+    private final long weight;
+
+    BAMShard(String chrom, int chromIndex, int start, int end, long weight){
+        this.chrom = chrom;
+        this.chromIndex = chromIndex;
+        this.start = start;
+        this.end = end;
+        this.weight = weight;
+    }
+
+    public String getChrom(){
+        return chrom;
+    }
+
+    public int getChromIndex(){
+        return chromIndex;
+    }
+
+    public int getStart(){
+        return start;
+    }
+
+    public int getEnd(){
+        return end;
+    }
+
+    /**
+     * @return The estimated amount of data in the shard, used to balance the shards between workers.
+     */
+    public long getWeight(){
+        return weight;
+    }
+
+    /**
+     * FunName: contains.
+     * Description: Check whether a record starting at the given position belongs to this shard.
+     * @param refIndex The reference index of the record.
+     * @param alignmentStart The alignment start of the record.
+     * @return true if the record belongs to this shard.
+     */
+    public boolean contains(int refIndex, int alignmentStart){
+        return refIndex == chromIndex && alignmentStart >= start && alignmentStart <= end;
+    }
+
+    /**
+     * FunName: isBefore.
+     * Description: Check whether the given position is located in front of this shard.
+     * @param refIndex The reference index of the position.
+     * @param position The coordinate of the position.
+     * @return true if the position is in front of the start of the shard.
+     */
+    public boolean isBefore(int refIndex, int position){
+        return refIndex < chromIndex || (refIndex == chromIndex && position < start);
+    }
+
+    @Override
+    public int compareTo(BAMShard that){
+        if(this.chromIndex != that.chromIndex)
+            return this.chromIndex < that.chromIndex ? -1 : 1;
+        if(this.start != that.start)
+            return this.start < that.start ? -1 : 1;
+        return 0;
+    }
+
+    @Override
+    public String toString(){
+        return chrom + ":" + start + "-" + end;
+    }
+
+    /**
+     * FunName: split.
+     * Description: Use the BAM index to split the input into shards with balanced amount of data.
+     * Chromosomes are used as the shards first, and large chromosomes are further split into several
+     * ranges according to the size of the indexed data in each range.
+     * @param reader The SamReader of an indexed BAM file.
+     * @param numShards The expected number of shards.
+     * @return The shards in genomic order.
+     */
+    public static ArrayList<BAMShard> split(SamReader reader, int numShards){
+        SAMFileHeader header = reader.getFileHeader();
+        BAMIndex index = reader.indexing().getIndex();
+        int numChroms = header.getSequenceDictionary().size();
+
+        long[] numRecords = new long[numChroms];
+        long totalRecords = 0;
+        for(int i = 0; i < numChroms; i++){
+            BAMIndexMetaData metaData = index.getMetaData(i);
+            numRecords[i] = metaData == null ? 0 : metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+            totalRecords += numRecords[i];
+        }
+        long recordsPerShard = Math.max(1, totalRecords / Math.max(1, numShards));
+
+        ArrayList<BAMShard> shards = new ArrayList<>();
+        for(int i = 0; i < numChroms; i++){
+            if(numRecords[i] == 0)
+                continue;
+            SAMSequenceRecord chrom = header.getSequence(i);
+            int numPieces = (int) Math.min(Math.max(1, (numRecords[i] + recordsPerShard - 1) / recordsPerShard), chrom.getSequenceLength());
+            if(numPieces == 1){
+                shards.add(new BAMShard(chrom.getSequenceName(), i, 1, chrom.getSequenceLength(), numRecords[i]));
+                continue;
+            }
+
+            // estimate the data size along the chromosome with the chunks in the index, and cut it at the quantiles
+            int numWindows = Math.min(numPieces * 8, chrom.getSequenceLength());
+            int windowLength = (chrom.getSequenceLength() + numWindows - 1) / numWindows;
+            long[] windowSize = new long[numWindows];
+            long chromSize = 0;
+            for(int w = 0; w < numWindows; w++){
+                int windowStart = w * windowLength + 1;
+                int windowEnd = Math.min(chrom.getSequenceLength(), (w + 1) * windowLength);
+                if(windowStart > windowEnd)
+                    continue;
+                BAMFileSpan span = index.getSpanOverlapping(i, windowStart, windowEnd);
+                if(span != null)
+                    for(Chunk chunk : span.getChunks())
+                        windowSize[w] += Math.max(1, (chunk.getChunkEnd() >>> 16) - (chunk.getChunkStart() >>> 16));
+                chromSize += windowSize[w];
+            }
+
+            long sizePerPiece = Math.max(1, chromSize / numPieces);
+            int pieceStart = 1;
+            long pieceSize = 0;
+            for(int w = 0; w < numWindows; w++){
+                pieceSize += windowSize[w];
+                int windowEnd = Math.min(chrom.getSequenceLength(), (w + 1) * windowLength);
+                if((pieceSize >= sizePerPiece || w == numWindows - 1) && windowEnd >= pieceStart){
+                    int pieceEnd = w == numWindows - 1 ? chrom.getSequenceLength() : windowEnd;
+                    shards.add(new BAMShard(chrom.getSequenceName(), i, pieceStart, pieceEnd, chromSize == 0 ? numRecords[i] / numPieces : numRecords[i] * pieceSize / chromSize));
+                    pieceStart = pieceEnd + 1;
+                    pieceSize = 0;
+                }
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * FunName: select.
+     * Description: Get the ranges of one of the given number of shards, e.g. to count one sample on several machines.
+     * The input is split into ranges as by split, which only depends on the BAM index, and the consecutive ranges
+     * are grouped into the shards with balanced amount of data, so that every machine gets the same split.
+     * @param reader The SamReader of an indexed BAM file.
+     * @param shardIndex The index of the shard, from 0 to numShards-1.
+     * @param numShards The number of shards.
+     * @return The ranges of the shard in genomic order, which may be empty if the input is small.
+     */
+    public static ArrayList<BAMShard> select(SamReader reader, int shardIndex, int numShards){
+        ArrayList<BAMShard> ranges = split(reader, numShards * 4);
+        long totalWeight = 0;
+        for(BAMShard range : ranges)
+            totalWeight += range.getWeight();
+
+        ArrayList<BAMShard> selected = new ArrayList<>();
+        long weightBefore = 0;
+        for(BAMShard range : ranges){
+            // the shard of a range is the one where its middle is located
+            long middle = weightBefore + range.getWeight() / 2;
+            int shard = totalWeight == 0 ? 0 : (int) Math.min(numShards - 1, middle * numShards / totalWeight);
+            if(shard == shardIndex)
+                selected.add(range);
+            weightBefore += range.getWeight();
+        }
+        return selected;
+    }
+}
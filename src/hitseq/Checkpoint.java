@@ -0,0 +1,118 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The checkpoint directory of a long counting run, so that a run which is
+ * killed, e.g. on pre-emptible machines, can be restarted with the same
+ * command line without counting the finished work again. The results of each
+ * input file are saved once it is counted, and the ranges of an indexed BAM
+ * file, i.e. its chromosomes and the pieces of the large ones, are saved once
+ * they are counted, in the format of the partial results of the shards. The
+ * files are written to a temporary file and renamed, so that a file in the
+ * directory is always complete.
+ */
+public class Checkpoint {
+    private static final String RUN_FILE = "RUN";
+    private final File directory;
+
+    /**
+     * Open the checkpoint directory, or create it for a new run.
+     * @param directory The directory.
+     * @param run The command line arguments of the run which affect the results, e.g. the command, the options and the annotation.
+     * A directory of a different run cannot be used.
+     * @throws IOException If the directory cannot be created, or it belongs to another run.
+     */
+    public Checkpoint(File directory, List<String> run) throws IOException{
+        this.directory = directory;
+        if(! directory.isDirectory() && ! directory.mkdirs())
+            throw new IOException("cannot create the checkpoint directory " + directory);
+        StringBuilder runLine = new StringBuilder();
+        for(String arg : run)
+            runLine.append(runLine.length() > 0 ? "\t" : "").append(arg);
+        File runFile = new File(directory, RUN_FILE);
+        if(runFile.exists()){
+            String savedLine;
+            try(BufferedReader reader = new BufferedReader(new FileReader(runFile))){
+                savedLine = reader.readLine();
+            }
+            if(! runLine.toString().equals(savedLine))
+                throw new IOException("the checkpoint directory " + directory + " is of another run: " + (savedLine == null ? "" : savedLine.replace('\t', ' ')));
+            System.err.println("resume the run from the checkpoint directory " + directory);
+        } else
+            write(runFile, runLine.toString() + "\n");
+    }
+
+    private static String toFileName(String name){
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * @return The file of the results of the given input file.
+     */
+    public File getSampleFile(String sample){
+        return new File(directory, toFileName(new File(sample).getAbsolutePath()) + ".done");
+    }
+
+    /**
+     * @return The file of the results of one range of the given input file.
+     */
+    public File getRangeFile(String sample, BAMShard range){
+        return new File(directory, toFileName(new File(sample).getAbsolutePath()) + "." + toFileName(range.getChrom()) + "_" + range.getStart() + "_" + range.getEnd() + ".part");
+    }
+
+    /**
+     * FunName: clearRanges.
+     * Description: Remove the files of the ranges of the given input file, once the results of the whole file are saved.
+     */
+    public void clearRanges(String sample){
+        String prefix = toFileName(new File(sample).getAbsolutePath()) + ".";
+        File[] files = directory.listFiles();
+        if(files == null)
+            return;
+        for(File file : files)
+            if(file.getName().startsWith(prefix) && file.getName().endsWith(".part"))
+                file.delete();
+    }
+
+    /**
+     * FunName: read.
+     * Description: Read the lines of a checkpoint file.
+     * @return The lines, split into fields.
+     */
+    public static List<String[]> read(File file) throws IOException{
+        ArrayList<String[]> lines = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+            String line;
+            while((line = reader.readLine()) != null)
+                lines.add(line.split("\t", -1));
+        }
+        return lines;
+    }
+
+    /**
+     * FunName: write.
+     * Description: Write a checkpoint file through a temporary file, so that the file exists only when it is complete.
+     */
+    public static void write(File file, String content) throws IOException{
+        File temp = new File(file.getPath() + ".tmp");
+        try(PrintStream out = new PrintStream(temp)){
+            out.print(content);
+            if(out.checkError())
+                throw new IOException("cannot write " + temp);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -12,6 +12,8 @@ import java.util.ArrayList;
 import htsjdk.samtools.*;
 import hitseq.annotation.DivergentSiteSet;
 import hitseq.annotation.DivergentSite;
+import hitseq.bam.BAMRecordView;
+import hitseq.bam.RecordViewReader;
 
 /**
  *
@@ -23,6 +25,7 @@ public class Demultiplexor {
     final private HashSet<String> barcodes;
     final boolean onlyUnique;
     final boolean filter;
+    private int inflateThreads = 1;
     
     public Demultiplexor(File file, DivergentSiteSet divergentSites, HashSet<String> barcodes, boolean onlyUnique, boolean filter){
         this.samFile = file;
@@ -44,20 +47,32 @@ public class Demultiplexor {
         this(file, divergentSites, null);
     }
     
+    /**
+     * FunName: setInflateThreads.
+     * Description: Set the number of threads to inflate the input BAM file.
+     * @param numThreads The number of threads, 0 to inflate the file in the reading thread.
+     */
+    public void setInflateThreads(int numThreads){
+        this.inflateThreads = numThreads;
+    }
+    
     public HashMap<String, double[]> demultiplex(boolean onlyUniqueSites){
         HashMap<String, double[]> results = new HashMap<>(); // KEY: CB; VALUE: array of total match scores
-        try(SamReader inputSam = SamReaderFactory.makeDefault().open(samFile)) {
-            if(! inputSam.getFileHeader().getSortOrder().equals(SAMFileHeader.SortOrder.coordinate))
+        try(RecordViewReader reader = RecordViewReader.open(samFile, inflateThreads)) {
+            if(! reader.getFileHeader().getSortOrder().equals(SAMFileHeader.SortOrder.coordinate))
                 throw new IllegalArgumentException("Critical error: the given SAM/BAM file is not sorted by coordinate");
             
-            ArrayList<SAMRecord> candidates = new ArrayList<>();
+            ArrayList<BAMRecordView> candidates = new ArrayList<>();
             DivergentSite currentSite = null;
-            for (SAMRecord record : inputSam) {
-                if(record.getStringAttribute("CB") == null) // cellular barcode is a must
+            BAMRecordView record = new BAMRecordView();
+            while (reader.next(record)) {
+                String recordCB = record.getStringAttribute("CB");
+                if(recordCB == null) // cellular barcode is a must
                     continue;
-                if(barcodes != null && ! barcodes.contains(record.getStringAttribute("CB"))) // if provided, only consider CBs which are unlikely to be background
+                if(barcodes != null && ! barcodes.contains(recordCB)) // if provided, only consider CBs which are unlikely to be background
                     continue;
-                if(onlyUnique && record.getIntegerAttribute("NH") != null && ! record.getIntegerAttribute("NH").equals(1)) // when requiring uniquely mapped reads, filter based on the NH tag
+                Integer nh = record.getIntegerAttribute("NH");
+                if(onlyUnique && nh != null && ! nh.equals(1)) // when requiring uniquely mapped reads, filter based on the NH tag
                     continue;
                 if(filter && (record.getReadUnmappedFlag() || record.getNotPrimaryAlignmentFlag()|| record.getDuplicateReadFlag() || record.getReadFailsVendorQualityCheckFlag()))
                     continue;
@@ -72,7 +87,7 @@ public class Demultiplexor {
                 while(! candidates.isEmpty() && (chromChanged || currentSite.getCoordinate() < record.getAlignmentStart())){
                     // scan all the potential records, get the ones covering the current site, and calculate the matching scores
                     HashMap<String, HashMap<String, double[]>> transcriptScores = new HashMap<>();
-                    for(SAMRecord candidate : candidates){
+                    for(BAMRecordView candidate : candidates){
                         int readOffset = candidate.getReadPositionAtReferencePosition(currentSite.getCoordinate());
                         if(readOffset != 0){ // this read covers the divergent site
                             String id = candidate.getStringAttribute("UB") == null ? candidate.getReadName() : candidate.getReadString() + "-" + candidate.getStringAttribute("UB");
@@ -81,7 +96,7 @@ public class Demultiplexor {
                                 transcriptScores.put(cb, new HashMap<String, double[]>());
                             
                             if(! transcriptScores.get(cb).containsKey(id)){
-                                String base = (new String(new byte[]{candidate.getReadBases()[readOffset - 1]})).toUpperCase();
+                                String base = String.valueOf(candidate.getReadBase(readOffset - 1));
                                 double[] scores = currentSite.matchScore(base, onlyUniqueSites);
                                 transcriptScores.get(cb).put(id, scores);
                                 //System.out.println(candidate.getReadName() + "\t" + currentSite.getCoordinate() + "\t" + readOffset);
@@ -108,7 +123,7 @@ public class Demultiplexor {
                         //System.out.println("Clear");
                     } else
                         while(candidates.size() > 0){
-                            SAMRecord candidate = candidates.get(0);
+                            BAMRecordView candidate = candidates.get(0);
                             if(currentSite.getCoordinate() > candidate.getAlignmentEnd()){
                                 //System.out.println("remove (" + candidates.size() + "): " + candidate.getReadName() + "\t<-\t" + currentSite.getCoordinate() + "\t" + candidate.getAlignmentStart() + "\t" + candidate.getCigarString());
                                 candidates.remove(0);
@@ -127,7 +142,7 @@ public class Demultiplexor {
                     currentSite = divergentSites.next(chrom);
                 }
                 if(currentSite != null){
-                    candidates.add(record);
+                    candidates.add(record.copy()); // the view is reused for the next record
                     //System.out.println("adding (" + candidates.size() + "): " + record.getReadName() + "\t->\t" + currentSite.getCoordinate() + "\t" + record.getAlignmentStart() + "\t" + record.getCigarString());
                 }
             }
@@ -136,7 +151,7 @@ public class Demultiplexor {
             while (currentSite != null && candidates.size() > 0) {
                 // scan all the potential records, get the ones covering the current site, and calculate the matching scores
                 HashMap<String, HashMap<String, double[]>> transcriptScores = new HashMap<>();
-                for (SAMRecord candidate : candidates) {
+                for (BAMRecordView candidate : candidates) {
                     int readOffset = candidate.getReadPositionAtReferencePosition(currentSite.getCoordinate());
                     if (readOffset != 0) { // this read covers the divergent site
                         String id = candidate.getStringAttribute("UB") == null ? candidate.getReadName() : candidate.getReadString() + "-" + candidate.getStringAttribute("UB");
@@ -145,7 +160,7 @@ public class Demultiplexor {
                             transcriptScores.put(cb, new HashMap<String, double[]>());
 
                         if (!transcriptScores.get(cb).containsKey(id)) {
-                            String base = (new String(new byte[]{candidate.getReadBases()[readOffset - 1]})).toUpperCase();
+                            String base = String.valueOf(candidate.getReadBase(readOffset - 1));
                             double[] scores = currentSite.matchScore(base, onlyUniqueSites);
                             transcriptScores.get(cb).put(id, scores);
                             //System.out.println(candidate.getReadName() + "\t" + currentSite.getCoordinate() + "\t" + readOffset);
@@ -171,7 +186,7 @@ public class Demultiplexor {
                     candidates = new ArrayList<>();
                 else
                     while(candidates.size() > 0){
-                        SAMRecord candidate = candidates.get(0);
+                        BAMRecordView candidate = candidates.get(0);
                         if(currentSite.getCoordinate() > candidate.getAlignmentEnd())
                             candidates.remove(0);
                         else
@@ -0,0 +1,220 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.annotation.Annotation;
+import hitseq.annotation.SegmentMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The reads overlapping with more than one gene, collapsed into equivalence
+ * classes: all the reads with the same set of overlapping genes form one
+ * class, which is kept as the gene set ID in the segment map of the
+ * annotation and the total weight of its reads. The table is filled during
+ * the counting pass, and the reads are then distributed to the genes of each
+ * class with an expectation-maximization (EM) algorithm.
+ */
+public class EquivalenceClasses {
+    private final Annotation annotation;
+    private final SegmentMap segmentMap;
+    private double[] weightOfGeneSet; // indexed by gene set ID
+
+    public EquivalenceClasses(Annotation annotation){
+        this.annotation=annotation;
+        this.segmentMap=annotation.getSegmentMap();
+        this.weightOfGeneSet=new double[64];
+    }
+
+    /**
+     * FunName: add.
+     * Description: Add a read to the class of the given gene set.
+     * @param geneSet The ID of the gene set in the segment map.
+     * @param weight The weight of the read, e.g. 1/NH.
+     */
+    public void add(int geneSet, double weight){
+        if(geneSet >= weightOfGeneSet.length)
+            weightOfGeneSet=Arrays.copyOf(weightOfGeneSet, Math.max(geneSet+1, weightOfGeneSet.length*2));
+        weightOfGeneSet[geneSet]+=weight;
+    }
+
+    /**
+     * FunName: add.
+     * Description: Add a read to the class of the given genes.
+     * @param genes The gene ordinals, which are sorted by this method.
+     * @param weight The weight of the read.
+     */
+    public void add(int[] genes, double weight){
+        Arrays.sort(genes);
+        add(segmentMap.intern(genes), weight);
+    }
+
+    /**
+     * FunName: addAll.
+     * Description: Add all the classes of another table, e.g. of another shard.
+     * @param that The other table.
+     */
+    public void addAll(EquivalenceClasses that){
+        for(int geneSet=that.weightOfGeneSet.length-1; geneSet>0; geneSet--)
+            if(that.weightOfGeneSet[geneSet] > 0)
+                add(geneSet, that.weightOfGeneSet[geneSet]);
+    }
+
+    /**
+     * FunName: getNumClasses.
+     * @return The number of non-empty classes.
+     */
+    public int getNumClasses(){
+        int numClasses=0;
+        for(double weight : weightOfGeneSet)
+            if(weight > 0)
+                numClasses++;
+        return numClasses;
+    }
+
+    /**
+     * FunName: getGeneSets.
+     * @return The gene set IDs of the non-empty classes, in increasing order.
+     */
+    public int[] getGeneSets(){
+        int[] geneSets=new int[getNumClasses()];
+        for(int geneSet=0, i=0; geneSet<weightOfGeneSet.length; geneSet++)
+            if(weightOfGeneSet[geneSet] > 0)
+                geneSets[i++]=geneSet;
+        return geneSets;
+    }
+
+    /**
+     * @return The total weight of the reads in the class of the given gene set.
+     */
+    public double getWeight(int geneSet){
+        return geneSet < weightOfGeneSet.length ? weightOfGeneSet[geneSet] : 0;
+    }
+
+    /**
+     * FunName: estimate.
+     * Description: Distribute the reads of the classes to their genes with EM. The abundance of a gene is its count
+     * per base, and in each iteration the reads of a class are split among its genes proportionally to the abundances.
+     * The iteration stops when the total change of the counts is below the tolerance times the number of reads in the
+     * classes, or when the iteration limit is reached.
+     * @param counts The counts of the genes, indexed by gene ordinal. The counts of the reads not in any class are given, and the estimated reads of the classes are added.
+     * @param maxIterations The upper limit of the iteration time.
+     * @param tolerance The relative tolerance of convergence.
+     * @param numThreads The number of threads.
+     * @return The number of iterations done.
+     */
+    public int estimate(double[] counts, int maxIterations, double tolerance, int numThreads){
+        // the compact table of the non-empty classes
+        int numClasses=getNumClasses();
+        final int[][] genesOfClass=new int[numClasses][];
+        final double[] weightOfClass=new double[numClasses];
+        double totalWeight=0;
+        for(int geneSet=0, i=0; geneSet<weightOfGeneSet.length; geneSet++)
+            if(weightOfGeneSet[geneSet] > 0){
+                genesOfClass[i]=segmentMap.getGenes(geneSet);
+                weightOfClass[i]=weightOfGeneSet[geneSet];
+                totalWeight+=weightOfClass[i];
+                i++;
+            }
+        if(numClasses==0)
+            return 0;
+
+        final int numGenes=counts.length;
+        final double[] lengths=new double[numGenes];
+        for(int gene=0; gene<numGenes; gene++){
+            int length=annotation.getGeneLength(annotation.getGeneID(gene));
+            lengths[gene]=length > 0 ? length : 1;
+        }
+        final double[] uniqueCounts=Arrays.copyOf(counts, numGenes);
+
+        // start from the equal assignment of the classes
+        double[] estimated=Arrays.copyOf(uniqueCounts, numGenes);
+        for(int i=0; i<numClasses; i++)
+            for(int gene : genesOfClass[i])
+                estimated[gene]+=weightOfClass[i]/genesOfClass[i].length;
+
+        // the classes are split into chunks, each of which is processed by one thread in each iteration
+        int numChunks=Math.max(1, Math.min(numThreads, numClasses/1000));
+        ExecutorService pool=numChunks > 1 ? Executors.newFixedThreadPool(numChunks) : null;
+        int iteration=0;
+        try{
+            while(iteration < maxIterations){
+                final double[] abundance=new double[numGenes];
+                for(int gene=0; gene<numGenes; gene++)
+                    abundance[gene]=estimated[gene]/lengths[gene];
+
+                double[] updated;
+                if(pool==null)
+                    updated=expectCounts(genesOfClass, weightOfClass, 0, numClasses, abundance);
+                else{
+                    ArrayList<Future<double[]>> results=new ArrayList<>();
+                    for(int chunk=0; chunk<numChunks; chunk++){
+                        final int from=(int) ((long) numClasses*chunk/numChunks);
+                        final int to=(int) ((long) numClasses*(chunk+1)/numChunks);
+                        results.add(pool.submit(new Callable<double[]>(){
+                            @Override
+                            public double[] call(){
+                                return expectCounts(genesOfClass, weightOfClass, from, to, abundance);
+                            }
+                        }));
+                    }
+                    updated=results.get(0).get();
+                    for(int chunk=1; chunk<numChunks; chunk++){
+                        double[] partial=results.get(chunk).get();
+                        for(int gene=0; gene<numGenes; gene++)
+                            updated[gene]+=partial[gene];
+                    }
+                }
+
+                double change=0;
+                for(int gene=0; gene<numGenes; gene++){
+                    updated[gene]+=uniqueCounts[gene];
+                    change+=Math.abs(updated[gene]-estimated[gene]);
+                }
+                estimated=updated;
+                iteration++;
+                if(change <= tolerance*totalWeight)
+                    break;
+            }
+        } catch(InterruptedException | ExecutionException e){
+            System.err.println("ERROR! " + e + " in estimate at EquivalenceClasses!\n");
+            System.exit(1);
+        } finally{
+            if(pool!=null)
+                pool.shutdown();
+        }
+
+        System.arraycopy(estimated, 0, counts, 0, numGenes);
+        return iteration;
+    }
+
+    /**
+     * FunName: expectCounts.
+     * Description: The E-step for a range of classes: split the reads of each class among its genes proportionally to the abundances.
+     * @return The expected counts of the genes from the given classes.
+     */
+    private static double[] expectCounts(int[][] genesOfClass, double[] weightOfClass, int from, int to, double[] abundance){
+        double[] expected=new double[abundance.length];
+        for(int i=from; i<to; i++){
+            int[] genes=genesOfClass[i];
+            double sum=0;
+            for(int gene : genes)
+                sum+=abundance[gene];
+            if(sum > 0){
+                for(int gene : genes)
+                    expected[gene]+=weightOfClass[i]*abundance[gene]/sum;
+            } else{
+                for(int gene : genes)
+                    expected[gene]+=weightOfClass[i]/genes.length;
+            }
+        }
+        return expected;
+    }
+}
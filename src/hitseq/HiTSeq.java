@@ -5,11 +5,28 @@
 package hitseq;
 
 import hitseq.annotation.*;
+import hitseq.bam.BAMWriterFactory;
+import hitseq.bam.SamInputs;
+import hitseq.bam.RecordViewReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -31,9 +48,12 @@ public class HiTSeq {
                     + "           uniq         Extract uniquely mapped reads from the input alignment\n"
                     + "           correct      Correct the proper-paired flag for paired-ended RNA-seq data based on annotation\n"
                     + "           tostruc      Transform annotation into struc format\n"
+                    + "           index        Compile annotation into a binary snapshot, which is read by the other commands in place of the annotation\n"
                     + "           tojuncs      Combine and transform junction list(s) into a junction list in 'juncs' format\n"
                     + "           toevents     Combine the junction list(s) and generate alternative splicing events\n"
                     + "           countjunc    Given junction list in junc/bed/gtf format, or event list in events format, output table of read count of each junction for the input alignments\n"
+                    + "           merge        Combine the partial results of the shards given by count, rpkm, countjunc or bias with --shard\n"
+                    + "           qc           Run count, bias, countjunc and info in one pass through each input alignment, each writing its own output file\n"
                     + "           demultiplex  Given sites with varied bases in different species/groups, demultiplex the pooled nuclei transcriptome data\n"
                     + "           gui          Open HiTSeq GUI.\n");
     }
@@ -79,24 +99,37 @@ public class HiTSeq {
      * @param args the command line arguments
      */
     private static void runInfo(String[] args){
-        String pathMapping=args[1];
+        ParameterSet parameters = new ParameterSet(args[0]);
+        parameters.readCommandLineArgs(args);
+        String pathMapping=args[parameters.getFirstSAMIdx()];
         File mappingFile = new File(pathMapping);
         MappingProcessor processor = new MappingProcessor(mappingFile);
+        processor.setInflateThreads(parameters.getNumThreads());
         processor.collectMappingInformation();
         ArrayList<Integer> information = processor.getMappingInfo();
 
-        System.out.println("\n" + args[1] + ":");
-        System.out.printf("%45s|          %d\n", "Number of reads: ", information.get(0));
-        System.out.printf("%45s|          %d\n", "Number of mapped reads: ", information.get(1));
-        System.out.printf("%45s|          %d\n", "Number of uniquely mapped reads: ", information.get(2));
-        System.out.println();
+        printMappingInfo(System.out, pathMapping, information);
+    }
+    
+    /**
+     * Print the mapping information of an input file, as the output of "info" command
+     * @param out The output stream
+     * @param pathMapping The path of the input file
+     * @param information The information collected by MappingProcessor
+     */
+    private static void printMappingInfo(PrintStream out, String pathMapping, ArrayList<Integer> information){
+        out.println("\n" + pathMapping + ":");
+        out.printf("%45s|          %d\n", "Number of reads: ", information.get(0));
+        out.printf("%45s|          %d\n", "Number of mapped reads: ", information.get(1));
+        out.printf("%45s|          %d\n", "Number of uniquely mapped reads: ", information.get(2));
+        out.println();
         if (information.size() > 3) {
             for (int i = 3; i < information.size(); i += 2) {
-                System.out.printf("%45s|          %d\n", "Number of reads with " + (i - 3) / 2 + " mismatch(es)", information.get(i));
-                System.out.printf("%46s          %d\n", "(UNIQUE READS)", information.get(i + 1));
+                out.printf("%45s|          %d\n", "Number of reads with " + (i - 3) / 2 + " mismatch(es)", information.get(i));
+                out.printf("%46s          %d\n", "(UNIQUE READS)", information.get(i + 1));
             }
         }
-        System.out.println();
+        out.println();
     }
     
     /**
@@ -111,8 +144,9 @@ public class HiTSeq {
         boolean sameChrIsEnough=parameters.getSameChrIsEnough();
         File inputSam = new File(args[parameters.getFirstSAMIdx()]);
         MappingProcessor processor = new MappingProcessor(inputSam);
+        processor.setWriterOptions(parameters.getCompressionLevel(), parameters.getNumWriteThreads());
         File outputSam;
-        if (args.length > 2) {
+        if (args.length > parameters.getFirstSAMIdx()+1) {
             outputSam = new File(args[parameters.getFirstSAMIdx()+1]);
         } else {
             String parentDir = inputSam.getParent();
@@ -137,7 +171,11 @@ public class HiTSeq {
             System.err.println("\n"
                     + "Options: -h        This help page\n"
                     + "         -s [int]  Strandedness (default: 0 - no strand information; 1 - same strandness; -1 - opposite strandness)\n"
-                    + "         -a [str]  The file type of annotation file (default: struc format; options: struc/gtf/gff3/bed)\n");
+                    + "         -a [str]  The file type of annotation file (default: struc format; options: struc/gtf/gff3/bed)\n"
+                    + "         --compression-level [int]\n"
+                    + "                   The compression level (0-9) of the output BAM file (default: " + BAMWriterFactory.DEFAULT_COMPRESSION_LEVEL + "); the intermediate BAM files use level " + BAMWriterFactory.TEMP_COMPRESSION_LEVEL + "\n"
+                    + "         --write-threads [int]\n"
+                    + "                   The number of threads to compress the BAM files (default: " + BAMWriterFactory.DEFAULT_NUM_THREADS + "; 0 to compress in the writing thread)\n");
             System.exit(0);
         }
         
@@ -151,6 +189,7 @@ public class HiTSeq {
         
         File inputSam = new File(args[parameters.getFirstSAMIdx()+1]);
         MappingProcessor processor = new MappingProcessor(inputSam);
+        processor.setWriterOptions(parameters.getCompressionLevel(), parameters.getNumWriteThreads());
         File outputSam;
         if (args.length > parameters.getFirstSAMIdx()+2) {
             outputSam = new File(args[parameters.getFirstSAMIdx()+2]);
@@ -180,6 +219,42 @@ public class HiTSeq {
         annotation.outputInStruc(parameters.getOnlyExclusive(), parameters.strandSpecific!=0);
     }
     
+    /**
+     * The program to run "index" command
+     * @param args the command line arguments
+     */
+    private static void runIndex(String[] args){
+        String cmd=args[0];
+        if (args.length == 1 || args[1].equals("-h")) {
+            System.err.println("\nThis is the help of '" + cmd + "' command of HiTSeq.");
+            System.err.println("Usage: java -jar HiTSeq.jar " + cmd + " [options] <annotation.file> <out.snapshot>\n"
+                    + "   Or: HiTSeq.sh " + cmd + " [options] <annotation.file> <out.snapshot>\n"
+                    + "   The snapshot can be given as the annotation of count, rpkm, bias, correct, qc and tostruc, without the option -a.\n"
+                    + "   As in the struc format, each gene of the snapshot has one transcript of its merged exons.");
+            System.err.println("\n"
+                    + "Options: -h        This help page\n"
+                    + "         -a [str]  The file type of annotation file (default: gtf format; options: struc/gtf/gff3/bed)\n");
+            System.exit(0);
+        }
+        
+        ParameterSet parameters = new ParameterSet(cmd);
+        parameters.readCommandLineArgs(args);
+        int firstIndex = parameters.getFirstSAMIdx();
+        if (args.length - firstIndex != 2) {
+            System.err.println("\nParameter error. The annotation file and the snapshot file should be given.\n");
+            System.exit(0);
+        }
+        
+        Annotation annotation = new Annotation(new File(args[firstIndex]), parameters.getAnnotFormat());
+        try {
+            AnnotationSnapshot.write(annotation, new File(args[firstIndex + 1]));
+        } catch (IOException e) {
+            System.err.println("ERROR! " + e + " in runIndex at HiTSeq!\n");
+            System.exit(1);
+        }
+        System.err.println("done writing the snapshot of " + annotation.getNumGenes() + " genes to " + args[firstIndex + 1]);
+    }
+    
     private static void transform4Junction(String[] args){
         String cmd=args[0];
         
@@ -190,7 +265,8 @@ public class HiTSeq {
             System.err.println("\n"
                     + "Options: -h        This help page\n"
                     + "         -a [str]  The file type of junction annotation file (default: juncs format; options: juncs/bed[tophat output]/gtf/bam/events)\n"
-                    + "         -s [int]  Strandedness of BAM/SAM input (default: 0 [no strand information]; 1/-1 [same/opposite strandness]; only work with '-a bam')\n");
+                    + "         -s [int]  Strandedness of BAM/SAM input (default: 0 [no strand information]; 1/-1 [same/opposite strandness]; only work with '-a bam')\n"
+                    + "         -T [int]  The number of threads to inflate the BAM input (default: 1; only work with '-a bam'), also given as --threads [int]\n");
             System.exit(0);
         }
 
@@ -207,12 +283,12 @@ public class HiTSeq {
         for (int i = firstInputIndex; i < args.length; i++) {
             String pathBed = args[i];
             if (fileType.equalsIgnoreCase("bam")) {
-                junctions.addJunctionSet(new File(pathBed), strandSpecific);
+                junctions.addJunctionSet(new File(pathBed), strandSpecific, parameters.getNumThreads());
             } else if(fileType.equalsIgnoreCase("events")){
                 ASEventSet eventSet=new ASEventSet(new File(pathBed));
                 junctions.addJunctionSet(new JunctionSet(eventSet));
             } else {
-                junctions.addJunctionSet(new File(pathBed), fileType);
+                junctions.addJunctionSet(new File(pathBed), fileType, parameters.getNumThreads());
             }
         }
 
@@ -232,12 +308,13 @@ public class HiTSeq {
      * The program to run "count" and "rpkm" command
      * @param args the command line arguments
      */
-    private static void runReadCounting(String[] args){
-        String cmd=args[0];
+    private static void runReadCounting(String[] args, final PartialResults partials){
+        final String cmd=args[0];
         if (args.length == 1 || args[1].equals("-h")) {
             System.err.println("\nThis is the help of '" + cmd.toLowerCase() + "' command of HiTSeq.");
             System.err.println("Usage: java -jar HiTSeq.jar " + cmd.toLowerCase() + " [options] <annotation.struc> <in.bam> [in2.bam ...]\n"
-                    + "   Or: HiTSeq.sh " + cmd.toLowerCase() + " [options] <annotation.struc> <in.bam> [in2.bam ...]");
+                    + "   Or: HiTSeq.sh " + cmd.toLowerCase() + " [options] <annotation.struc> <in.bam> [in2.bam ...]\n"
+                    + "   Use '-' as <in.bam> to read a SAM/BAM stream from the standard input, e.g. from a pipe.");
             System.err.println("\n"
                     + "Options: -h        This help page\n"
                     + "         -s [int]  Strandedness (default: 0 - no strand information; 1 - same strandness; -1 - opposite strandness)\n"
@@ -245,9 +322,34 @@ public class HiTSeq {
                     + "         -u        Only consider reads with NH:i:1, i.e. uniquely mapped reads, if the data is single-ended\n"
                     + "         -c        Do read collapse to remove PCR duplicates\n"
                     + "         -m [int]  The mode to deal with multi-gene hits (default: mode 0 - abandon ambiguous reads; options: 0-3)\n"
-                    + "         -t [int]  The maximum iteration time to assign ambiguous reads (default: 2). Only work with -m 3\n"
+                    + "         -t [int]  The maximum iteration time of the EM to assign ambiguous reads (default: 1000). Only work with -m 3\n"
+                    + "         --tolerance [double]\n"
+                    + "                   The relative change of counts at which the EM is converged (default: 1e-4). Only work with -m 3\n"
                     + "         -a [str]  The file type of annotation file (default: struc format; options: struc/gtf/gff3/bed)\n"
-                    + "         -p        When paired-ended data is provided, the proper paired flag will not be considered\n");
+                    + "         -p        When paired-ended data is provided, the proper paired flag will not be considered\n"
+                    + "         -T [int]  The number of threads (default: 1), also given as --threads [int]. Threads not used by parallel input files\n"
+                    + "                   count the reads of an indexed BAM file in parallel, or inflate the BAM input\n"
+                    + "         --parallel-samples [int]\n"
+                    + "                   The maximum number of input files processed at the same time (default: the number of threads)\n"
+                    + "         --queue-depth [int]\n"
+                    + "                   The number of record batches buffered between the reader and the counter of an input file (default: 8; 0 - no pipeline)\n"
+                    + "         --batch-size [int]\n"
+                    + "                   The number of records in each batch handed from the reader to the counter (default: 1024)\n"
+                    + "         --reference [file]\n"
+                    + "                   The reference genome in FASTA format, indexed by samtools faidx, to decode CRAM input\n"
+                    + "         --name-grouped\n"
+                    + "                   The records of each read are next to each other, e.g. as given by the aligner. Implied by the input sorted by query name\n"
+                    + "         --targets [file]\n"
+                    + "                   Only count the genes in the file, given as gene IDs (one per line) or as BED regions overlapping the genes.\n"
+                    + "                   Only the reads of the targets are read from indexed inputs, and the total reads are estimated from the aligned records in the index, without the read filters\n"
+                    + "         --shard [i/N]\n"
+                    + "                   Only count the i-th of N shards of each indexed BAM input, and output the partial results to be combined by 'merge'\n"
+                    + "         --checkpoint [dir]\n"
+                    + "                   Save the results of each input file, and of each counted range of an indexed BAM input, to the directory.\n"
+                    + "                   Run the same command again to resume an interrupted run from the last saved results\n"
+                    + "         --cache [dir]\n"
+                    + "                   Load the results of the input files counted by earlier runs with the same annotation and options from the\n"
+                    + "                   directory, and save the results of the others to it. An input file is counted again once it is changed\n");
             System.exit(0);
         }
 
@@ -255,57 +357,173 @@ public class HiTSeq {
         ParameterSet parameters = new ParameterSet(cmd);
         parameters.readCommandLineArgs(args);
 
-        int strandSpecific = parameters.getStrandedness();
-        boolean considerNH = parameters.getConsiderNHTag();
-        boolean onlyUnique = parameters.getOnlyUnique();
-        boolean readCollapse = parameters.getReadCollapseTag();
-        int modeForMultiGenesOverlap = parameters.getModeForMultiGenesOverlap();
-        int iterationLimit = parameters.getIterationLimit();
-        String annotFormat = parameters.getAnnotFormat();
-        boolean sameChrIsEnough = parameters.getSameChrIsEnough();
-        boolean verbose = parameters.getVerbose();
+        final int strandSpecific = parameters.getStrandedness();
+        final boolean considerNH = parameters.getConsiderNHTag();
+        final boolean onlyUnique = parameters.getOnlyUnique();
+        final boolean readCollapse = parameters.getReadCollapseTag();
+        final int modeForMultiGenesOverlap = parameters.getModeForMultiGenesOverlap();
+        final int iterationLimit = parameters.getIterationLimit();
+        final double convergenceTolerance = parameters.getConvergenceTolerance();
+        final int queueDepth = parameters.getQueueDepth();
+        final int batchSize = parameters.getBatchSize();
+        final boolean nameGrouped = parameters.getNameGrouped();
+        final String annotFormat = parameters.getAnnotFormat();
+        final boolean sameChrIsEnough = parameters.getSameChrIsEnough();
+        final boolean verbose = parameters.getVerbose();
+        final int shardIndex = parameters.getShardIndex();
+        final int numShards = parameters.getNumShards();
 
         int firstSAMIndex = parameters.getFirstSAMIdx();
+        List<String> options = PartialResults.getOptions(args, firstSAMIndex);
 
         // read annotation
         String pathAnnotation = args[firstSAMIndex];
-        Annotation annotation = new Annotation(new File(pathAnnotation), annotFormat);
+        final Annotation annotation = new Annotation(new File(pathAnnotation), annotFormat);
         if (modeForMultiGenesOverlap == 0) {
             annotation.estimateAmbiguousGeneRegions();
         }
-        HashMap<String, Double> totalNumMappedReads = new HashMap<>();
-        HashMap<String, HashMap<String, Double>> readCount = new HashMap<>();
-        HashMap<String, HashMap<String, Double>> fpkm = new HashMap<>();
+        final TargetRegions targets = parameters.getTargetFile() == null ? null : new TargetRegions(parameters.getTargetFile(), annotation);
+        final HashMap<String, Double> totalNumMappedReads = new HashMap<>();
+        final HashMap<String, HashMap<String, Double>> readCount = new HashMap<>();
+        final HashMap<String, HashMap<String, Double>> fpkm = new HashMap<>();
         for (String gene : annotation.getGeneSet()) {
+            if (targets != null && !targets.contains(gene)) {
+                continue;
+            }
             readCount.put(gene, new HashMap<String, Double>());
             fpkm.put(gene, new HashMap<String, Double>());
         }
         firstSAMIndex++;
 
-        for (int i = firstSAMIndex; i < args.length; i++) {
-            String pathMapping = args[i];
-            File mappingFile = new File(pathMapping);
-
-            // Read counting
-            annotation.resetPointer();
-            ReadCounter counter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, sameChrIsEnough);
-            counter.estimateCounts(considerNH, onlyUnique, readCollapse, iterationLimit, verbose);
-            HashMap<String, Double> count = counter.getCounts();
-            for (String gene : count.keySet()) {
-                readCount.get(gene).put(args[i], count.get(gene));
+        // the checkpoint directory only accepts the results of the same command, options, annotation and shard
+        Checkpoint checkpointOfRun = null;
+        if (parameters.getCheckpointDir() != null && partials == null) {
+            ArrayList<String> run = new ArrayList<>();
+            run.add(cmd);
+            run.addAll(options);
+            run.add(new File(pathAnnotation).getAbsolutePath());
+            if (numShards > 0) {
+                run.add("--shard");
+                run.add((shardIndex + 1) + "/" + numShards);
             }
-            totalNumMappedReads.put(args[i], counter.getTotalNumReads());
-
-            // Calculate RPKM if necessary
-            if (cmd.equalsIgnoreCase("rpkm")) {
-                counter.estimateRPKM();
-                HashMap<String, Double> fpkmGene = counter.getRPKM();
-                for (String gene : fpkmGene.keySet()) {
-                    fpkm.get(gene).put(args[i], fpkmGene.get(gene));
-                }
+            try {
+                checkpointOfRun = new Checkpoint(parameters.getCheckpointDir(), run);
+            } catch (IOException e) {
+                System.err.println("ERROR! " + e + " in runReadCounting at HiTSeq!\n");
+                System.exit(1);
             }
+        }
+        final Checkpoint checkpoint = checkpointOfRun;
+        ResultCache cacheOfRun = null;
+        if (parameters.getCacheDir() != null && partials == null) {
+            ArrayList<String> run = new ArrayList<>();
+            run.add(cmd);
+            run.addAll(options);
+            if (numShards > 0) {
+                run.add("--shard");
+                run.add((shardIndex + 1) + "/" + numShards);
+            }
+            try {
+                cacheOfRun = new ResultCache(parameters.getCacheDir(), run, new File(pathAnnotation), parameters.getTargetFile());
+            } catch (IOException e) {
+                System.err.println("ERROR! " + e + " in runReadCounting at HiTSeq!\n");
+                System.exit(1);
+            }
+        }
+        final ResultCache cache = cacheOfRun;
+
+        int numParallelSamples = parameters.getNumParallelSamples(args.length - firstSAMIndex);
+        final int numThreadsPerSample = Math.max(1, parameters.getNumThreads() / numParallelSamples);
+        final String[] partialResults = new String[args.length - firstSAMIndex];
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = firstSAMIndex; i < args.length; i++) {
+            final String pathMapping = args[i];
+            final int idx = i - firstSAMIndex;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // the counter reads the partial results of the shards instead of the input when merging
+                    File mappingFile = partials == null ? new File(pathMapping) : partials.getFile(pathMapping);
 
-            System.err.println("done " + args[i] + "\n");
+                    // Read counting
+                    ReadCounter counter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, sameChrIsEnough);
+                    counter.setPipeline(queueDepth, batchSize, numThreadsPerSample);
+                    counter.setNameGrouped(nameGrouped);
+                    counter.setTargets(targets);
+                    counter.setConvergenceTolerance(convergenceTolerance);
+                    try {
+                        // the results saved by an interrupted run of the same command, or cached by an earlier run
+                        File cacheFile = cache == null ? null : cache.getFile(pathMapping);
+                        File savedFile = checkpoint == null ? null : checkpoint.getSampleFile(pathMapping);
+                        if (savedFile == null || !savedFile.exists()) {
+                            savedFile = cacheFile;
+                        }
+                        if (partials != null) {
+                            counter.mergePartial(partials.getLines(pathMapping));
+                            if (modeForMultiGenesOverlap == 3) {
+                                counter.estimateCountsIteratively(iterationLimit, numThreadsPerSample);
+                            }
+                        } else if (savedFile != null && savedFile.exists()) {
+                            // the saved results are the final counts, or the partial results of the shard
+                            System.err.println("read the results of " + pathMapping + " from " + savedFile);
+                            if (numShards > 0) {
+                                partialResults[idx] = new String(Files.readAllBytes(savedFile.toPath()));
+                                System.err.println("done " + pathMapping + "\n");
+                                return null;
+                            }
+                            counter.mergePartial(Checkpoint.read(savedFile));
+                        } else {
+                            counter.setShard(shardIndex, numShards);
+                            counter.setCheckpoint(checkpoint);
+                            counter.estimateCounts(considerNH, onlyUnique, readCollapse, iterationLimit, verbose, numThreadsPerSample);
+                            String result = checkpoint != null || cacheFile != null ? getPartialResult(counter) : null;
+                            if (checkpoint != null) {
+                                Checkpoint.write(checkpoint.getSampleFile(pathMapping), result);
+                                checkpoint.clearRanges(pathMapping);
+                            }
+                            if (cacheFile != null) {
+                                Checkpoint.write(cacheFile, result);
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("ERROR! " + e + " in runReadCounting at HiTSeq!\n");
+                        System.exit(1);
+                    }
+                    if (numShards > 0) {
+                        partialResults[idx] = getPartialResult(counter);
+                        System.err.println("done " + pathMapping + "\n");
+                        return null;
+                    }
+                    Map<String, Double> count = counter.getCounts();
+
+                    // Calculate RPKM if necessary
+                    Map<String, Double> fpkmGene = null;
+                    if (cmd.equalsIgnoreCase("rpkm")) {
+                        counter.estimateRPKM();
+                        fpkmGene = counter.getRPKM();
+                    }
+
+                    synchronized (readCount) {
+                        for (String gene : readCount.keySet()) {
+                            readCount.get(gene).put(pathMapping, count.get(gene));
+                        }
+                        totalNumMappedReads.put(pathMapping, counter.getTotalNumReads());
+                        if (fpkmGene != null) {
+                            for (String gene : fpkm.keySet()) {
+                                fpkm.get(gene).put(pathMapping, fpkmGene.get(gene));
+                            }
+                        }
+                    }
+
+                    System.err.println("done " + pathMapping + "\n");
+                    return null;
+                }
+            });
+        }
+        runSamples(tasks, numParallelSamples);
+        if (numShards > 0) {
+            PartialResults.write(System.out, cmd, shardIndex, numShards, options, Arrays.asList(args).subList(firstSAMIndex, args.length), Arrays.asList(partialResults));
+            return;
         }
 
         String header = cmd.equalsIgnoreCase("count") ? "GENE_ID\tLENGTH" : "GENE_ID";
@@ -353,7 +571,7 @@ public class HiTSeq {
 
                 String readNum = "";
                 for (int i = firstSAMIndex; i < args.length; i++) {
-                    if (modeForMultiGenesOverlap == 1) {
+                    if (modeForMultiGenesOverlap == 1 || modeForMultiGenesOverlap == 3) { // fractional counts
                         readNum = readNum + "\t" + String.valueOf(readCount.get(gene).get(args[i]));
                     } else {
                         readNum = readNum + "\t" + String.valueOf(readCount.get(gene).get(args[i]).intValue());
@@ -380,13 +598,14 @@ public class HiTSeq {
      * The function to run read counting for junctions (command "countjunc")
      * @param args the command line arguments
      */
-    private static void runJunctionCounting(String[] args){
+    private static void runJunctionCounting(String[] args, final PartialResults partials){
         String cmd=args[0];
         
         if (args.length == 1 || args[1].equals("-h")) {
             System.err.println("\nThis is the help of '" + cmd + "' command of HiTSeq.");
             System.err.println("Usage: java -jar HiTSeq.jar " + cmd + " [options] <junc.file> <in.bam> [in2.bam ...]\n"
-                    + "   Or: HiTSeq.sh " + cmd + " [options] <junc.file> <in.bam> [in2.bam ...]");
+                    + "   Or: HiTSeq.sh " + cmd + " [options] <junc.file> <in.bam> [in2.bam ...]\n"
+                    + "   Use '-' as <in.bam> to read a SAM/BAM stream from the standard input, e.g. from a pipe.");
             System.err.println("\n"
                     + "Options: -h        This help page\n"
                     + "         -a [str]  The file type of junction annotation file (default: juncs format; options: juncs/bed[tophat output]/gtf/bam/events)\n"
@@ -394,7 +613,18 @@ public class HiTSeq {
                     + "         -u        Only consider reads with NH:i:1, i.e. uniquely mapped reads, if the data is single-ended\n"
                     + "         -c        Do read collapse to remove PCR duplicates\n"
                     + "         -s [int]  Strandedness of BAM/SAM input (default: 0 [no strand information]; 1/-1 [same/opposite strandness]; only work with '-a bam')\n"
-                    + "         -e        Output the counting for events instead of junctions\n");
+                    + "         -e        Output the counting for events instead of junctions\n"
+                    + "         -T [int]  The number of threads (default: 1), also given as --threads [int]\n"
+                    + "         --parallel-samples [int]\n"
+                    + "                   The maximum number of input files processed at the same time (default: the number of threads)\n"
+                    + "         --queue-depth [int]\n"
+                    + "                   The number of record batches buffered between the reader and the counter of an input file (default: 8; 0 - no pipeline)\n"
+                    + "         --batch-size [int]\n"
+                    + "                   The number of records in each batch handed from the reader to the counter (default: 1024)\n"
+                    + "         --reference [file]\n"
+                    + "                   The reference genome in FASTA format, indexed by samtools faidx, to decode CRAM input\n"
+                    + "         --shard [i/N]\n"
+                    + "                   Only count the i-th of N shards of each indexed BAM input, and output the partial results to be combined by 'merge'\n");
             System.exit(0);
         }
 
@@ -402,25 +632,32 @@ public class HiTSeq {
         ParameterSet parameters = new ParameterSet(cmd);
         parameters.readCommandLineArgs(args);
 
-        int strandSpecific = parameters.getStrandedness();
-        boolean considerNH = parameters.getConsiderNHTag();
-        boolean onlyUnique = parameters.getOnlyUnique();
-        boolean readCollapse = parameters.getReadCollapseTag();
+        final int strandSpecific = parameters.getStrandedness();
+        final boolean considerNH = parameters.getConsiderNHTag();
+        final boolean onlyUnique = parameters.getOnlyUnique();
+        final boolean readCollapse = parameters.getReadCollapseTag();
         String juncType = parameters.getAnnotFormat();
-        boolean outputForEvents = parameters.getOutputForEventsTag();
+        final boolean outputForEvents = parameters.getOutputForEventsTag();
+        final int queueDepth = parameters.getQueueDepth();
+        final int batchSize = parameters.getBatchSize();
+        final int shardIndex = parameters.getShardIndex();
+        final int numShards = parameters.getNumShards();
 
         int firstSAMIndex = parameters.getFirstSAMIdx();
+        List<String> options = PartialResults.getOptions(args, firstSAMIndex);
 
         // generate junction set and AS event set
         String pathJunctions = args[firstSAMIndex];
-        JunctionSet junctions;
-        ASEventSet events = null;
+        final JunctionSet junctions;
+        final ASEventSet events;
         if (!juncType.equals("event")) {
-            junctions = new JunctionSet(new File(pathJunctions), juncType);
+            junctions = new JunctionSet(new File(pathJunctions), juncType, parameters.getNumThreads());
             System.err.println("done reading junction set.");
             if (outputForEvents) {
                 events = new ASEventSet(junctions);
                 System.err.println("done generating event set.");
+            } else {
+                events = null;
             }
         } else {
             events = new ASEventSet(new File(pathJunctions));
@@ -429,9 +666,9 @@ public class HiTSeq {
             System.err.println("done generating junction set.");
         }
 
-        HashMap<String, Double> totalNumMappedReads = new HashMap<>();
-        HashMap<Junction, HashMap<String, Double>> juncCount = new HashMap<>();
-        HashMap<ASEvent, HashMap<String, ArrayList<Double>>> eventCount = new HashMap<>();
+        final HashMap<String, Double> totalNumMappedReads = new HashMap<>();
+        final HashMap<Junction, HashMap<String, Double>> juncCount = new HashMap<>();
+        final HashMap<ASEvent, HashMap<String, ArrayList<Double>>> eventCount = new HashMap<>();
         for (String chrom : junctions.getJunctions().keySet()) {
             System.err.println("initializing counting data for chromosome: " + chrom);
             for (Junction junc : junctions.getJunctions().get(chrom)) {
@@ -448,27 +685,60 @@ public class HiTSeq {
 
         System.err.println("\nstart counting...");
         // start reading SAM/BAM files
+        int numParallelSamples = parameters.getNumParallelSamples(args.length - firstSAMIndex);
+        final int numThreadsPerSample = Math.max(1, parameters.getNumThreads() / numParallelSamples);
+        final String[] partialResults = new String[args.length - firstSAMIndex];
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
         for (int i = firstSAMIndex; i < args.length; i++) {
-            String pathMapping = args[i];
-            File mappingFile = new File(pathMapping);
-
-            // Read counting
-            ReadCounter counter = new ReadCounter(mappingFile, junctions, strandSpecific);
-            counter.estimateJunctionCounts(considerNH, onlyUnique, readCollapse);
-            HashMap<Junction, Double> count = counter.getJunctionCounts();
-            for (Junction junc : count.keySet()) {
-                juncCount.get(junc).put(args[i], count.get(junc));
-            }
-            totalNumMappedReads.put(args[i], counter.getTotalNumReads());
+            final String pathMapping = args[i];
+            final int idx = i - firstSAMIndex;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // the counter reads the partial results of the shards instead of the input when merging
+                    File mappingFile = partials == null ? new File(pathMapping) : partials.getFile(pathMapping);
 
-            if (outputForEvents) {
-                HashMap<ASEvent, ArrayList<Double>> countEvents = events.quantifyInclusion(count);
-                for (ASEvent event : countEvents.keySet()) {
-                    eventCount.get(event).put(args[i], countEvents.get(event));
-                }
-            }
+                    // Read counting
+                    ReadCounter counter = new ReadCounter(mappingFile, junctions, strandSpecific);
+                    counter.setPipeline(queueDepth, batchSize, numThreadsPerSample);
+                    if (partials != null) {
+                        counter.mergePartial(partials.getLines(pathMapping));
+                    } else {
+                        counter.setShard(shardIndex, numShards);
+                        counter.estimateJunctionCounts(considerNH, onlyUnique, readCollapse);
+                    }
+                    if (numShards > 0) {
+                        partialResults[idx] = getPartialResult(counter);
+                        System.err.println("done " + pathMapping + "\n");
+                        return null;
+                    }
+                    HashMap<Junction, Double> count = counter.getJunctionCounts();
+                    HashMap<ASEvent, ArrayList<Double>> countEvents = null;
+                    if (outputForEvents) {
+                        countEvents = events.quantifyInclusion(count);
+                    }
 
-            System.err.println("done " + args[i] + "\n");
+                    synchronized (juncCount) {
+                        for (Junction junc : count.keySet()) {
+                            juncCount.get(junc).put(pathMapping, count.get(junc));
+                        }
+                        totalNumMappedReads.put(pathMapping, counter.getTotalNumReads());
+                        if (countEvents != null) {
+                            for (ASEvent event : countEvents.keySet()) {
+                                eventCount.get(event).put(pathMapping, countEvents.get(event));
+                            }
+                        }
+                    }
+
+                    System.err.println("done " + pathMapping + "\n");
+                    return null;
+                }
+            });
+        }
+        runSamples(tasks, numParallelSamples);
+        if (numShards > 0) {
+            PartialResults.write(System.out, cmd, shardIndex, numShards, options, Arrays.asList(args).subList(firstSAMIndex, args.length), Arrays.asList(partialResults));
+            return;
         }
 
         // output
@@ -535,7 +805,7 @@ public class HiTSeq {
      * Run the program of "bias" command
      * @param args the command line arguments
      */
-    private static void runBias(String[] args){
+    private static void runBias(String[] args, final PartialResults partials){
         String cmd=args[0];
         if (args.length == 1 || args[1].equals("-h")) {
             System.err.println("\nThis is the help of '" + cmd.toLowerCase() + "' command of HiTSeq.");
@@ -552,7 +822,23 @@ public class HiTSeq {
                     + "         -i [int]  The number of intervals to check the 3'-bias\n"
                     + "         -e [int]  Whether to use mean or median read proportion (default: 0 - mean; 1 - median)\n"
                     + "         -l [int]  Set the total exon length cutoff for genes (default: 0)\n"
-                    + "         -r [int]  Set the read coverage (#read/nt) cutoff for genes (default: 0)\n");
+                    + "         -r [int]  Set the read coverage (#read/nt) cutoff for genes (default: 0)\n"
+                    + "         -T [int]  The number of threads (default: 1), also given as --threads [int]\n"
+                    + "         --parallel-samples [int]\n"
+                    + "                   The maximum number of input files processed at the same time (default: the number of threads)\n"
+                    + "         --queue-depth [int]\n"
+                    + "                   The number of record batches buffered between the reader and the counter of an input file (default: 8; 0 - no pipeline)\n"
+                    + "         --batch-size [int]\n"
+                    + "                   The number of records in each batch handed from the reader to the counter (default: 1024)\n"
+                    + "         --reference [file]\n"
+                    + "                   The reference genome in FASTA format, indexed by samtools faidx, to decode CRAM input\n"
+                    + "         --name-grouped\n"
+                    + "                   The records of each read are next to each other, e.g. as given by the aligner. Implied by the input sorted by query name\n"
+                    + "         --targets [file]\n"
+                    + "                   Only check the genes in the file, given as gene IDs (one per line) or as BED regions overlapping the genes.\n"
+                    + "                   Only the reads of the targets are read from indexed inputs\n"
+                    + "         --shard [i/N]\n"
+                    + "                   Only check the i-th of N shards of each indexed BAM input, and output the partial results to be combined by 'merge'\n");
             System.exit(0);
         }
 
@@ -560,41 +846,332 @@ public class HiTSeq {
         ParameterSet parameters = new ParameterSet(cmd);
         parameters.readCommandLineArgs(args);
 
-        int strandSpecific = parameters.getStrandedness();
-        boolean considerNH = parameters.getConsiderNHTag();
-        boolean onlyUnique = parameters.getOnlyUnique();
-        boolean readCollapse = parameters.getReadCollapseTag();
-        int modeForMultiGenesOverlap = parameters.getModeForMultiGenesOverlap();
+        final int strandSpecific = parameters.getStrandedness();
+        final boolean considerNH = parameters.getConsiderNHTag();
+        final boolean onlyUnique = parameters.getOnlyUnique();
+        final boolean readCollapse = parameters.getReadCollapseTag();
+        final int modeForMultiGenesOverlap = parameters.getModeForMultiGenesOverlap();
         String annotFormat = parameters.getAnnotFormat();
-        int numIntervals = parameters.getNumIntervals();
-        boolean useMedian = parameters.useMedian();
-        int lengthCutoff = parameters.getLengthCutoff();
-        double countCutoff = parameters.getCountCutoff();
+        final int numIntervals = parameters.getNumIntervals();
+        final boolean useMedian = parameters.useMedian();
+        final int lengthCutoff = parameters.getLengthCutoff();
+        final double countCutoff = parameters.getCountCutoff();
+        final int queueDepth = parameters.getQueueDepth();
+        final int batchSize = parameters.getBatchSize();
+        final boolean nameGrouped = parameters.getNameGrouped();
+        final int shardIndex = parameters.getShardIndex();
+        final int numShards = parameters.getNumShards();
 
         int firstSAMIndex = parameters.getFirstSAMIdx();
+        List<String> options = PartialResults.getOptions(args, firstSAMIndex);
         
         // read annotation
         String pathAnnotation = args[firstSAMIndex];
-        Annotation annotation = new Annotation(new File(pathAnnotation), annotFormat);
+        final Annotation annotation = new Annotation(new File(pathAnnotation), annotFormat);
+        final TargetRegions targets = parameters.getTargetFile() == null ? null : new TargetRegions(parameters.getTargetFile(), annotation);
+        firstSAMIndex++;
+
+        int numParallelSamples = parameters.getNumParallelSamples(args.length - firstSAMIndex);
+        final int numThreadsPerSample = Math.max(1, parameters.getNumThreads() / numParallelSamples);
+        final String[] outputs = new String[args.length - firstSAMIndex];
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = firstSAMIndex; i < args.length; i++) {
+            final String pathMapping = args[i];
+            final int idx = i - firstSAMIndex;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // the counter reads the partial results of the shards instead of the input when merging
+                    File mappingFile = partials == null ? new File(pathMapping) : partials.getFile(pathMapping);
+
+                    // Read counting
+                    ReadCounter counter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, true, numIntervals);
+                    counter.setPipeline(queueDepth, batchSize, numThreadsPerSample);
+                    counter.setNameGrouped(nameGrouped);
+                    counter.setTargets(targets);
+                    if (partials != null) {
+                        counter.mergePartial(partials.getLines(pathMapping));
+                    } else {
+                        counter.setShard(shardIndex, numShards);
+                        counter.estimateBias(considerNH, onlyUnique, readCollapse);
+                    }
+                    if (numShards > 0) {
+                        outputs[idx] = getPartialResult(counter);
+                        System.err.println("done counting for file: " + pathMapping);
+                        return null;
+                    }
+                    double[] counts = counter.getAverageProportionReadsEachInterval(useMedian, lengthCutoff, countCutoff);
+
+                    String values = "";
+                    for(double count : counts)
+                        values = values + "\t" + String.valueOf(count);
+                    outputs[idx] = pathMapping + "\t" + values;
+
+                    System.err.println("done counting for file: " + pathMapping);
+                    return null;
+                }
+            });
+        }
+        runSamples(tasks, numParallelSamples);
+        if (numShards > 0) {
+            PartialResults.write(System.out, cmd, shardIndex, numShards, options, Arrays.asList(args).subList(firstSAMIndex, args.length), Arrays.asList(outputs));
+            return;
+        }
+
+        // output
+        for (String output : outputs)
+            System.out.println(output);
+    }
+    
+    /**
+     * Get the partial results of the shard counted by the given counter
+     * @param counter The counter with the option --shard
+     * @return The lines of the partial results
+     */
+    private static String getPartialResult(ReadCounter counter){
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        counter.writePartial(new PrintStream(partial));
+        return partial.toString();
+    }
+    
+    /**
+     * Run the program of "merge" command, i.e. combine the partial results of
+     * the shards into the output of the command which gives them
+     * @param args the command line arguments
+     */
+    private static void runMerge(String[] args){
+        String cmd=args[0];
+        if (args.length < 3 || args[1].equals("-h")) {
+            System.err.println("\nThis is the help of '" + cmd.toLowerCase() + "' command of HiTSeq.");
+            System.err.println("Usage: java -jar HiTSeq.jar " + cmd.toLowerCase() + " <annotation.struc|junc.file> <partial1> [partial2 ...]\n"
+                    + "   Or: HiTSeq.sh " + cmd.toLowerCase() + " <annotation.struc|junc.file> <partial1> [partial2 ...]\n"
+                    + "   The partial results are the outputs of count, rpkm, countjunc or bias with --shard i/N, all given with the same\n"
+                    + "   options and the same annotation. All the N shards of each input file are needed, and the output is the same as\n"
+                    + "   the one of the command run without --shard.");
+            System.err.println("\n"
+                    + "Options: -h        This help page\n");
+            System.exit(0);
+        }
+
+        ArrayList<File> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            File file = new File(args[i]);
+            if (!file.exists()) {
+                System.err.println("\nParameter error. Cannot find the file of partial results: " + args[i] + "\n");
+                System.exit(0);
+            }
+            files.add(file);
+        }
+        PartialResults partials = new PartialResults(files);
+
+        // run the command with the same options and annotation, whose input files are given by the partial results
+        ArrayList<String> mergedArgs = new ArrayList<>();
+        mergedArgs.add(partials.getCommand());
+        mergedArgs.addAll(partials.getOptions());
+        mergedArgs.add(args[1]);
+        mergedArgs.addAll(partials.getSamples());
+        String[] commandArgs = mergedArgs.toArray(new String[mergedArgs.size()]);
+        if (partials.getCommand().equalsIgnoreCase("count") || partials.getCommand().equalsIgnoreCase("rpkm")) {
+            runReadCounting(commandArgs, partials);
+        } else if (partials.getCommand().equalsIgnoreCase("countjunc")) {
+            runJunctionCounting(commandArgs, partials);
+        } else if (partials.getCommand().equalsIgnoreCase("bias")) {
+            runBias(commandArgs, partials);
+        } else {
+            System.err.println("\nParameter error. The partial results of command " + partials.getCommand() + " cannot be merged.\n");
+            System.exit(0);
+        }
+    }
+    
+    /**
+     * Run the program of "qc" command, i.e. the analyses of "count", "bias",
+     * "countjunc" and "info" as consumers of one pass through each input file
+     * @param args the command line arguments
+     */
+    private static void runQC(String[] args){
+        String cmd=args[0];
+        if (args.length == 1 || args[1].equals("-h")) {
+            System.err.println("\nThis is the help of '" + cmd.toLowerCase() + "' command of HiTSeq.");
+            System.err.println("Usage: java -jar HiTSeq.jar " + cmd.toLowerCase() + " [options] <annotation.struc> <in.bam> [in2.bam ...]\n"
+                    + "   Or: HiTSeq.sh " + cmd.toLowerCase() + " [options] <annotation.struc> <in.bam> [in2.bam ...]\n"
+                    + "   The input files are read once for all the analyses. The results of each input file are written to\n"
+                    + "   <in.bam>.count.txt, <in.bam>.bias.txt, <in.bam>.junc.txt (junctions of the annotation) and <in.bam>.info.txt.");
+            System.err.println("\n"
+                    + "Options: -h        This help page\n"
+                    + "         -s [int]  Strandedness (default: 0 - no strand information; 1 - same strandness; -1 - opposite strandness)\n"
+                    + "         -n        For reads mapped to n-loci, assign 1/n read to each hit\n"
+                    + "         -u        Only consider reads with NH:i:1, i.e. uniquely mapped reads, if the data is single-ended\n"
+                    + "         -c        Do read collapse to remove PCR duplicates\n"
+                    + "         -m [int]  The mode to deal with multi-gene hits (default: mode 0 - abandon ambiguous reads; options: 0-3; the bias only uses 0/1)\n"
+                    + "         -t [int]  The maximum iteration time of the EM to assign ambiguous reads (default: 1000). Only work with -m 3\n"
+                    + "         -a [str]  The file type of annotation file (default: struc format; options: struc/gtf/gff3/bed)\n"
+                    + "         -p        When paired-ended data is provided, the proper paired flag will not be considered\n"
+                    + "         -i [int]  The number of intervals to check the 3'-bias\n"
+                    + "         -e [int]  Whether to use mean or median read proportion for the 3'-bias (default: 0 - mean; 1 - median)\n"
+                    + "         -l [int]  Set the total exon length cutoff for genes of the 3'-bias (default: 0)\n"
+                    + "         -r [int]  Set the read coverage (#read/nt) cutoff for genes of the 3'-bias (default: 0)\n"
+                    + "         -T [int]  The number of threads (default: 1), also given as --threads [int]\n"
+                    + "         --parallel-samples [int]\n"
+                    + "                   The maximum number of input files processed at the same time (default: the number of threads)\n"
+                    + "         --analyses [str]\n"
+                    + "                   The analyses to run, separated by comma (default: count,bias,countjunc,info)\n"
+                    + "         --reference [file]\n"
+                    + "                   The reference genome in FASTA format, indexed by samtools faidx, to decode CRAM input\n");
+            System.exit(0);
+        }
+
+        // read the parameters
+        ParameterSet parameters = new ParameterSet(cmd);
+        parameters.readCommandLineArgs(args);
+
+        final int strandSpecific = parameters.getStrandedness();
+        final boolean considerNH = parameters.getConsiderNHTag();
+        final boolean onlyUnique = parameters.getOnlyUnique();
+        final boolean readCollapse = parameters.getReadCollapseTag();
+        final int modeForMultiGenesOverlap = parameters.getModeForMultiGenesOverlap();
+        final int iterationLimit = parameters.getIterationLimit();
+        final boolean sameChrIsEnough = parameters.getSameChrIsEnough();
+        final int numIntervals = parameters.getNumIntervals();
+        final boolean useMedian = parameters.useMedian();
+        final int lengthCutoff = parameters.getLengthCutoff();
+        final double countCutoff = parameters.getCountCutoff();
+        final HashSet<String> analyses = parameters.getAnalyses();
+
+        int firstSAMIndex = parameters.getFirstSAMIdx();
+
+        // read annotation
+        final Annotation annotation = new Annotation(new File(args[firstSAMIndex]), parameters.getAnnotFormat());
+        if (modeForMultiGenesOverlap == 0 && analyses.contains("count")) {
+            annotation.estimateAmbiguousGeneRegions();
+        }
         firstSAMIndex++;
 
+        int numParallelSamples = parameters.getNumParallelSamples(args.length - firstSAMIndex);
+        final int numThreadsPerSample = Math.max(1, parameters.getNumThreads() / numParallelSamples);
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
         for (int i = firstSAMIndex; i < args.length; i++) {
-            String pathMapping = args[i];
-            File mappingFile = new File(pathMapping);
-
-            // Read counting
-            annotation.resetPointer();
-            ReadCounter counter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, true, numIntervals);
-            counter.estimateBias(considerNH, onlyUnique, readCollapse);
-            double[] counts = counter.getAverageProportionReadsEachInterval(useMedian, lengthCutoff, countCutoff);
-            
-            // output
-            String values = "";
-            for(double count : counts)
-                values = values + "\t" + String.valueOf(count);
-            System.out.println(pathMapping + "\t" + values);
-            
-            System.err.println("done counting for file: " + pathMapping);
+            final String pathMapping = args[i];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    File mappingFile = new File(pathMapping);
+
+                    // the consumers share the records and the genes overlapping with them
+                    RecordOverlap overlap = new RecordOverlap(annotation, strandSpecific);
+                    SinglePass pass = new SinglePass();
+                    ReadCounter counter = null, biasCounter = null, juncCounter = null;
+                    MappingProcessor processor = null;
+                    if (analyses.contains("count")) {
+                        counter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, sameChrIsEnough);
+                        pass.add(counter.newCountingConsumer(overlap, considerNH, onlyUnique, readCollapse, false));
+                    }
+                    if (analyses.contains("bias")) {
+                        biasCounter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, true, numIntervals);
+                        pass.add(biasCounter.newBiasConsumer(overlap, considerNH, onlyUnique, readCollapse));
+                    }
+                    if (analyses.contains("countjunc")) {
+                        juncCounter = new ReadCounter(mappingFile, annotation, strandSpecific, modeForMultiGenesOverlap, sameChrIsEnough);
+                        pass.add(juncCounter.newJunctionConsumer(considerNH, onlyUnique, readCollapse));
+                    }
+                    if (analyses.contains("info")) {
+                        processor = new MappingProcessor(mappingFile);
+                        pass.add(processor.newInfoConsumer());
+                    }
+                    try (RecordViewReader reader = RecordViewReader.open(mappingFile, numThreadsPerSample)) {
+                        pass.run(reader);
+                    }
+
+                    if (counter != null) {
+                        if (modeForMultiGenesOverlap == 3) {
+                            counter.estimateCountsIteratively(iterationLimit, numThreadsPerSample);
+                        }
+                        try (PrintStream out = new PrintStream(new File(pathMapping + ".count.txt"))) {
+                            out.println("GENE_ID\tLENGTH\t" + pathMapping);
+                            out.println("TOTAL_READS\tNA\t" + (int) counter.getTotalNumReads());
+                            Map<String, Double> count = counter.getCounts();
+                            for (String gene : new TreeSet<>(count.keySet())) {
+                                int geneLength;
+                                if (modeForMultiGenesOverlap == 0) { // abandom ambiguous reads, use exclusive length
+                                    geneLength = strandSpecific == 0 ? annotation.getExclusiveGeneLengthNoStrand(gene) : annotation.getExclusiveGeneLength(gene);
+                                } else {
+                                    geneLength = annotation.getGeneLength(gene);
+                                }
+                                String readNum = modeForMultiGenesOverlap == 1 || modeForMultiGenesOverlap == 3 ? String.valueOf(count.get(gene)) : String.valueOf(count.get(gene).intValue());
+                                out.println(gene + "\t" + geneLength + "\t" + readNum);
+                            }
+                        }
+                    }
+                    if (biasCounter != null) {
+                        try (PrintStream out = new PrintStream(new File(pathMapping + ".bias.txt"))) {
+                            String values = "";
+                            for (double count : biasCounter.getAverageProportionReadsEachInterval(useMedian, lengthCutoff, countCutoff))
+                                values = values + "\t" + String.valueOf(count);
+                            out.println(pathMapping + "\t" + values);
+                        }
+                    }
+                    if (juncCounter != null) {
+                        try (PrintStream out = new PrintStream(new File(pathMapping + ".junc.txt"))) {
+                            out.println("JUNC_CHROM\tJUNC_START\tJUNC_END\tJUNC_STRAND\t" + pathMapping);
+                            out.println("TOTAL_READS\tNA\tNA\tNA\t" + (int) juncCounter.getTotalNumReads());
+                            HashMap<Junction, Double> count = juncCounter.getJunctionCounts();
+                            TreeSet<Junction> sortedJunctions = new TreeSet<>(new Comparator<Junction>() {
+
+                                @Override
+                                public int compare(Junction o1, Junction o2) {
+                                    return o1.compareTo(o2);
+                                }
+                            });
+                            sortedJunctions.addAll(count.keySet());
+                            for (Junction junc : sortedJunctions) {
+                                out.println(junc.getChrom() + "\t" + junc.getStartSite() + "\t" + junc.getEndSite() + "\t" + junc.getStrand() + "\t" + count.get(junc).intValue());
+                            }
+                        }
+                    }
+                    if (processor != null) {
+                        try (PrintStream out = new PrintStream(new File(pathMapping + ".info.txt"))) {
+                            printMappingInfo(out, pathMapping, processor.getMappingInfo());
+                        }
+                    }
+
+                    System.err.println("done " + pathMapping + "\n");
+                    return null;
+                }
+            });
+        }
+        runSamples(tasks, numParallelSamples);
+    }
+    
+    /**
+     * Run the tasks of the input files, with at most the given number of input
+     * files processed at the same time. The tasks only share the loaded
+     * annotation, and each of them saves its own results. With only one file at
+     * a time, the tasks are run one by one in the current thread.
+     * @param tasks The tasks of the input files.
+     * @param numParallelSamples The maximum number of tasks running at the same time.
+     */
+    private static void runSamples(ArrayList<Callable<Void>> tasks, int numParallelSamples){
+        try {
+            if (numParallelSamples <= 1) {
+                for (Callable<Void> task : tasks)
+                    task.call();
+                return;
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(numParallelSamples);
+            ArrayList<Future<Void>> results = new ArrayList<>();
+            for (Callable<Void> task : tasks)
+                results.add(pool.submit(task));
+            pool.shutdown();
+            try {
+                for (Future<Void> result : results)
+                    result.get();
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                throw e;
+            }
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.err.println("ERROR! " + cause + " when processing the input files!\n");
+            System.exit(1);
         }
     }
     
@@ -608,7 +1185,10 @@ public class HiTSeq {
                     + "Options: -h        This help page\n"
                     + "         -u        Only consider reads with NH:i:1, i.e. uniquely mapped reads\n"
                     + "         -f        Do read filtering\n"
-                    + "         -x        Only count reads with specific base of one species\n");
+                    + "         -x        Only count reads with specific base of one species\n"
+                    + "         -T [int]  The number of threads to inflate the BAM input (default: 1), also given as --threads [int]\n"
+                    + "         --reference [file]\n"
+                    + "                   The reference genome in FASTA format, indexed by samtools faidx, to decode CRAM input\n");
             System.exit(0);
         }
         
@@ -650,6 +1230,7 @@ public class HiTSeq {
 
         // demultiplex
         Demultiplexor dm = new Demultiplexor(mappingFile, sites, barcodes, onlyUnique, filterReads);
+        dm.setInflateThreads(parameters.getNumThreads());
         HashMap<String, double[]> results = dm.demultiplex(speciesSpecific);
         System.out.println(Demultiplexor.output(results, null));
     }
@@ -671,10 +1252,10 @@ public class HiTSeq {
             runInfo(args);
         }
         else if(cmd.equalsIgnoreCase("count") || cmd.equalsIgnoreCase("rpkm")){
-            runReadCounting(args);
+            runReadCounting(args, null);
         }
         else if(cmd.equalsIgnoreCase("bias")){
-            runBias(args);
+            runBias(args, null);
         }
         else if(cmd.equalsIgnoreCase("uniq")){
             runUniq(args);
@@ -682,11 +1263,14 @@ public class HiTSeq {
         else if(cmd.equalsIgnoreCase("tostruc")){
             transform2Struc(args);
         }
+        else if(cmd.equalsIgnoreCase("index")){
+            runIndex(args);
+        }
         else if(cmd.equalsIgnoreCase("tojuncs") || cmd.equalsIgnoreCase("toevents")){
             transform4Junction(args);
         }
         else if(cmd.equalsIgnoreCase("countjunc")){
-            runJunctionCounting(args);
+            runJunctionCounting(args, null);
         }
         else if(cmd.equalsIgnoreCase("correct")){
             runProperCorrect(args);
@@ -694,6 +1278,12 @@ public class HiTSeq {
         else if(cmd.equalsIgnoreCase("demultiplex")){
             runDemultiplex(args);
         }
+        else if(cmd.equalsIgnoreCase("qc")){
+            runQC(args);
+        }
+        else if(cmd.equalsIgnoreCase("merge")){
+            runMerge(args);
+        }
         
         else if(cmd.equalsIgnoreCase("test")){ // a command for test only
             runTest(args);
@@ -733,6 +1323,20 @@ public class HiTSeq {
         private boolean onlyExclusive;
         private boolean filterReads;
         private boolean speciesSpecific;
+        private int numThreads = 1;
+        private int numParallelSamples = 0;
+        private double convergenceTolerance = 1e-4;
+        private int queueDepth = RecordPipeline.DEFAULT_QUEUE_DEPTH;
+        private int batchSize = RecordPipeline.DEFAULT_BATCH_SIZE;
+        private int compressionLevel = BAMWriterFactory.DEFAULT_COMPRESSION_LEVEL;
+        private int numWriteThreads = BAMWriterFactory.DEFAULT_NUM_THREADS;
+        private boolean nameGrouped = false;
+        private File targetFile = null;
+        private HashSet<String> analyses = new HashSet<>(java.util.Arrays.asList("count", "bias", "countjunc", "info"));
+        private int shardIndex = 0;
+        private int numShards = 0;
+        private File checkpointDir = null;
+        private File cacheDir = null;
         
         ParameterSet(String cmd){
             firstSAMIndex=1;
@@ -742,7 +1346,7 @@ public class HiTSeq {
                 onlyUnique = false;
                 readCollapse = false;
                 modeForMultiGenesOverlap = 0;
-                iterationLimit = 2;
+                iterationLimit = 1000;
                 annotFormat = "struc";
             } else if(cmd.equalsIgnoreCase("countjunc") || cmd.equalsIgnoreCase("tojuncs") || cmd.equalsIgnoreCase("toevents")){
                 annotFormat = "juncs";
@@ -751,14 +1355,14 @@ public class HiTSeq {
                 onlyUnique = false;
                 readCollapse = false;
                 outputForEvents = false;
-            } else if(cmd.equalsIgnoreCase("tostruc")){
+            } else if(cmd.equalsIgnoreCase("tostruc") || cmd.equalsIgnoreCase("index")){
                 strandSpecific = 0;
                 annotFormat="gtf";
             } else if(cmd.equalsIgnoreCase("correct")){
                 onlyExclusive = false;
                 strandSpecific = 0;
                 annotFormat = "struc";
-            } else if(cmd.equalsIgnoreCase("bias")){
+            } else if(cmd.equalsIgnoreCase("bias") || cmd.equalsIgnoreCase("qc")){
                 strandSpecific = 0;
                 considerNH = false;
                 onlyUnique = false;
@@ -803,6 +1407,54 @@ public class HiTSeq {
             return(iterationLimit);
         }
         
+        double getConvergenceTolerance(){
+            return(convergenceTolerance);
+        }
+        
+        int getQueueDepth(){
+            return(queueDepth);
+        }
+        
+        int getBatchSize(){
+            return(batchSize);
+        }
+        
+        int getCompressionLevel(){
+            return(compressionLevel);
+        }
+        
+        int getNumWriteThreads(){
+            return(numWriteThreads);
+        }
+        
+        boolean getNameGrouped(){
+            return(nameGrouped);
+        }
+        
+        File getTargetFile(){
+            return(targetFile);
+        }
+        
+        HashSet<String> getAnalyses(){
+            return(analyses);
+        }
+        
+        int getShardIndex(){
+            return(shardIndex);
+        }
+        
+        int getNumShards(){
+            return(numShards);
+        }
+        
+        File getCheckpointDir(){
+            return(checkpointDir);
+        }
+        
+        File getCacheDir(){
+            return(cacheDir);
+        }
+        
         String getAnnotFormat(){
             return(annotFormat);
         }
@@ -847,9 +1499,120 @@ public class HiTSeq {
             return speciesSpecific;
         }
         
+        int getNumThreads(){
+            return numThreads;
+        }
+        
+        /**
+         * @param numSamples The number of input files.
+         * @return The number of input files to process at the same time, which is by default the number of threads.
+         */
+        int getNumParallelSamples(int numSamples){
+            int num = numParallelSamples > 0 ? numParallelSamples : numThreads;
+            return Math.max(1, Math.min(num, numSamples));
+        }
+        
         void readCommandLineArgs(String[] args){
             String cmd=args[0];
             while(true){
+                if(args[this.firstSAMIndex].startsWith("--")){
+                    String option=args[this.firstSAMIndex].substring(2);
+                    switch (option) {
+                        case "threads":
+                            this.numThreads=readPositiveInteger(args, "number of threads");
+                            break;
+                        case "parallel-samples":
+                            this.numParallelSamples=readPositiveInteger(args, "number of parallel input files");
+                            break;
+                        case "queue-depth":
+                            this.queueDepth=readPositiveInteger(args, "queue depth", true);
+                            break;
+                        case "batch-size":
+                            this.batchSize=readPositiveInteger(args, "batch size");
+                            break;
+                        case "compression-level":
+                            this.compressionLevel=readPositiveInteger(args, "compression level", true);
+                            if(this.compressionLevel>9){
+                                System.err.println("\nParameter error. The compression level should be int {0,...,9}.\n");
+                                System.exit(0);
+                            }
+                            break;
+                        case "write-threads":
+                            this.numWriteThreads=readPositiveInteger(args, "number of writing threads", true);
+                            break;
+                        case "reference":
+                            // the reference is shared by all the inputs of the command
+                            this.firstSAMIndex++;
+                            File reference = this.firstSAMIndex < args.length ? new File(args[this.firstSAMIndex]) : null;
+                            if(reference == null || !reference.exists()){
+                                System.err.println("\nParameter error. Cannot find the reference genome file.\n");
+                                System.exit(0);
+                            }
+                            SamInputs.setReference(reference);
+                            break;
+                        case "targets":
+                            this.firstSAMIndex++;
+                            this.targetFile = this.firstSAMIndex < args.length ? new File(args[this.firstSAMIndex]) : null;
+                            if(this.targetFile == null || !this.targetFile.exists()){
+                                System.err.println("\nParameter error. Cannot find the file of the target genes.\n");
+                                System.exit(0);
+                            }
+                            break;
+                        case "checkpoint":
+                            this.firstSAMIndex++;
+                            this.checkpointDir = this.firstSAMIndex < args.length ? new File(args[this.firstSAMIndex]) : null;
+                            if(this.checkpointDir == null || this.checkpointDir.exists() && !this.checkpointDir.isDirectory()){
+                                System.err.println("\nParameter error. The checkpoint should be given as a directory.\n");
+                                System.exit(0);
+                            }
+                            break;
+                        case "cache":
+                            this.firstSAMIndex++;
+                            this.cacheDir = this.firstSAMIndex < args.length ? new File(args[this.firstSAMIndex]) : null;
+                            if(this.cacheDir == null || this.cacheDir.exists() && !this.cacheDir.isDirectory()){
+                                System.err.println("\nParameter error. The cache should be given as a directory.\n");
+                                System.exit(0);
+                            }
+                            break;
+                        case "analyses":
+                            this.firstSAMIndex++;
+                            this.analyses = new HashSet<>();
+                            for(String analysis : (this.firstSAMIndex < args.length ? args[this.firstSAMIndex] : "").split(",")){
+                                if(! analysis.equals("count") && ! analysis.equals("bias") && ! analysis.equals("countjunc") && ! analysis.equals("info")){
+                                    System.err.println("\nParameter error. The analyses should be among count, bias, countjunc and info.\n");
+                                    System.exit(0);
+                                }
+                                this.analyses.add(analysis);
+                            }
+                            break;
+                        case "shard":
+                            this.firstSAMIndex++;
+                            String[] shard = this.firstSAMIndex < args.length ? args[this.firstSAMIndex].split("/") : new String[0];
+                            try {
+                                this.shardIndex = Integer.parseInt(shard[0]) - 1;
+                                this.numShards = Integer.parseInt(shard[1]);
+                            } catch (java.lang.NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                                this.numShards = 0;
+                            }
+                            if(shard.length != 2 || this.numShards < 1 || this.shardIndex < 0 || this.shardIndex >= this.numShards){
+                                System.err.println("\nParameter error. The shard should be given as i/N, with 1 <= i <= N.\n");
+                                System.exit(0);
+                            }
+                            break;
+                        case "name-grouped":
+                            this.nameGrouped=true;
+                            break;
+                        case "tolerance":
+                            this.convergenceTolerance=readPositiveDouble(args, "convergence tolerance");
+                            break;
+                        default:
+                            System.err.println("\nParameter error. No parameter "+option+"\n");
+                            break;
+                    }
+                    System.err.println("option added: '"+option+"'");
+                    firstSAMIndex++;
+                    continue;
+                }
                 java.util.regex.Pattern pattern=java.util.regex.Pattern.compile("^-");
                 java.util.regex.Matcher matcher=pattern.matcher(args[this.firstSAMIndex]);
                 if(matcher.find()){
@@ -936,7 +1699,7 @@ public class HiTSeq {
                                         System.err.println("\nParameter error. The mode should be one of \"juncs\", \"gtf\", \"bed\", \"bam\" and \"events\".\n");
                                         System.exit(0);
                                     } 
-                                } else if (cmd.equalsIgnoreCase("count") || cmd.equalsIgnoreCase("rpkm") || cmd.equalsIgnoreCase("tostruc") || cmd.equalsIgnoreCase("correct")) {
+                                } else if (cmd.equalsIgnoreCase("count") || cmd.equalsIgnoreCase("rpkm") || cmd.equalsIgnoreCase("tostruc") || cmd.equalsIgnoreCase("index") || cmd.equalsIgnoreCase("correct") || cmd.equalsIgnoreCase("qc")) {
                                     if ((!this.annotFormat.equalsIgnoreCase("gtf")) && (!this.annotFormat.equalsIgnoreCase("gff3")) && (!this.annotFormat.equalsIgnoreCase("bed")) && (!this.annotFormat.equalsIgnoreCase("struc"))) {
                                         System.err.println("\nParameter error. The mode should be one of \"struc\", \"gtf\" and \"bed\".\n");
                                         System.exit(0);
@@ -950,7 +1713,7 @@ public class HiTSeq {
                                 filterReads = true;
                                 break;
                             case "e":
-                                if(cmd.equalsIgnoreCase("bias")){
+                                if(cmd.equalsIgnoreCase("bias") || cmd.equalsIgnoreCase("qc")){
                                     idx=optionsString.indexOf("e");
                                     if(idx<optionsString.length()-1){
                                         System.err.println("\nParameter error. The average mode needs to be given.\n");
@@ -1024,6 +1787,14 @@ public class HiTSeq {
                                     System.exit(0);
                                 }
                                 break;
+                            case "T":
+                                idx=optionsString.indexOf("T");
+                                if (idx < optionsString.length() - 1) {
+                                    System.err.println("\nParameter error. The number of threads needs to be given.\n");
+                                    System.exit(0);
+                                }
+                                this.numThreads = readPositiveInteger(args, "number of threads");
+                                break;
                             default:
                                 System.err.println("\nParameter error. No parameter "+option+"\n");
                                 break;
@@ -1035,7 +1806,44 @@ public class HiTSeq {
                 else
                     break;
             }
+            if(numShards > 0 && (targetFile != null || nameGrouped)){
+                System.err.println("\nParameter error. The shards need the input sorted by coordinate, and cannot be used with --targets or --name-grouped.\n");
+                System.exit(0);
+            }
+        }
+        
+        private int readPositiveInteger(String[] args, String name){
+            return readPositiveInteger(args, name, false);
+        }
+        
+        private int readPositiveInteger(String[] args, String name, boolean zeroAllowed){
+            this.firstSAMIndex++;
+            int value = -1;
+            try {
+                value = Integer.parseInt(args[this.firstSAMIndex]);
+            } catch (java.lang.NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                value = -1;
+            }
+            if (value < (zeroAllowed ? 0 : 1)) {
+                System.err.println("\nParameter error. The " + name + " should be " + (zeroAllowed ? "non-negative" : "positive") + " integer.\n");
+                System.exit(0);
+            }
+            return value;
+        }
+        
+        private double readPositiveDouble(String[] args, String name){
+            this.firstSAMIndex++;
+            double value = 0;
+            try {
+                value = Double.parseDouble(args[this.firstSAMIndex]);
+            } catch (java.lang.NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                value = 0;
+            }
+            if (!(value > 0)) {
+                System.err.println("\nParameter error. The " + name + " should be positive number.\n");
+                System.exit(0);
+            }
+            return value;
         }
     }
 }
-
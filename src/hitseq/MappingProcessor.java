@@ -13,6 +13,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.regex.*;
 import hitseq.annotation.*;
+import hitseq.bam.BAMRecordView;
+import hitseq.bam.BAMWriterFactory;
+import hitseq.bam.RecordViewReader;
+import hitseq.bam.SamInputs;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
@@ -24,6 +28,8 @@ import java.nio.file.Files;
 public class MappingProcessor {
     private File inputFile;
     private ArrayList<Integer> info;
+    private BAMWriterFactory writerFactory;
+    private int inflateThreads=1;
     
     public MappingProcessor(File file){
         if(! file.exists()){
@@ -32,6 +38,26 @@ public class MappingProcessor {
         }
         this.inputFile=file;
         info=new ArrayList<>();
+        writerFactory=new BAMWriterFactory();
+    }
+    
+    /**
+     * FunName: setWriterOptions.
+     * Description: Set how the output BAM files are compressed. The intermediate BAM files use the fast compression, unless the given level is lower.
+     * @param compressionLevel The deflate level, from 0 to 9.
+     * @param numThreads The number of threads to compress the BAM files, 0 to compress them in the writing thread.
+     */
+    void setWriterOptions(int compressionLevel, int numThreads){
+        writerFactory=new BAMWriterFactory(compressionLevel, numThreads);
+    }
+    
+    /**
+     * FunName: setInflateThreads.
+     * Description: Set the number of threads to inflate the input BAM file when collecting the information.
+     * @param numThreads The number of threads, 0 to inflate the file in the reading thread.
+     */
+    void setInflateThreads(int numThreads){
+        inflateThreads=numThreads;
     }
     
     ArrayList<Integer> getMappingInfo(){
@@ -42,71 +68,92 @@ public class MappingProcessor {
     }
     
     void collectMappingInformation(){
-        HashMap<String, Integer> numTimesOfReads=new HashMap<>();
-        java.util.HashSet<String> unmappedReads=new java.util.HashSet<>();
-        HashMap<Integer, ArrayList<String>> readsWithMismatches=new HashMap<>();
-            
-        try (SamReader inputSam = SamReaderFactory.makeDefault().open(inputFile)) {
-            for(SAMRecord record : inputSam){
-                String readName=record.getReadName();
-                
-                if(numTimesOfReads.containsKey(readName))
-                    numTimesOfReads.put(readName, numTimesOfReads.get(readName)+1);
-                else
-                    numTimesOfReads.put(readName, 1);
-                
-                if(record.getReadUnmappedFlag() || (record.getReadPairedFlag() && ! record.getProperPairFlag()))
-                    unmappedReads.add(readName);
-                else{
-                    if(record.getIntegerAttribute("NM")!=null){
-                        int numMismatches=record.getIntegerAttribute("NM");
-                        if(!readsWithMismatches.containsKey(numMismatches))
-                            readsWithMismatches.put(numMismatches, new ArrayList<String>());
-                        readsWithMismatches.get(numMismatches).add(readName);
-                    } else if(record.getIntegerAttribute("nM")!=null){
-                        int numMismatches=record.getIntegerAttribute("nM");
-                        if(!readsWithMismatches.containsKey(numMismatches))
-                            readsWithMismatches.put(numMismatches, new ArrayList<String>());
-                        readsWithMismatches.get(numMismatches).add(readName);
-                    }
-                }
-                
-                if(numTimesOfReads.size()%1000000==0)
-                    System.err.println("finish reading "+numTimesOfReads.size()+" reads.");
-            }
-            inputSam.close();
+        try (RecordViewReader reader = RecordViewReader.open(inputFile, inflateThreads)) {
+            new SinglePass(newInfoConsumer()).run(reader);
         } catch(Exception e){
             System.err.println(e);
         }
+    }
+    
+    /**
+     * FunName: newInfoConsumer.
+     * Description: Get the collection of the mapping information as a consumer of the records, e.g. to share one pass through the file with other analyses.
+     */
+    RecordConsumer newInfoConsumer(){
+        return new InfoConsumer();
+    }
+    
+    /**
+     * The numbers of reads, mapped reads, uniquely mapped reads and reads with each number of mismatches.
+     */
+    private class InfoConsumer implements RecordConsumer {
+        private final HashMap<String, Integer> numTimesOfReads=new HashMap<>();
+        private final java.util.HashSet<String> unmappedReads=new java.util.HashSet<>();
+        private final HashMap<Integer, ArrayList<String>> readsWithMismatches=new HashMap<>();
+        
+        @Override
+        public void start(SAMFileHeader header){
+            info.clear();
+        }
         
-        int numTotalReads=numTimesOfReads.keySet().size();
-        int numUnmappedReads=unmappedReads.size();
-        int numMappedReads=numTotalReads-numUnmappedReads;
-        int numUniquelyMapped=0;
-        for(String read : numTimesOfReads.keySet())
-            if(numTimesOfReads.get(read).equals(1) && ! unmappedReads.contains(read))
-                numUniquelyMapped++;
-        info.add(numTotalReads);
-        info.add(numMappedReads);
-        info.add(numUniquelyMapped);
+        @Override
+        public void accept(BAMRecordView record){
+            String readName=record.getReadName();
+            
+            if(numTimesOfReads.containsKey(readName))
+                numTimesOfReads.put(readName, numTimesOfReads.get(readName)+1);
+            else
+                numTimesOfReads.put(readName, 1);
+            
+            if(record.getReadUnmappedFlag() || (record.getReadPairedFlag() && ! record.getProperPairFlag()))
+                unmappedReads.add(readName);
+            else{
+                Integer nm=record.getIntegerAttribute("NM");
+                if(nm==null)
+                    nm=record.getIntegerAttribute("nM");
+                if(nm!=null){
+                    int numMismatches=nm;
+                    if(!readsWithMismatches.containsKey(numMismatches))
+                        readsWithMismatches.put(numMismatches, new ArrayList<String>());
+                    readsWithMismatches.get(numMismatches).add(readName);
+                }
+            }
+            
+            if(numTimesOfReads.size()%1000000==0)
+                System.err.println("finish reading "+numTimesOfReads.size()+" reads.");
+        }
         
-        java.util.TreeSet<Integer> sortedMismatchesNum=new java.util.TreeSet<>(new java.util.Comparator<Integer>() {
-            @Override
-            public int compare(Integer o1, Integer o2) {
-                return o1.compareTo(o2);
+        @Override
+        public void finish(){
+            int numTotalReads=numTimesOfReads.keySet().size();
+            int numUnmappedReads=unmappedReads.size();
+            int numMappedReads=numTotalReads-numUnmappedReads;
+            int numUniquelyMapped=0;
+            for(String read : numTimesOfReads.keySet())
+                if(numTimesOfReads.get(read).equals(1) && ! unmappedReads.contains(read))
+                    numUniquelyMapped++;
+            info.add(numTotalReads);
+            info.add(numMappedReads);
+            info.add(numUniquelyMapped);
+            
+            java.util.TreeSet<Integer> sortedMismatchesNum=new java.util.TreeSet<>(new java.util.Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return o1.compareTo(o2);
+                }
+            });
+            for(Integer numMistaches : readsWithMismatches.keySet())
+                sortedMismatchesNum.add(numMistaches);
+            for (Iterator<Integer> it = sortedMismatchesNum.iterator(); it.hasNext();) {
+                Integer numMismatches=it.next();
+                int numReadsWithThisNum=readsWithMismatches.get(numMismatches).size();
+                int numReadsWithThisNumUniq=0;
+                for(String read : readsWithMismatches.get(numMismatches))
+                    if(numTimesOfReads.get(read).equals(1))
+                        numReadsWithThisNumUniq++;
+                info.add(numReadsWithThisNum);
+                info.add(numReadsWithThisNumUniq);
             }
-        });
-        for(Integer numMistaches : readsWithMismatches.keySet())
-            sortedMismatchesNum.add(numMistaches);
-        for (Iterator<Integer> it = sortedMismatchesNum.iterator(); it.hasNext();) {
-            Integer numMismatches=it.next();
-            int numReadsWithThisNum=readsWithMismatches.get(numMismatches).size();
-            int numReadsWithThisNumUniq=0;
-            for(String read : readsWithMismatches.get(numMismatches))
-                if(numTimesOfReads.get(read).equals(1))
-                    numReadsWithThisNumUniq++;
-            info.add(numReadsWithThisNum);
-            info.add(numReadsWithThisNumUniq);
         }
     }
     
@@ -115,8 +162,8 @@ public class MappingProcessor {
         if(attemptNH){
             System.err.println("Attempting to use the NH tag...");
             int numUnique=0;
-            SamReader inputSam=SamReaderFactory.makeDefault().open(inputFile);
-            try (SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(inputSam.getFileHeader(), true, output)) {
+            SamReader inputSam=SamInputs.open(inputFile);
+            try (SAMFileWriter outputSam = writerFactory.makeSAMOrBAMWriter(inputSam.getFileHeader(), true, output)) {
                 for(SAMRecord record : inputSam){
                     if(record.getReadPairedFlag() || record.getIntegerAttribute("NH")==null){
                         System.err.println("NH attemption failed: The input SAM/BAM file is paired-ended or contains no NH tag.");
@@ -144,14 +191,14 @@ public class MappingProcessor {
             System.err.println("Start sorting by QueryName...");
             boolean tempGenerated=true;
             File tempFile=new File(System.getProperty("java.io.tmpdir")+"/tmp_sorting.bam");
-            SamReader inputSam=SamReaderFactory.makeDefault().open(inputFile);
+            SamReader inputSam=SamInputs.open(inputFile);
             if(inputSam.getFileHeader().getSortOrder().equals(SAMFileHeader.SortOrder.queryname)){
                 tempFile=inputFile;
                 tempGenerated=false;
             } else{ // only do the sorting when the input is not sorted by read name
                 inputSam.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.queryname);
 
-                try (SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(inputSam.getFileHeader(), false, tempFile)) {
+                try (SAMFileWriter outputSam = writerFactory.forTemporaryFiles().makeSAMOrBAMWriter(inputSam.getFileHeader(), false, tempFile)) {
                     for (SAMRecord record : inputSam) {
                         outputSam.addAlignment(record);
                     }
@@ -166,9 +213,9 @@ public class MappingProcessor {
             
             // second, extract the uniquely mapped reads or pairs of reads and then re-sort them into sorted-by-coordinate
             System.err.println("Start extraction...");
-            inputSam=SamReaderFactory.makeDefault().open(tempFile);
+            inputSam=SamInputs.open(tempFile);
             inputSam.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
-            try (SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(inputSam.getFileHeader(), false, output);
+            try (SAMFileWriter outputSam = writerFactory.makeSAMOrBAMWriter(inputSam.getFileHeader(), false, output);
                     SAMRecordIterator iterator=inputSam.iterator()) {
                 boolean paired=false;
                 String readName=null; // the name of the last read
@@ -274,8 +321,8 @@ public class MappingProcessor {
         HashMap<String, Integer> numHits = new HashMap<>(); // for single-ended RNA-seq without NH tag
         HashMap<String, HashSet<String>> properPairs = new HashMap<>(); // for paired-ended RNA-seq
         
-        SamReader inputSam=SamReaderFactory.makeDefault().open(inputFile);
-        SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(inputSam.getFileHeader(), true, output);
+        SamReader inputSam=SamInputs.open(inputFile);
+        SAMFileWriter outputSam = writerFactory.makeSAMOrBAMWriter(inputSam.getFileHeader(), true, output);
         
         try(SAMRecordIterator iterator=inputSam.iterator()){
             while(iterator.hasNext()) {
@@ -325,7 +372,7 @@ public class MappingProcessor {
             System.err.println("Start re-scanning the SAM/BAM file...");
             if(! paired){
                 CloserUtil.close(inputSam);
-                inputSam = SamReaderFactory.makeDefault().open(inputFile);
+                inputSam = SamInputs.open(inputFile);
                 for (SAMRecord record : inputSam) {
                     if (numHits.get(record.getReadName()) == 1) {
                         record.setAttribute("NH", 1);
@@ -335,7 +382,7 @@ public class MappingProcessor {
                 }
             } else{
                 CloserUtil.close(inputSam);
-                inputSam = SamReaderFactory.makeDefault().open(inputFile);
+                inputSam = SamInputs.open(inputFile);
                 for (SAMRecord record : inputSam){
                     String id=record.getReadName();
                     id=id.replaceAll("{1,2}$", "");
@@ -370,15 +417,15 @@ public class MappingProcessor {
         boolean isPaired=true;
         int numCorrected = 0;
         
-        SamReader inputSam=SamReaderFactory.makeDefault().open(inputFile);
+        SamReader inputSam=SamInputs.open(inputFile);
         try{
             SAMFileHeader headerProper=inputSam.getFileHeader();
             headerProper.setSortOrder(SAMFileHeader.SortOrder.queryname);
-            SAMFileWriter properSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(headerProper, false, tempFileProper);
-            SAMFileWriter otherSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(headerProper, false, tempFileOther);
+            SAMFileWriter properSam = writerFactory.forTemporaryFiles().makeSAMOrBAMWriter(headerProper, false, tempFileProper);
+            SAMFileWriter otherSam = writerFactory.forTemporaryFiles().makeSAMOrBAMWriter(headerProper, false, tempFileOther);
             SAMFileHeader headerImproper=inputSam.getFileHeader();
             headerImproper.setSortOrder(SAMFileHeader.SortOrder.coordinate);
-            SAMFileWriter improperSam = new SAMFileWriterFactory().makeBAMWriter(headerImproper, false, tempFileImproper);
+            SAMFileWriter improperSam = writerFactory.forTemporaryFiles().makeBAMWriter(headerImproper, false, tempFileImproper);
             SAMRecordIterator iterator=inputSam.iterator();
             int numImproper = 0;
             
@@ -404,15 +451,17 @@ public class MappingProcessor {
             CloserUtil.close(otherSam);
             
             if(isPaired && numImproper>0){
-                SAMFileWriter outputCorrectedSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(headerProper, false, tempFileImproperCorrected);
-                inputSam = SamReaderFactory.makeDefault().open(tempFileImproper);
+                SAMFileWriter outputCorrectedSam = writerFactory.forTemporaryFiles().makeSAMOrBAMWriter(headerProper, false, tempFileImproperCorrected);
+                inputSam = SamInputs.open(tempFileImproper);
                 iterator = inputSam.iterator();
                 int recordNum = 0;
                 
                 // 1st scan the improper reads, determine the additional proper pairs
-                HashMap<String, ArrayList<ArrayList<String>>> readGenes=new HashMap<>();
+                HashMap<String, ArrayList<int[]>> readGenes=new HashMap<>();
                 HashMap<String, ArrayList<Integer>> readIdx=new HashMap<>();
                 HashSet<Integer> properReadIdx = new HashSet<>();
+                OverlapEngine engine = new OverlapEngine(annotation);
+                GeneHits hits = new GeneHits();
                 while(iterator.hasNext()){
                     SAMRecord record = iterator.next();
                     SAMRecordProcessor proccessor = new SAMRecordProcessor(record, annotation);
@@ -420,14 +469,12 @@ public class MappingProcessor {
                     String mateID = proccessor.recordMateToString()+"|"+Boolean.toString(! record.getFirstOfPairFlag());
                     
                     if(readIdx.containsKey(mateID)){
-                        ArrayList<String> genesThis = proccessor.getOverlapGenes(stranded);
-                        ArrayList<String> genesMate = readGenes.get(mateID).get(0);
-                        HashSet<String> allGenes=new HashSet<>();
-                        for(String gene : genesThis)
-                            allGenes.add(gene);
-                        for(String gene : genesMate)
-                            allGenes.add(gene);
-                        if(allGenes.size() < genesThis.size()+genesMate.size()  // have overlapping genes
+                        engine.getOverlapGenes(record, stranded, hits);
+                        int[] genesMate = readGenes.get(mateID).get(0);
+                        boolean shareGene = false;
+                        for(int gene : genesMate)
+                            shareGene = shareGene || hits.contains(gene);
+                        if(shareGene  // have overlapping genes
                                 && (!(record.getReadNegativeStrandFlag() && record.getMateNegativeStrandFlag()))){ // one forward one reverse
                             properReadIdx.add(recordNum);
                             properReadIdx.add(readIdx.get(mateID).get(0));
@@ -447,9 +494,10 @@ public class MappingProcessor {
                             readIdx.put(recordID, new ArrayList<Integer>());
                         readIdx.get(recordID).add(recordNum);
                         
-                        ArrayList<String> genes = proccessor.getOverlapGenes(stranded);
+                        engine.getOverlapGenes(record, stranded, hits);
+                        int[] genes = hits.toArray();
                         if(! readGenes.containsKey(recordID))
-                            readGenes.put(recordID, new ArrayList<ArrayList<String>>());
+                            readGenes.put(recordID, new ArrayList<int[]>());
                         readGenes.get(recordID).add(genes);
                     }
                     
@@ -476,10 +524,10 @@ public class MappingProcessor {
             }
             
             // output the corrected SAM files and sort by queryname 
-            SamReader inputProper = SamReaderFactory.makeDefault().open(tempFileProper);
-            SamReader inputImproperCorrected = SamReaderFactory.makeDefault().open(tempFileImproperCorrected);
-            SamReader inputOther = SamReaderFactory.makeDefault().open(tempFileOther);
-            SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(headerProper, false, output);
+            SamReader inputProper = SamInputs.open(tempFileProper);
+            SamReader inputImproperCorrected = SamInputs.open(tempFileImproperCorrected);
+            SamReader inputOther = SamInputs.open(tempFileOther);
+            SAMFileWriter outputSam = writerFactory.makeSAMOrBAMWriter(headerProper, false, output);
             for(SAMRecord record : inputProper)
                 outputSam.addAlignment(record);
             for(SAMRecord record : inputImproperCorrected)
@@ -0,0 +1,316 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.bam.BAMRecordView;
+import java.util.Arrays;
+
+/**
+ * The buffer of the first segments of read pairs waiting for their second
+ * segments, for the records sorted by coordinate. A pair is identified by a
+ * 64-bit hash of the read name (without the "/1" or "/2" suffix), the
+ * chromosome and the alignment start of the second segment, and the value
+ * kept for it is a gene set ID of the segment map of the annotation. Both are
+ * stored in primitive arrays of an open-addressing hash table.
+ *
+ * Once the records have passed the alignment start of the second segment
+ * without finding it, e.g. because the second segment was filtered out, the
+ * entry can never be used and is evicted. The size of the buffer is therefore
+ * bounded by the pairs spanning the current position, rather than growing
+ * with the input file.
+ */
+public class MateBuffer {
+    private static final long EMPTY = 0L;
+
+    // the hash table
+    private long[] keys;
+    private int[] values;
+    private long[] positions;
+    private int size;
+
+    // the min-heap of the mate positions, to find the entries to evict
+    private long[] heapPositions;
+    private long[] heapKeys;
+    private int heapSize;
+
+    private long numEvicted;
+
+    public MateBuffer(){
+        keys=new long[64];
+        values=new int[64];
+        positions=new long[64];
+        size=0;
+        heapPositions=new long[64];
+        heapKeys=new long[64];
+        heapSize=0;
+        numEvicted=0;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return The number of entries evicted because their second segments never came.
+     */
+    public long getNumEvicted(){
+        return numEvicted;
+    }
+
+    /**
+     * FunName: toPosition.
+     * Description: Combine the reference index and the coordinate into one long which is ordered in the same way as the sorted records.
+     */
+    public static long toPosition(int refIndex, int position){
+        return ((long) refIndex << 32) | (position & 0xffffffffL);
+    }
+
+    /**
+     * FunName: getPairNameLength.
+     * Description: Get the length of the read name without the suffix "/1" or "/2" (or similar, i.e. a non-word character followed by 1 or 2),
+     * so that the two segments of a pair share the same name.
+     */
+    static int getPairNameLength(CharSequence readName){
+        int length=readName.length();
+        if(length >= 2){
+            char last=readName.charAt(length-1);
+            char separator=readName.charAt(length-2);
+            if((last=='1' || last=='2') && ! (Character.isLetterOrDigit(separator) && separator < 128 || separator=='_'))
+                return length-1;
+        }
+        return length;
+    }
+
+    /**
+     * FunName: getPairKey.
+     * Description: The 64-bit hash of the pair name, the chromosome and the alignment start of the second segment.
+     * @param readName The name of either segment of the pair.
+     * @param refIndex The reference index of the second segment.
+     * @param alignmentStart The alignment start of the second segment.
+     * @return The key of the pair, which is never 0.
+     */
+    public static long getPairKey(CharSequence readName, int refIndex, int alignmentStart){
+        long hash=0xcbf29ce484222325L; // FNV-1a
+        for(int i=0, length=getPairNameLength(readName); i<length; i++){
+            hash^=readName.charAt(i);
+            hash*=0x100000001b3L;
+        }
+        hash^=toPosition(refIndex, alignmentStart)*0x9e3779b97f4a7c15L;
+        hash^=hash>>>33; // the finalizer of MurmurHash3
+        hash*=0xff51afd7ed558ccdL;
+        hash^=hash>>>33;
+        hash*=0xc4ceb9fe1a85ec53L;
+        hash^=hash>>>33;
+        return hash==EMPTY ? 1 : hash;
+    }
+
+    /**
+     * FunName: putFirstSegment.
+     * Description: Save the gene set of the first segment of a pair, to be combined with the one of the second segment.
+     * @param record The first segment.
+     * @param geneSet The ID of the gene set of the first segment.
+     */
+    public void putFirstSegment(BAMRecordView record, int geneSet){
+        put(getPairKey(record.getReadNameSequence(), record.getMateReferenceIndex(), record.getMateAlignmentStart()), toPosition(record.getMateReferenceIndex(), record.getMateAlignmentStart()), geneSet);
+    }
+
+    /**
+     * FunName: removeFirstSegment.
+     * Description: Get and remove the gene set of the first segment of the given second segment.
+     * @param record The second segment.
+     * @return The ID of the gene set of the first segment, or -1 if it is not in the buffer.
+     */
+    public int removeFirstSegment(BAMRecordView record){
+        return remove(getPairKey(record.getReadNameSequence(), record.getReferenceIndex(), record.getAlignmentStart()));
+    }
+
+    public void put(long key, long matePosition, int value){
+        if((size+1)*2 > keys.length)
+            resize(keys.length*2);
+        int slot=findSlot(key);
+        if(keys[slot]==EMPTY){
+            keys[slot]=key;
+            size++;
+            pushHeap(matePosition, key);
+        }
+        values[slot]=value;
+        positions[slot]=matePosition;
+    }
+
+    /**
+     * FunName: remove.
+     * @return The value of the key, or -1 if the key is not in the buffer.
+     */
+    public int remove(long key){
+        int slot=findSlot(key);
+        if(keys[slot]==EMPTY)
+            return -1;
+        int value=values[slot];
+        deleteSlot(slot);
+        return value;
+    }
+
+    /**
+     * FunName: evictBefore.
+     * Description: Remove the entries whose second segments should have been located in front of the given position.
+     * @param position The position of the current record, given by toPosition.
+     * @return The number of evicted entries.
+     */
+    public int evictBefore(long position){
+        int evicted=0;
+        while(heapSize > 0 && heapPositions[0] < position){
+            long key=heapKeys[0];
+            long matePosition=heapPositions[0];
+            popHeap();
+            int slot=findSlot(key);
+            if(keys[slot]!=EMPTY && positions[slot]==matePosition){
+                deleteSlot(slot);
+                evicted++;
+            }
+        }
+        numEvicted+=evicted;
+        return evicted;
+    }
+
+    /**
+     * FunName: evictAll.
+     * Description: Remove all the remaining entries, e.g. at the end of the input.
+     * @return The number of evicted entries.
+     */
+    public int evictAll(){
+        return evictBefore(Long.MAX_VALUE);
+    }
+
+    /**
+     * FunName: moveTo.
+     * Description: Move all the entries of this buffer to another buffer, e.g. when merging the shards.
+     * @param that The buffer to receive the entries.
+     */
+    public void moveTo(MateBuffer that){
+        for(int slot=0; slot<keys.length; slot++)
+            if(keys[slot]!=EMPTY)
+                that.put(keys[slot], positions[slot], values[slot]);
+        that.numEvicted+=numEvicted;
+        Arrays.fill(keys, EMPTY);
+        size=0;
+        heapSize=0;
+        numEvicted=0;
+    }
+
+    /**
+     * FunName: getKeys.
+     * Description: Get the keys of all the entries, e.g. to write the first segments whose mates are in other shards.
+     * @return A copy of the keys.
+     */
+    public long[] getKeys(){
+        long[] liveKeys=new long[size];
+        for(int slot=0, i=0; slot<keys.length; slot++)
+            if(keys[slot]!=EMPTY)
+                liveKeys[i++]=keys[slot];
+        return liveKeys;
+    }
+
+    /**
+     * @return The value of the key, or -1 if the key is not in the buffer.
+     */
+    public int get(long key){
+        int slot=findSlot(key);
+        return keys[slot]==EMPTY ? -1 : values[slot];
+    }
+
+    /**
+     * @return The mate position of the key given by toPosition, or -1 if the key is not in the buffer.
+     */
+    public long getMatePosition(long key){
+        int slot=findSlot(key);
+        return keys[slot]==EMPTY ? -1 : positions[slot];
+    }
+
+    /**
+     * FunName: addNumEvicted.
+     * Description: Add the entries evicted elsewhere, e.g. in the partial results of other machines.
+     */
+    public void addNumEvicted(long numEvicted){
+        this.numEvicted+=numEvicted;
+    }
+
+    private int findSlot(long key){
+        int mask=keys.length-1;
+        int slot=(int) key & mask;
+        while(keys[slot]!=EMPTY && keys[slot]!=key)
+            slot=(slot+1) & mask;
+        return slot;
+    }
+
+    private void deleteSlot(int slot){
+        // backward-shift deletion, so that no tombstone is needed in the linear probing
+        int mask=keys.length-1;
+        int hole=slot;
+        for(int next=(hole+1) & mask; keys[next]!=EMPTY; next=(next+1) & mask){
+            int home=(int) keys[next] & mask;
+            if(((next-home) & mask) >= ((next-hole) & mask)){
+                keys[hole]=keys[next];
+                values[hole]=values[next];
+                positions[hole]=positions[next];
+                hole=next;
+            }
+        }
+        keys[hole]=EMPTY;
+        size--;
+    }
+
+    private void resize(int capacity){
+        long[] oldKeys=keys;
+        int[] oldValues=values;
+        long[] oldPositions=positions;
+        keys=new long[capacity];
+        values=new int[capacity];
+        positions=new long[capacity];
+        for(int i=0; i<oldKeys.length; i++)
+            if(oldKeys[i]!=EMPTY){
+                int slot=findSlot(oldKeys[i]);
+                keys[slot]=oldKeys[i];
+                values[slot]=oldValues[i];
+                positions[slot]=oldPositions[i];
+            }
+    }
+
+    private void pushHeap(long position, long key){
+        if(heapSize==heapPositions.length){
+            heapPositions=Arrays.copyOf(heapPositions, heapSize*2);
+            heapKeys=Arrays.copyOf(heapKeys, heapSize*2);
+        }
+        int i=heapSize++;
+        while(i > 0){
+            int parent=(i-1)/2;
+            if(heapPositions[parent] <= position)
+                break;
+            heapPositions[i]=heapPositions[parent];
+            heapKeys[i]=heapKeys[parent];
+            i=parent;
+        }
+        heapPositions[i]=position;
+        heapKeys[i]=key;
+    }
+
+    private void popHeap(){
+        heapSize--;
+        long position=heapPositions[heapSize];
+        long key=heapKeys[heapSize];
+        int i=0;
+        while(2*i+1 < heapSize){
+            int child=2*i+1;
+            if(child+1 < heapSize && heapPositions[child+1] < heapPositions[child])
+                child++;
+            if(heapPositions[child] >= position)
+                break;
+            heapPositions[i]=heapPositions[child];
+            heapKeys[i]=heapKeys[child];
+            i=child;
+        }
+        heapPositions[i]=position;
+        heapKeys[i]=key;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.annotation.Annotation;
+import hitseq.annotation.AnnotationCursor;
+import hitseq.annotation.GeneHits;
+import hitseq.annotation.SegmentMap;
+import hitseq.bam.BAMRecordView;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+import java.util.Arrays;
+
+/**
+ * Find the genes whose exons are overlapping with the reads, by resolving the
+ * aligned blocks against the exonic segment map of the annotation. The
+ * lookup is a forward sweep for the reads sorted by coordinate and a binary
+ * search otherwise. One engine is kept by each reader and used for all
+ * its records: the alignment blocks are read from the CIGAR into reusable int
+ * arrays, and the hits are written to a GeneHits buffer given by the caller,
+ * so that no object is created per record.
+ */
+public class OverlapEngine {
+    private final Annotation annotation;
+    private final AnnotationCursor cursor;
+    private int[] blockStarts;
+    private int[] blockEnds;
+    private int numBlocks;
+    
+    public OverlapEngine(Annotation annotation){
+        this(new AnnotationCursor(annotation));
+    }
+    
+    public OverlapEngine(AnnotationCursor cursor){
+        this.cursor=cursor;
+        this.annotation=cursor.getAnnotation();
+        blockStarts=new int[8];
+        blockEnds=new int[8];
+        numBlocks=0;
+    }
+    
+    public Annotation getAnnotation(){
+        return annotation;
+    }
+    
+    /**
+     * FunName: readBlocks.
+     * Description: Read the aligned blocks of the record from its CIGAR. Deletions and skipped regions split the blocks.
+     * @param record The SAM record.
+     * @return The number of blocks.
+     */
+    private int readBlocks(SAMRecord record){
+        numBlocks=0;
+        Cigar cigar=record.getCigar();
+        int refPos=record.getAlignmentStart();
+        for(int i=0; i<cigar.numCigarElements(); i++){
+            CigarElement element=cigar.getCigarElement(i);
+            CigarOperator operator=element.getOperator();
+            int length=element.getLength();
+            refPos=addBlock(operator, length, refPos);
+        }
+        return numBlocks;
+    }
+    
+    /**
+     * FunName: readBlocks.
+     * Description: The same as readBlocks for SAMRecord, reading the CIGAR from the raw BAM record.
+     */
+    private int readBlocks(BAMRecordView record){
+        numBlocks=0;
+        int refPos=record.getAlignmentStart();
+        for(int i=0; i<record.getNumCigarElements(); i++)
+            refPos=addBlock(record.getCigarOperator(i), record.getCigarLength(i), refPos);
+        return numBlocks;
+    }
+    
+    private int addBlock(CigarOperator operator, int length, int refPos){
+        if(operator==CigarOperator.M || operator==CigarOperator.EQ || operator==CigarOperator.X){
+            if(numBlocks==blockStarts.length){
+                blockStarts=Arrays.copyOf(blockStarts, numBlocks*2);
+                blockEnds=Arrays.copyOf(blockEnds, numBlocks*2);
+            }
+            blockStarts[numBlocks]=refPos;
+            blockEnds[numBlocks]=refPos+length-1;
+            numBlocks++;
+            return refPos+length;
+        } else if(operator==CigarOperator.D || operator==CigarOperator.N){
+            return refPos+length;
+        }
+        return refPos;
+    }
+    
+    /**
+     * FunName: getGeneStrand.
+     * Description: Get the strand class of the genes which the record may come from given the strandedness.
+     * A gene at the same strand as the read must be at exactly that strand, while a gene at the opposite strand only has to be at a different strand,
+     * so that the genes with an unknown strand, e.g. "*", are only assigned with the reads expected at the opposite strand, as by the strand comparison of SAMRecordProcessor.
+     * @return SegmentMap.ANY_STRAND, PLUS_STRAND, MINUS_STRAND, NOT_PLUS_STRAND or NOT_MINUS_STRAND, or -1 if no gene is allowed, i.e. a paired record which is neither the first nor the second segment in strand-specific mode.
+     */
+    private static int getGeneStrand(int flags, int strandSpecific){
+        if(strandSpecific==0)
+            return SegmentMap.ANY_STRAND;
+        boolean sameStrand=strandSpecific==1;
+        boolean first=(flags & SAMFlag.FIRST_OF_PAIR.intValue())!=0;
+        if((flags & SAMFlag.READ_PAIRED.intValue())!=0){
+            if((flags & SAMFlag.SECOND_OF_PAIR.intValue())!=0 && ! first)
+                sameStrand=! sameStrand;
+            else if(! first)
+                return -1;
+        }
+        boolean reverse=(flags & SAMFlag.READ_REVERSE_STRAND.intValue())!=0;
+        if(sameStrand)
+            return reverse ? SegmentMap.MINUS_STRAND : SegmentMap.PLUS_STRAND;
+        return reverse ? SegmentMap.NOT_MINUS_STRAND : SegmentMap.NOT_PLUS_STRAND;
+    }
+    
+    /**
+     * FunName: getOverlapGenes.
+     * Description: Get the genes whose exons are overlapping with the aligned blocks of the record.
+     * The blocks are resolved against the segment map of the annotation, with the cursor sweeping forward for the records given in coordinate order.
+     * @param record The SAM record.
+     * @param strandSpecific The strandedness. 0 for no strand information, 1 for the same strand, -1 for the opposite strand.
+     * @param hits The buffer to save the ordinals of the overlapping genes. It is cleared first.
+     * @return The number of overlapping genes.
+     */
+    public int getOverlapGenes(SAMRecord record, int strandSpecific, GeneHits hits){
+        getOverlapGeneSet(record, strandSpecific, hits);
+        return hits.size();
+    }
+    
+    /**
+     * FunName: getOverlapGeneSet.
+     * Description: The same as getOverlapGenes, but return the ID of the overlapping gene set in the segment map.
+     * @return The ID of the gene set, 0 if no gene is overlapping, or SegmentMap.UNION_OF_SETS if the genes are only in the hits.
+     */
+    public int getOverlapGeneSet(SAMRecord record, int strandSpecific, GeneHits hits){
+        int strand=getGeneStrand(record.getFlags(), strandSpecific);
+        if(strand==-1){
+            hits.clear();
+            return 0;
+        }
+        readBlocks(record);
+        return cursor.getOverlapGeneSet(record.getReferenceName(), blockStarts, blockEnds, numBlocks, strand, hits);
+    }
+    
+    /**
+     * FunName: getOverlapGeneSet.
+     * Description: The same as getOverlapGeneSet for SAMRecord, for a raw BAM record.
+     */
+    public int getOverlapGeneSet(BAMRecordView record, int strandSpecific, GeneHits hits){
+        int strand=getGeneStrand(record.getFlags(), strandSpecific);
+        if(strand==-1){
+            hits.clear();
+            return 0;
+        }
+        readBlocks(record);
+        return cursor.getOverlapGeneSet(record.getReferenceName(), blockStarts, blockEnds, numBlocks, strand, hits);
+    }
+}
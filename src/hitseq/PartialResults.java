@@ -0,0 +1,178 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The partial results of the input files counted in shards, e.g. on several
+ * machines, written by the commands with the option --shard and merged by the
+ * "merge" command. A file starts with the command, the shard and the options
+ * of the run; the accumulators of each input file follow its "@SAMPLE" line,
+ * as written by ReadCounter.writePartial.
+ */
+public class PartialResults {
+    private static final String MAGIC = "#HITSEQ_PARTIAL";
+    // the options which do not change the results, and may differ between the machines
+    private static final List<String> RUNTIME_OPTIONS = Arrays.asList("-T", "--threads", "--parallel-samples", "--queue-depth", "--batch-size", "--reference", "--shard", "--checkpoint", "--cache");
+
+    private String command = null;
+    private List<String> options = null;
+    private int numShards = 0;
+    private final LinkedHashMap<String, List<List<String[]>>> linesOfSamples = new LinkedHashMap<>();
+    private final HashMap<String, File> fileOfSamples = new HashMap<>();
+
+    /**
+     * Read the partial results of all the shards.
+     * @param files The files of the partial results.
+     */
+    public PartialResults(List<File> files){
+        try{
+            for(File file : files)
+                readFile(file);
+            for(String sample : linesOfSamples.keySet()){
+                List<List<String[]>> lines = linesOfSamples.get(sample);
+                for(int shard = 0; shard < numShards; shard++)
+                    if(lines.get(shard) == null)
+                        throw new IllegalArgumentException("the shard " + (shard + 1) + "/" + numShards + " of " + sample + " is missing");
+            }
+        } catch(Exception e){
+            System.err.println("ERROR! " + e + " in PartialResults at PartialResults!\n");
+            System.exit(1);
+        }
+    }
+
+    private void readFile(File file) throws java.io.IOException{
+        try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+            String[] head = readFields(reader);
+            String[] optionFields = readFields(reader);
+            if(head == null || ! head[0].equals(MAGIC) || head.length != 3 || optionFields == null || ! optionFields[0].equals("#OPTIONS"))
+                throw new IllegalArgumentException(file.getName() + " is not a file of partial results");
+            String[] shard = head[2].split("/");
+            int shardIndex = Integer.parseInt(shard[0]) - 1;
+            int thisNumShards = Integer.parseInt(shard[1]);
+            List<String> thisOptions = Arrays.asList(optionFields).subList(1, optionFields.length);
+            if(command == null){
+                command = head[1];
+                options = thisOptions;
+                numShards = thisNumShards;
+            } else if(! command.equals(head[1]) || ! options.equals(thisOptions) || numShards != thisNumShards)
+                throw new IllegalArgumentException(file.getName() + " is not given by the same command and options as the other partial results");
+
+            List<String[]> lines = null;
+            String[] fields;
+            while((fields = readFields(reader)) != null){
+                if(fields[0].equals("@SAMPLE")){
+                    String sample = fields[1];
+                    if(! linesOfSamples.containsKey(sample)){
+                        linesOfSamples.put(sample, new ArrayList<List<String[]>>(Collections.nCopies(numShards, (List<String[]>) null)));
+                        fileOfSamples.put(sample, file);
+                    }
+                    if(linesOfSamples.get(sample).get(shardIndex) != null)
+                        throw new IllegalArgumentException("the shard " + head[2] + " of " + sample + " is given twice");
+                    lines = new ArrayList<>();
+                    linesOfSamples.get(sample).set(shardIndex, lines);
+                } else if(lines == null)
+                    throw new IllegalArgumentException("the results in " + file.getName() + " are not given for any input file");
+                else
+                    lines.add(fields);
+            }
+        }
+    }
+
+    private static String[] readFields(BufferedReader reader) throws java.io.IOException{
+        String line = reader.readLine();
+        return line == null ? null : line.split("\t", -1);
+    }
+
+    public String getCommand(){
+        return command;
+    }
+
+    /**
+     * @return The options of the command which affect the results, the same in all the shards.
+     */
+    public List<String> getOptions(){
+        return options;
+    }
+
+    /**
+     * @return The input files, in the order they first appear in the partial results.
+     */
+    public List<String> getSamples(){
+        return new ArrayList<>(linesOfSamples.keySet());
+    }
+
+    /**
+     * @return The first file of partial results with the given input file.
+     */
+    public File getFile(String sample){
+        return fileOfSamples.get(sample);
+    }
+
+    /**
+     * FunName: getLines.
+     * Description: Get the lines of the given input file, of all its shards in order.
+     * @param sample The input file.
+     * @return The lines, split into fields.
+     */
+    public List<String[]> getLines(String sample){
+        ArrayList<String[]> lines = new ArrayList<>();
+        for(List<String[]> linesOfShard : linesOfSamples.get(sample))
+            lines.addAll(linesOfShard);
+        return lines;
+    }
+
+    /**
+     * FunName: getOptions.
+     * Description: Get the options of a command line which affect the results, i.e. without the number of threads,
+     * the shard and the other options of the run time.
+     * @param args The command line arguments.
+     * @param firstFileIndex The index of the first file in the arguments, after the options.
+     * @return The options.
+     */
+    public static List<String> getOptions(String[] args, int firstFileIndex){
+        ArrayList<String> options = new ArrayList<>();
+        for(int i = 1; i < firstFileIndex; i++){
+            if(RUNTIME_OPTIONS.contains(args[i]))
+                i++; // skip the value as well
+            else
+                options.add(args[i]);
+        }
+        return options;
+    }
+
+    /**
+     * FunName: write.
+     * Description: Write the partial results of one shard of the input files.
+     * @param out The output stream.
+     * @param command The command.
+     * @param shardIndex The index of the shard, from 0 to numShards-1.
+     * @param numShards The number of shards.
+     * @param options The options given by getOptions.
+     * @param samples The input files.
+     * @param results The results of the input files, given by ReadCounter.writePartial.
+     */
+    public static void write(PrintStream out, String command, int shardIndex, int numShards, List<String> options, List<String> samples, List<String> results){
+        out.println(MAGIC + "\t" + command + "\t" + (shardIndex + 1) + "/" + numShards);
+        StringBuilder optionLine = new StringBuilder("#OPTIONS");
+        for(String option : options)
+            optionLine.append('\t').append(option);
+        out.println(optionLine);
+        for(int i = 0; i < samples.size(); i++){
+            out.println("@SAMPLE\t" + samples.get(i));
+            out.print(results.get(i));
+        }
+    }
+}
@@ -5,18 +5,35 @@
 package hitseq;
 
 import hitseq.annotation.Annotation;
+import hitseq.annotation.GeneOrdinalMap;
 import hitseq.annotation.Gene;
+import hitseq.annotation.GeneHits;
 import hitseq.annotation.Junction;
 import hitseq.annotation.JunctionSet;
+import hitseq.annotation.SegmentMap;
+import hitseq.bam.BAMRecordView;
+import hitseq.bam.RecordViewReader;
+import hitseq.bam.SamInputs;
 import htsjdk.samtools.*;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.regex.*;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -30,14 +47,26 @@ public class ReadCounter {
     private int modeForMultiGenesOverlap;
     private boolean calculatedRPKM;
     private double totalNumReads;
-    private HashMap<String, Double> counts;
-    private HashMap<String, Double> rpkm;
-    private HashMap<String, double[]> numReadsInIntervals;
+    // per-gene results, indexed by the gene ordinals of the annotation
+    private double[] counts;
+    private double[] rpkm;
+    private double[][] numReadsInIntervals;
     private int numIntervals;
     private JunctionSet junctions;
     private HashMap<Junction, Double> junctionCounts;
     private boolean sameChrIsEnough;
     private int readLength;
+    private EquivalenceClasses ambiguousClasses; // the multi-gene hits in mode 3, resolved by EM
+    private double convergenceTolerance = 1e-4;
+    private int pipelineQueueDepth = RecordPipeline.DEFAULT_QUEUE_DEPTH;
+    private int pipelineBatchSize = RecordPipeline.DEFAULT_BATCH_SIZE;
+    private int pipelineInflateThreads = 1;
+    private boolean forceNameGrouped = false;
+    private TargetRegions targets = null; // null to count all the genes
+    private int shardIndex = 0;
+    private int numShards = 0; // 0 to count the whole input
+    private CountingPass shardPass = null; // the counting state of the shard, kept for the partial result
+    private Checkpoint checkpoint = null; // null not to save the counted ranges
 
     /**
      * Generate a new ReadCounter object with given annotation
@@ -55,7 +84,7 @@ public class ReadCounter {
      * counting is to quantify the 3'-bias instead of gene expression
      */
     public ReadCounter(File file, Annotation annotation, int strandSpecific, int modeForMultiGenesOverlap, boolean sameChrIsEnough, int numIntervals) {
-        if (!file.exists()) {
+        if (!file.exists() && !SamInputs.isStandardInput(file)) {
             System.err.println("Cannot find input file: " + file.getAbsolutePath());
             System.exit(1);
         }
@@ -67,28 +96,15 @@ public class ReadCounter {
         this.readLength = -1;
         
         this.numIntervals = numIntervals;
-        this.numReadsInIntervals = new HashMap<>();
-        for(String gene : annotation.getGeneSet()){
-            numReadsInIntervals.put(gene, new double[numIntervals]);
-            for(int i = 0; i < numIntervals; i++)
-                numReadsInIntervals.get(gene)[i] = 0;
-        }
+        this.numReadsInIntervals = null; // only allocated when the bias is estimated
         totalNumReads = 0;
         this.calculatedRPKM = false;
-        counts = new HashMap<>();
-        rpkm = new HashMap<>();
-        for (String gene : annotation.getGeneSet()) {
-            counts.put(gene, 0.0);
-            rpkm.put(gene, 0.0);
-        }
+        counts = new double[annotation.getNumGenes()];
+        rpkm = new double[annotation.getNumGenes()];
 
-        junctions = new JunctionSet(annotation);
-        junctionCounts = new HashMap<>();
-        for (String chrom : junctions.getJunctions().keySet()) {
-            for (Junction junction : junctions.getJunctions().get(chrom)) {
-                junctionCounts.put(junction, 0.0);
-            }
-        }
+        // the junctions of the annotation are only generated when junction counting is needed
+        junctions = null;
+        junctionCounts = null;
     }
     
     /**
@@ -115,7 +131,7 @@ public class ReadCounter {
      * strand.
      */
     public ReadCounter(File file, JunctionSet junctions, int strandSpecific) {
-        if (!file.exists()) {
+        if (!file.exists() && !SamInputs.isStandardInput(file)) {
             System.err.println("Cannot find input file: " + file.getAbsolutePath());
             System.exit(1);
         }
@@ -123,7 +139,11 @@ public class ReadCounter {
         this.strandSpecific = strandSpecific;
 
         this.junctions = junctions;
-        this.junctionCounts = new HashMap<>();
+        initJunctionCounts();
+    }
+
+    private void initJunctionCounts() {
+        junctionCounts = new HashMap<>();
         for (String chrom : junctions.getJunctions().keySet()) {
             for (Junction junction : junctions.getJunctions().get(chrom)) {
                 junctionCounts.put(junction, 0.0);
@@ -135,18 +155,23 @@ public class ReadCounter {
         return (totalNumReads);
     }
     
-    public HashMap<String, double[]> getNumReadsEachInterval() {
-        return numReadsInIntervals;
+    private void initNumReadsInIntervals() {
+        if (numReadsInIntervals == null)
+            numReadsInIntervals = new double[annotation.getNumGenes()][numIntervals];
+    }
+    
+    public Map<String, double[]> getNumReadsEachInterval() {
+        initNumReadsInIntervals();
+        return GeneOrdinalMap.of(annotation, numReadsInIntervals);
     }
     
     public double[] getNumReadsEachInterval(String gene){
-        double[] answer = new double[numIntervals];
-        if(numReadsInIntervals.containsKey(gene))
-            answer = numReadsInIntervals.get(gene);
+        initNumReadsInIntervals();
+        int ordinal = annotation.getGeneOrdinal(gene);
+        if(ordinal != -1)
+            return numReadsInIntervals[ordinal];
         else
-            for(int i = 0; i < numIntervals; i++)
-                answer[i] = 0;
-        return answer;
+            return new double[numIntervals];
     }
     
     public double[] getAverageProportionReadsEachInterval(boolean useMedian){
@@ -154,30 +179,30 @@ public class ReadCounter {
     }
     
     public double[] getAverageProportionReadsEachInterval(boolean useMedian, int lengthCutoff, double countCutoff){
+        initNumReadsInIntervals();
         double[] answer = new double[numIntervals];
         for(int i = 0; i < answer.length; i++)
             answer[i] = 0;
         
-        ArrayList<String> genes = new ArrayList<>();
-        genes.addAll(numReadsInIntervals.keySet());
-        ArrayList<String> remainingGenes = new ArrayList<>();
-        remainingGenes.addAll(genes);
-        if(lengthCutoff > 0)
-            for(String gene : remainingGenes)
-                if(annotation.getGene(gene).getNonredundantTranscript().getTotalExonLength() < lengthCutoff)
-                    genes.remove(gene);
-        remainingGenes.clear();
-        remainingGenes.addAll(genes);
-        if(countCutoff > 0)
-            for(String gene : remainingGenes)
-                if(counts.get(gene)/annotation.getGene(gene).getNonredundantTranscript().getTotalExonLength()*readLength < countCutoff)
-                    genes.remove(gene);
+        int numGenes = annotation.getNumGenes();
+        int numSelectedGenes = targets == null ? numGenes : targets.getNumGenes(); // the genes of the averages, before the cutoffs
+        ArrayList<Integer> genes = new ArrayList<>();
+        for(int gene = 0; gene < numGenes; gene++){
+            if(targets != null && ! targets.contains(gene))
+                continue;
+            int length = annotation.getGene(annotation.getGeneID(gene)).getNonredundantTranscript().getTotalExonLength();
+            if(lengthCutoff > 0 && length < lengthCutoff)
+                continue;
+            if(countCutoff > 0 && counts[gene]/length*readLength < countCutoff)
+                continue;
+            genes.add(gene);
+        }
         
         double[][] numReads = new double[numIntervals][genes.size()];
         for(int i = 0; i < genes.size(); i++){
-            double sum = counts.get(genes.get(i));
+            double sum = counts[genes.get(i)];
             for(int j = 0; j < numIntervals; j++)
-                numReads[j][i] = numReadsInIntervals.get(genes.get(i))[j] / sum;
+                numReads[j][i] = numReadsInIntervals[genes.get(i)][j] / sum;
         }
         
         for(int i = 0; i < numReads.length; i++){
@@ -186,35 +211,34 @@ public class ReadCounter {
                 int numNonNaN = 0;
                 while(Double.isNaN(numReads[i][numReads[i].length - 1 - numNonNaN]))
                     numNonNaN++;
-                answer[i] = (numReadsInIntervals.size()-numNonNaN) % 2 == 1 ? numReads[i][(genes.size()-numNonNaN-1)/2] : (numReads[i][(genes.size()-numNonNaN)/2-1] + numReads[i][(genes.size()-numNonNaN)/2]) / 2;
+                answer[i] = (numSelectedGenes-numNonNaN) % 2 == 1 ? numReads[i][(genes.size()-numNonNaN-1)/2] : (numReads[i][(genes.size()-numNonNaN)/2-1] + numReads[i][(genes.size()-numNonNaN)/2]) / 2;
             } else{
                 for(int j = 0; j < numReads[i].length; j++){
                     if(! Double.isNaN(numReads[i][j]))
                         answer[i] += numReads[i][j];
                 }
-                answer[i] /= numReadsInIntervals.size();
+                answer[i] /= numSelectedGenes;
             }
         }
         
         return answer;
     }
 
-    public HashMap<String, Double> getCounts() {
-        return (counts);
+    /**
+     * @return The read counts of the genes, as a read-only view keyed by gene ID.
+     */
+    public Map<String, Double> getCounts() {
+        return GeneOrdinalMap.of(annotation, counts);
     }
 
-    HashMap<String, Double> getRPKM() {
+    Map<String, Double> getRPKM() {
         if (calculatedRPKM) {
-            return (rpkm);
+            return GeneOrdinalMap.of(annotation, rpkm);
         } else {
             return (null);
         }
     }
 
-    void initAnnotationPointers() {
-        annotation.resetPointer();
-    }
-
     /**
      * FunName: replaceInputFile. Description: Replace the input file with the
      * given new one, and initiate all the calculation results.
@@ -228,10 +252,8 @@ public class ReadCounter {
             return (false);
         } else {
             this.inputFile = newFile;
-            for (String gene : counts.keySet()) {
-                counts.put(gene, 0.0);
-                rpkm.put(gene, 0.0);
-            }
+            Arrays.fill(counts, 0);
+            Arrays.fill(rpkm, 0);
             this.calculatedRPKM = false;
             this.totalNumReads = 0;
             this.strandSpecific = strandSpecific;
@@ -247,96 +269,285 @@ public class ReadCounter {
      */
     void replaceAnnotation(Annotation newAnnotation) {
         this.annotation = newAnnotation;
-        counts = new HashMap<>();
-        rpkm = new HashMap<>();
-        for (String gene : annotation.getGeneSet()) {
-            counts.put(gene, 0.0);
-            rpkm.put(gene, 0.0);
-        }
+        counts = new double[annotation.getNumGenes()];
+        rpkm = new double[annotation.getNumGenes()];
+        numReadsInIntervals = null;
         this.calculatedRPKM = false;
         this.totalNumReads = 0;
     }
 
+    /**
+     * FunName: setConvergenceTolerance. Description: Set the relative
+     * tolerance of the EM for the multi-gene hits in mode 3.
+     */
+    void setConvergenceTolerance(double tolerance) {
+        this.convergenceTolerance = tolerance;
+    }
+
+    /**
+     * FunName: setPipeline. Description: Set the bounded queue between the
+     * reader stage and the counting stage of the single-threaded counting.
+     *
+     * @param queueDepth The maximum number of batches in the queue. 0 to read
+     * and count the records in the same thread.
+     * @param batchSize The number of records in each batch.
+     * @param inflateThreads The number of threads to inflate the BGZF blocks
+     * of a BAM input when the pipeline is used, e.g. the threads of the
+     * sample.
+     */
+    void setPipeline(int queueDepth, int batchSize, int inflateThreads) {
+        this.pipelineQueueDepth = queueDepth;
+        this.pipelineBatchSize = batchSize;
+        this.pipelineInflateThreads = inflateThreads;
+    }
+
+    /**
+     * FunName: setNameGrouped. Description: Count the input as name-grouped,
+     * i.e. all the records of a read (both segments and all the alignments)
+     * are next to each other, whatever the sort order in its header is.
+     * Inputs sorted by query name or marked as unsorted are always counted as
+     * name-grouped.
+     */
+    void setNameGrouped(boolean nameGrouped) {
+        this.forceNameGrouped = nameGrouped;
+    }
+
+    /**
+     * FunName: setTargets. Description: Only count the given genes. If the
+     * input is indexed, only the records overlapping the target genes and
+     * their mates are read.
+     */
+    void setTargets(TargetRegions targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * FunName: setShard. Description: Only count the records in one of the
+     * given number of shards of an indexed BAM file, e.g. to count one sample
+     * on several machines. The results are then partial, to be written by
+     * writePartial and merged by mergePartial.
+     *
+     * @param shardIndex The index of the shard, from 0 to numShards-1.
+     * @param numShards The number of shards.
+     */
+    void setShard(int shardIndex, int numShards) {
+        this.shardIndex = shardIndex;
+        this.numShards = numShards;
+    }
+
+    /**
+     * FunName: setCheckpoint. Description: Save the state of each counted
+     * range of an indexed BAM file to the checkpoint directory, and read the
+     * ranges saved by an earlier run instead of counting them again.
+     */
+    void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * FunName: selectShards. Description: Get the ranges of the shard set to
+     * the counter, which needs the input to be an indexed BAM file sorted by
+     * coordinate.
+     */
+    private ArrayList<BAMShard> selectShards() throws IOException {
+        try (SamReader inputSam = SamInputs.open(inputFile)) {
+            if (inputSam.type() != SamReader.Type.BAM_TYPE || !inputSam.hasIndex()) {
+                throw new IllegalArgumentException(inputFile.getName() + " is not an indexed BAM file, which is needed to count it in shards.");
+            }
+            if (inputSam.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                throw new IllegalArgumentException("The input BAM file should be sorted by coordinate.");
+            }
+            ArrayList<BAMShard> shards = BAMShard.select(inputSam, shardIndex, numShards);
+            System.err.println("shard " + (shardIndex + 1) + "/" + numShards + " of " + inputFile.getName() + ": " + shards.size() + " ranges");
+            return shards;
+        }
+    }
+
+    /**
+     * FunName: isNameGrouped. Description: Whether the input with the given
+     * header is counted as name-grouped, instead of sorted by coordinate.
+     */
+    private boolean isNameGrouped(SAMFileHeader header) {
+        SAMFileHeader.SortOrder sortOrder = header.getSortOrder();
+        return forceNameGrouped || sortOrder == SAMFileHeader.SortOrder.queryname || sortOrder == SAMFileHeader.SortOrder.unsorted;
+    }
+
+    /**
+     * FunName: openRecordViews. Description: Open the input file for the
+     * counting loops which read the records as raw BAM records. A BAM file is
+     * decoded by BAMRecordDecoder, with the BGZF blocks inflated by a pool of
+     * threads if the pipeline is used; other files are read by htsjdk through
+     * the pipeline.
+     */
+    private RecordViewReader openRecordViews() throws IOException {
+        RecordViewReader reader = RecordViewReader.openBAM(inputFile, pipelineQueueDepth > 0 ? pipelineInflateThreads : 0);
+        if (reader != null) {
+            return reader;
+        }
+        SamReader inputSam = SamInputs.open(inputFile);
+        return RecordViewReader.of(inputSam, RecordPipeline.wrap(inputSam.iterator(), inputFile.getName(), pipelineQueueDepth, pipelineBatchSize));
+    }
+
+    /**
+     * FunName: openTargetedRecordViews. Description: Open the records of the
+     * shard if it is set, the records of the target genes if they are set and
+     * the input is indexed, or all the records of the input otherwise.
+     */
+    private RecordViewReader openTargetedRecordViews() throws IOException {
+        if (numShards > 0) {
+            return new ShardRecordReader(inputFile, selectShards());
+        }
+        if (targets != null && !SamInputs.isStandardInput(inputFile)) {
+            SamReader inputSam = SamInputs.open(inputFile);
+            if (inputSam.hasIndex()) {
+                return RecordViewReader.of(inputSam, RecordPipeline.wrap(inputSam.queryOverlapping(targets.getQueryIntervals(inputSam.getFileHeader())), inputFile.getName(), pipelineQueueDepth, pipelineBatchSize));
+            }
+            inputSam.close();
+        }
+        return openRecordViews();
+    }
+
     void setStrandSpecific(int newStrandSpecific) {
         this.strandSpecific = newStrandSpecific;
     }
     
     public void estimateBias(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse){
-        try (SamReader inputSam = SamReaderFactory.makeDefault().open(inputFile)) {
-            inputSam.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate); // for the possible SAM/BAM file for the ambiguous reads when necessary
-            SAMRecordIterator iterator=inputSam.iterator();
-            iterator.assertSorted(SAMFileHeader.SortOrder.coordinate); // the reads should be sorted by coordinate, for a exception will be thrown out
-
-            String chromLast = "";
-            String strandLast = "";
-            String cigarLast = "";
-            int alignmentStartLast = -1;
-
-            while(iterator.hasNext()){
-                try{
-                    SAMRecord record=iterator.next();
-                    int thisReadLength = record.getReadLength();
-                    if(thisReadLength > readLength)
-                        readLength = thisReadLength;
-                    if (record.getReadUnmappedFlag()) // skip if this read is unmapped
-                        continue;
-                    if (onlyUnique && record.getIntegerAttribute("NH") != null && (! record.getIntegerAttribute("NH").equals(1))) // skip if this read is required to be uniquely mapped but not
-                        continue;
+        try (RecordViewReader reader = openTargetedRecordViews()) {
+            new SinglePass(newBiasConsumer(null, considerNHAttrib, onlyUnique, readCollapse)).run(reader);
+        } catch (Exception e) {
+            System.err.println("ERROR! " + e + " in estimateBias at ReadCounter!\n");
+            System.exit(1);
+        }
+    }
 
-                    List<AlignmentBlock> hitsList = record.getAlignmentBlocks();
-                    ArrayList<AlignmentBlock> hits = new ArrayList<>();
-                    for (AlignmentBlock block : hitsList) {
-                        hits.add(block);
-                    }
-                    int alignmentStart = hits.get(0).getReferenceStart();
-
-                    String chrom = record.getReferenceName();
-                    String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
-                    String cigar = record.getCigarString();
-
-                    // remove PCR artifact if necessary
-                    if (readCollapse) {
-                        if (chromLast.equals(chrom) && strandLast.equals(strand) && cigarLast.equals(cigar) && alignmentStartLast == alignmentStart) {
-                            continue;
-                        } else {
-                            chromLast = chrom;
-                            strandLast = strand;
-                            cigarLast = cigar;
-                            alignmentStartLast = alignmentStart;
-                        }
-                    }
+    /**
+     * FunName: newBiasConsumer. Description: Get the estimation of the
+     * 3'-bias as a consumer of the records of the input file, e.g. to share
+     * one pass through the file with other analyses.
+     *
+     * @param overlap The overlap resolution shared with the other consumers,
+     * or null to use its own.
+     */
+    RecordConsumer newBiasConsumer(RecordOverlap overlap, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse) {
+        return new BiasConsumer(overlap, considerNHAttrib, onlyUnique, readCollapse);
+    }
 
-                    // skip if no gene exists in this chromosome in annotation
-                    if (!annotation.chromIsExisted(chrom)) {
-                        continue;
-                    }
+    /**
+     * The reads of the genes distributed into the intervals along the gene
+     * bodies, for the 3'-bias.
+     */
+    private class BiasConsumer implements RecordConsumer {
+        private final RecordOverlap overlap;
+        private final boolean considerNHAttrib;
+        private final boolean onlyUnique;
+        private boolean readCollapse;
+        private boolean nameGrouped;
+        private final CoordinateOrder order = new CoordinateOrder();
+        private final GeneHits overlappedGenes = new GeneHits();
+
+        private String chromLast = "";
+        private String strandLast = "";
+        private String cigarLast = "";
+        private int alignmentStartLast = -1;
+
+        BiasConsumer(RecordOverlap overlap, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse) {
+            this.overlap = overlap == null ? new RecordOverlap(annotation, strandSpecific) : overlap;
+            this.considerNHAttrib = considerNHAttrib;
+            this.onlyUnique = onlyUnique;
+            this.readCollapse = readCollapse;
+        }
+
+        @Override
+        public void start(SAMFileHeader header) {
+            nameGrouped = isNameGrouped(header);
+            if (nameGrouped && readCollapse) {
+                System.err.println("WARNING: Redundant reads removal needs the input sorted by coordinate. It is skipped for " + inputFile.getName() + ".");
+                readCollapse = false;
+            }
+            initNumReadsInIntervals();
+        }
 
-                    // get overlapping genes for the record
-                    SAMRecordProcessor recordProcessor = new SAMRecordProcessor(record, annotation);
-                    ArrayList<String> overlappedGenes = recordProcessor.getOverlapGenes(strandSpecific);
+        @Override
+        public void accept(BAMRecordView record) {
+            if (!nameGrouped) {
+                order.check(record);
+            }
+            int thisReadLength = record.getReadLength();
+            if(thisReadLength > readLength)
+                readLength = thisReadLength;
+            if (record.getReadUnmappedFlag()) // skip if this read is unmapped
+                return;
+            Integer nh = record.getIntegerAttribute("NH");
+            if (onlyUnique && nh != null && nh != 1) // skip if this read is required to be uniquely mapped but not
+                return;
+
+            String chrom = record.getReferenceName();
+
+            // remove PCR artifact if necessary
+            if (readCollapse) {
+                int alignmentStart = record.getAlignmentStart();
+                String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
+                String cigar = record.getCigarString();
+                if (chromLast.equals(chrom) && strandLast.equals(strand) && cigarLast.equals(cigar) && alignmentStartLast == alignmentStart) {
+                    return;
+                } else {
+                    chromLast = chrom;
+                    strandLast = strand;
+                    cigarLast = cigar;
+                    alignmentStartLast = alignmentStart;
+                }
+            }
 
-                    double add = 1;
-                    if (considerNHAttrib && record.getIntegerAttribute("NH") != null) {
-                        add = add / record.getIntegerAttribute("NH");
-                    }
-                    if (overlappedGenes.size() == 1 || modeForMultiGenesOverlap == 1) { // Mode 1: For the multi-genes hits, equally assign 1/n to each gene
-                        add /= overlappedGenes.size();
-                        for (String gene : overlappedGenes) {
-                            double[] quantiles = recordProcessor.getGeneBodyQuantile(annotation.getGene(gene), strandSpecific);
-                            int[] idx = new int[]{ (int)Math.floor(quantiles[0]/(1.0/numIntervals)), (int)Math.ceil(quantiles[1]/(1.0/numIntervals))};
-                            //System.err.println(record.getReadName()+"\t"+gene+"\t"+String.valueOf(quantiles[0])+"\t"+String.valueOf(quantiles[1]));
-                            for(int i=idx[0]; i<idx[1]; i++)
-                                numReadsInIntervals.get(gene)[i] += add;
-                            counts.put(gene, counts.get(gene) + add);
-                        }
-                    }
-                } catch (SAMFormatException e){
-                    System.err.println("Warning: " + e);
+            // skip if no gene exists in this chromosome in annotation
+            if (!annotation.chromIsExisted(chrom)) {
+                return;
+            }
+
+            // get overlapping genes for the record
+            overlap.getOverlapGeneSet(record, overlappedGenes);
+            if (overlappedGenes.isEmpty()) {
+                return;
+            }
+
+            double add = 1;
+            if (considerNHAttrib && nh != null) {
+                add = add / nh;
+            }
+            if (overlappedGenes.size() == 1 || modeForMultiGenesOverlap == 1) { // Mode 1: For the multi-genes hits, equally assign 1/n to each gene
+                add /= overlappedGenes.size();
+                for (int k = 0; k < overlappedGenes.size(); k++) {
+                    int gene = overlappedGenes.get(k);
+                    double[] quantiles = SAMRecordProcessor.getGeneBodyQuantile(record, annotation.getGene(gene), strandSpecific);
+                    int[] idx = new int[]{ (int)Math.floor(quantiles[0]/(1.0/numIntervals)), (int)Math.ceil(quantiles[1]/(1.0/numIntervals))};
+                    for(int i=idx[0]; i<idx[1]; i++)
+                        numReadsInIntervals[gene][i] += add;
+                    counts[gene] += add;
                 }
             }
-        } catch (Exception e) {
-            System.err.println("ERROR! " + e + " in estimateCountsSimply at ReadCounter!\n");
-            System.exit(1);
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    /**
+     * The check that the records are sorted by coordinate, for the
+     * analyses which need it.
+     */
+    private static class CoordinateOrder {
+        private int lastRefIndex = -1;
+        private int lastAlignmentStart = 0;
+
+        void check(BAMRecordView record) {
+            int refIndex = record.getReferenceIndex();
+            if (refIndex >= 0) {
+                if (refIndex < lastRefIndex || (refIndex == lastRefIndex && record.getAlignmentStart() < lastAlignmentStart)) {
+                    throw new IllegalStateException("The input file is not sorted by coordinate at " + record.getReadName());
+                }
+                lastRefIndex = refIndex;
+                lastAlignmentStart = record.getAlignmentStart();
+            }
         }
     }
 
@@ -355,17 +566,46 @@ public class ReadCounter {
      * set to use iteration to better assign ambiguous reads to genes.
      */
     public void estimateCounts(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, int convergLimit, boolean verbose) {
-        if (modeForMultiGenesOverlap < 3) {
+        estimateCounts(considerNHAttrib, onlyUnique, readCollapse, convergLimit, verbose, 1);
+    }
+    
+    /**
+     * FunName: estimateCounts. Description: Count reads which are overlapping
+     * with each feature (gene, peak, etc) in the annotation, with the given
+     * number of threads.
+     *
+     * @param considerNHAttrib If true, use NH attribute in the SAM record to
+     * separate uniquely and multiply mapped reads.
+     * @param onlyUnique If true, only consider the reads with NH=1 tag if it is
+     * single-ended reads
+     * @param readCollapse If true, collapse the plausible PCR duplicates.
+     * @param convergLimit The upper limit of iteration time if the counter is
+     * set to use iteration to better assign ambiguous reads to genes.
+     * @param numThreads The number of threads to count the reads. Only the
+     * indexed BAM file can be counted with more than one thread.
+     */
+    public void estimateCounts(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, int convergLimit, boolean verbose, int numThreads) {
+        if (numShards > 0) { // the multi-gene hits of mode 3 are kept for the EM after merging the shards
+            estimateCountsOfShard(considerNHAttrib, onlyUnique, readCollapse, verbose, numThreads);
+            return;
+        } else if (targets != null && !SamInputs.isStandardInput(inputFile) && !forceNameGrouped) {
+            estimateCountsTargeted(considerNHAttrib, onlyUnique, readCollapse, verbose);
+        } else if ((numThreads > 1 || checkpoint != null) && !SamInputs.isStandardInput(inputFile) && !forceNameGrouped) {
+            estimateCountsInParallel(considerNHAttrib, onlyUnique, readCollapse, verbose, numThreads);
+        } else {
             estimateCountsSimply(considerNHAttrib, onlyUnique, readCollapse, verbose);
-        } else if (modeForMultiGenesOverlap == 3) {
-            estimateCountsIteratively(considerNHAttrib, onlyUnique, readCollapse, convergLimit);
+        }
+        if (modeForMultiGenesOverlap == 3) {
+            estimateCountsIteratively(convergLimit, numThreads);
         }
     }
     
     /**
      * FunName: estimateCountsSimply. Description: count reads which are
      * overlapping with each feature (gene, peak, etc) in the annotation, no
-     * iteration.
+     * iteration. The mode to process ambiguous reads is the one set to the
+     * ReadCounter object. In mode 3, the multi-gene hits are kept as
+     * equivalence classes for estimateCountsIteratively.
      *
      * @param considerNHAttrib If true, use NH attribute in the SAM record to
      * separate uniquely and multiply mapped reads.
@@ -373,193 +613,720 @@ public class ReadCounter {
      * single-ended reads
      * @param readCollapse If true, use NH attribute in the SAM record to
      * separate uniquely and multiply mapped reads.
-     * @param modeForMultiGenesOverlap The mode to process ambiguous reads. 0
-     * for simply abandon, 1 for equally assign, 2 for assign with equal
-     * probability.
-     * @param markAmbiguous If true, output the ambiguous reads to a temp BAM
-     * file.
      */
-    private void estimateCountsSimply(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, int modeForMultiGenesOverlap, boolean markAmbiguous, boolean verbose) {
-        totalNumReads = 0;
-        int numNoFeature = 0, numAmbiguous = 0;
-        boolean notifyPairedCollapse = false;
-
-        try (SamReader inputSam = SamReaderFactory.makeDefault().open(inputFile)) {
-            inputSam.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate); // for the possible SAM/BAM file for the ambiguous reads when necessary
-            SAMRecordIterator iterator=inputSam.iterator();
-            iterator.assertSorted(SAMFileHeader.SortOrder.coordinate); // the reads should be sorted by coordinate, for a exception will be thrown out
-            
-            File outAmbiguous;
-            SAMFileWriter outputSam = null;
-            if (markAmbiguous) {
-                outAmbiguous = new File(inputFile.getAbsolutePath() + "-ambiguous.bam");
-                outputSam = new SAMFileWriterFactory().makeSAMOrBAMWriter(inputSam.getFileHeader(), false, outAmbiguous);
-            }
-
-            String chromLast = "";
-            String strandLast = "";
-            String cigarLast = "";
-            int alignmentStartLast = -1;
-            HashMap<String, HashSet<String>> overlapGenesForPair = new HashMap<>();
-            HashMap<String, SAMRecord> firstRecordOfPair = new HashMap<>();
-
-            while(iterator.hasNext()){
-                try{
-                    SAMRecord record=iterator.next();
-                    int thisReadLength = record.getReadLength();
-                    if(thisReadLength > readLength)
-                        readLength = thisReadLength;
-                    if (record.getReadUnmappedFlag()) // skip if this read is unmapped
-                        continue;
-                    if (record.getReadPairedFlag() && (!record.getProperPairFlag() && (!sameChrIsEnough || !record.getReferenceName().equals(record.getMateReferenceName())))) // skip if the read if paired but not in the proper paired mapping
-                        continue;
-                    if (onlyUnique && record.getIntegerAttribute("NH") != null && (! record.getIntegerAttribute("NH").equals(1)))
-                        continue;
+    void estimateCountsSimply(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose) {
+        try (RecordViewReader reader = openRecordViews()) {
+            new SinglePass(newCountingConsumer(null, considerNHAttrib, onlyUnique, readCollapse, verbose)).run(reader);
+        } catch (Exception e) {
+            System.err.println("ERROR! " + e + " in estimateCountsSimply at ReadCounter!\n");
+            System.exit(1);
+        }
+    }
 
-                    List<AlignmentBlock> hitsList = record.getAlignmentBlocks();
-                    ArrayList<AlignmentBlock> hits = new ArrayList<>();
-                    for (AlignmentBlock block : hitsList) {
-                        hits.add(block);
+    /**
+     * FunName: newCountingConsumer. Description: Get the read counting of the
+     * input file as a consumer of its records, e.g. to share one pass through
+     * the file with other analyses. The mode to process ambiguous reads is
+     * the one set to the ReadCounter object; in mode 3,
+     * estimateCountsIteratively should be run after the pass.
+     *
+     * @param overlap The overlap resolution shared with the other consumers,
+     * or null to use its own.
+     */
+    RecordConsumer newCountingConsumer(RecordOverlap overlap, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose) {
+        return new CountingConsumer(overlap, considerNHAttrib, onlyUnique, readCollapse, verbose);
+    }
+
+    /**
+     * The counting of all the records of the input file. The records should
+     * be sorted by coordinate, unless they are grouped by name.
+     */
+    private class CountingConsumer implements RecordConsumer {
+        private final RecordOverlap overlap;
+        private final boolean considerNHAttrib;
+        private final boolean onlyUnique;
+        private final boolean readCollapse;
+        private final boolean verbose;
+        private final CoordinateOrder order = new CoordinateOrder();
+        private CountingPass pass;
+
+        CountingConsumer(RecordOverlap overlap, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose) {
+            this.overlap = overlap;
+            this.considerNHAttrib = considerNHAttrib;
+            this.onlyUnique = onlyUnique;
+            this.readCollapse = readCollapse;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public void start(SAMFileHeader header) {
+            boolean nameGrouped = isNameGrouped(header);
+            boolean collapse = readCollapse;
+            if (nameGrouped && collapse) {
+                System.err.println("WARNING: Redundant reads removal needs the input sorted by coordinate. It is skipped for " + inputFile.getName() + ".");
+                collapse = false;
+            }
+            totalNumReads = 0;
+            pass = new CountingPass(null, overlap, considerNHAttrib, onlyUnique, collapse, modeForMultiGenesOverlap, verbose);
+            pass.counts = counts;
+            pass.nameGrouped = nameGrouped;
+        }
+
+        @Override
+        public void accept(BAMRecordView record) {
+            // the reads should be sorted by coordinate, unless they are grouped by name
+            if (!pass.nameGrouped) {
+                order.check(record);
+            }
+            pass.processRecord(record);
+        }
+
+        @Override
+        public void finish() {
+            pass.finishGroup();
+            totalNumReads = pass.totalNumReads;
+            if (pass.readLength > readLength)
+                readLength = pass.readLength;
+            ambiguousClasses = pass.ambiguousClasses;
+            pass.mateBuffer.evictAll();
+            printCountingSummary(pass.numNoFeature, pass.numAmbiguous, pass.mateBuffer.getNumEvicted() + pass.numUnpairedInGroups);
+        }
+    }
+
+    /**
+     * FunName: estimateCountsTargeted. Description: count reads which are
+     * overlapping with the target genes, reading only the records overlapping
+     * the extents of the targets from the index. The mates located outside
+     * the extents are fetched beforehand with a second query at their
+     * positions, and fed to the counting pass in coordinate order, so that
+     * the pairs and the collapsing of duplicates are handled as in a full
+     * scan. The total number of reads is only estimated from the aligned
+     * records in the index, i.e. without the filters of the counting, e.g. of
+     * the multi-mapped reads, so that the rest of the file is not read. If the
+     * input is not indexed, the whole file is counted.
+     */
+    void estimateCountsTargeted(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose) {
+        try (SamReader inputSam = SamInputs.open(inputFile)) {
+            if (!inputSam.hasIndex()) {
+                System.err.println("WARNING: " + inputFile.getName() + " is not indexed. Scan the whole file for the target genes.");
+                estimateCountsSimply(considerNHAttrib, onlyUnique, readCollapse, verbose);
+                return;
+            }
+            totalNumReads = 0;
+            CountingPass pass = new CountingPass(null, considerNHAttrib, onlyUnique, readCollapse, modeForMultiGenesOverlap, verbose);
+            pass.counts = counts;
+            QueryInterval[] intervals = targets.getQueryIntervals(inputSam.getFileHeader());
+
+            // find the mates starting outside the intervals
+            HashMap<Long, QueryInterval> outsideMates = new HashMap<>();
+            boolean paired = false;
+            try (SAMRecordIterator iterator = inputSam.queryOverlapping(intervals)) {
+                while (iterator.hasNext()) {
+                    SAMRecord record = iterator.next();
+                    if (!record.getReadPairedFlag() || record.getReadUnmappedFlag() || record.getMateUnmappedFlag()) {
+                        continue;
                     }
-                    int alignmentStart = hits.get(0).getReferenceStart();
-
-                    String chrom = record.getReferenceName();
-                    String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
-                    String cigar = record.getCigarString();
-
-                    // remove PCR artifact if necessary (only work for single-ended data)
-                    if (readCollapse && !record.getReadPairedFlag()) {
-                        if (chromLast.equals(chrom) && strandLast.equals(strand) && cigarLast.equals(cigar) && alignmentStartLast == alignmentStart) {
-                            continue;
-                        } else {
-                            chromLast = chrom;
-                            strandLast = strand;
-                            cigarLast = cigar;
-                            alignmentStartLast = alignmentStart;
-                        }
-                    } else if (readCollapse && record.getReadPairedFlag() && !notifyPairedCollapse) {
-                        System.err.println("WARNING: Redundant reads removal is not supported for paired-ended RNA-seq data yet.");
-                        notifyPairedCollapse = true;
+                    paired = true;
+                    int mateRefIndex = record.getMateReferenceIndex();
+                    int mateStart = record.getMateAlignmentStart();
+                    if (!overlapsIntervals(intervals, mateRefIndex, mateStart, mateStart)) {
+                        outsideMates.put(getMateKey(record.getReadName(), mateRefIndex, mateStart, !record.getFirstOfPairFlag()), new QueryInterval(mateRefIndex, mateStart, mateStart));
                     }
-
-                    // count total reads
-                    if ((record.getReadPairedFlag() && record.getSecondOfPairFlag()) || !record.getReadPairedFlag()) {
-                        if (considerNHAttrib && record.getIntegerAttribute("NH") != null) {
-                            totalNumReads += 1.0 / record.getIntegerAttribute("NH");
-                        } else {
-                            totalNumReads++;
-                        }
-                        if (java.lang.Math.ceil(totalNumReads) % 1000000 == 0) {
-                            System.err.println("reading reads " + Double.valueOf(java.lang.Math.ceil(totalNumReads)).longValue() + "...");
+                }
+            }
+            final ArrayList<SAMRecord> mates = new ArrayList<>();
+            if (!outsideMates.isEmpty()) {
+                QueryInterval[] mateIntervals = QueryInterval.optimizeIntervals(outsideMates.values().toArray(new QueryInterval[outsideMates.size()]));
+                try (SAMRecordIterator iterator = inputSam.queryOverlapping(mateIntervals)) {
+                    while (iterator.hasNext()) {
+                        SAMRecord record = iterator.next();
+                        // the mates overlapping the intervals are already read in the main query
+                        if (record.getReadPairedFlag() && outsideMates.containsKey(getMateKey(record.getReadName(), record.getReferenceIndex(), record.getAlignmentStart(), record.getFirstOfPairFlag()))
+                                && !overlapsIntervals(intervals, record.getReferenceIndex(), record.getAlignmentStart(), record.getAlignmentEnd())) {
+                            mates.add(record);
                         }
                     }
-
-                    // skip if no gene exists in this chromosome in annotation
-                    if (!annotation.chromIsExisted(chrom)) {
-                        if(record.getReadPairedFlag() && record.getFirstOfPairFlag())
-                            continue;
-                        numNoFeature++;
-                        continue;
+                }
+                Collections.sort(mates, new Comparator<SAMRecord>() {
+                    @Override
+                    public int compare(SAMRecord o1, SAMRecord o2) {
+                        return Long.compare(MateBuffer.toPosition(o1.getReferenceIndex(), o1.getAlignmentStart()), MateBuffer.toPosition(o2.getReferenceIndex(), o2.getAlignmentStart()));
                     }
+                });
+            }
 
-                    // get overlapping genes for the record
-                    SAMRecordProcessor recordProcessor = new SAMRecordProcessor(record, annotation);
-                    ArrayList<String> overlappedGenes = recordProcessor.getOverlapGenes(strandSpecific);
-
-                    if (record.getReadPairedFlag() && record.getFirstOfPairFlag()) { // if this is the first segment of a pair, denote its overlapping genes, and the record as well if needed
-                        String id = record.getReadName();
-                        Pattern pattern=Pattern.compile("\\W[1,2]$");
-                        Matcher matcher=pattern.matcher(id);
-                        if(matcher.find())
-                            id = id.replaceAll("[12]$", "");
-                        id = id + " " + record.getMateReferenceName() + ":" + Integer.toString(record.getMateAlignmentStart());
-
-                        if (!overlappedGenes.isEmpty()) {
-                            HashSet<String> genes = new HashSet<>();
-                            genes.addAll(overlappedGenes);
-                            overlapGenesForPair.put(id, genes);
-                        }
-                        if (markAmbiguous) {
-                            firstRecordOfPair.put(id, record);
-                        }
-                        continue;
+            // count the records of the intervals, merged with the mates in coordinate order
+            final SAMRecordIterator regionIterator = inputSam.queryOverlapping(intervals);
+            CloseableIterator<SAMRecord> merged = new CloseableIterator<SAMRecord>() {
+                private SAMRecord nextRegionRecord = regionIterator.hasNext() ? regionIterator.next() : null;
+                private int mateIndex = 0;
 
-                    } else if (record.getReadPairedFlag() && record.getSecondOfPairFlag()) { // if this is the second segment of a pair, combine the overlapping genes of the two segments
-                        String id = record.getReadName();
-                        Pattern pattern=Pattern.compile("\\W[1,2]$");
-                        Matcher matcher=pattern.matcher(id);
-                        if(matcher.find())
-                            id = id.replaceAll("[12]$", "");
-                        id = id + " " + record.getReferenceName() + ":" + Integer.toString(record.getAlignmentStart());
-
-                        if (overlapGenesForPair.containsKey(id)) {
-                            HashSet<String> genes = overlapGenesForPair.get(id);
-                            genes.addAll(overlappedGenes);
-                            overlappedGenes.clear();
-                            overlappedGenes.addAll(genes);
-
-                            overlapGenesForPair.remove(id);
-                        }
+                @Override
+                public boolean hasNext() {
+                    return nextRegionRecord != null || mateIndex < mates.size();
+                }
+
+                @Override
+                public SAMRecord next() {
+                    SAMRecord record;
+                    if (mateIndex < mates.size() && (nextRegionRecord == null || MateBuffer.toPosition(mates.get(mateIndex).getReferenceIndex(), mates.get(mateIndex).getAlignmentStart()) < MateBuffer.toPosition(nextRegionRecord.getReferenceIndex(), nextRegionRecord.getAlignmentStart()))) {
+                        record = mates.get(mateIndex++);
+                    } else {
+                        record = nextRegionRecord;
+                        nextRegionRecord = regionIterator.hasNext() ? regionIterator.next() : null;
                     }
+                    return record;
+                }
 
-                    //System.err.println(record.getReadName()+"\t"+overlappedGenes);
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
 
-                    // add count to the genes
-                    double add = 1;
-                    if (considerNHAttrib && record.getIntegerAttribute("NH") != null) {
-                        add = add / record.getIntegerAttribute("NH");
+                @Override
+                public void close() {
+                    regionIterator.close();
+                }
+            };
+            try (RecordViewReader reader = RecordViewReader.of(inputSam, merged)) {
+                BAMRecordView record = new BAMRecordView();
+                while (reader.next(record)) {
+                    pass.processRecord(record);
+                }
+            }
+
+            totalNumReads = pass.totalNumReads;
+            if (pass.readLength > readLength)
+                readLength = pass.readLength;
+            ambiguousClasses = pass.ambiguousClasses;
+            pass.mateBuffer.evictAll();
+            printCountingSummary(pass.numNoFeature, pass.numAmbiguous, pass.mateBuffer.getNumEvicted());
+
+            long numAlignedRecords = countAlignedRecords(inputFile);
+            if (numAlignedRecords >= 0) {
+                totalNumReads = paired ? numAlignedRecords / 2.0 : numAlignedRecords;
+                System.err.println("estimate the total number of reads from the aligned records in the index, without the read filters: " + (long) totalNumReads);
+            } else {
+                System.err.println("WARNING: Cannot get the number of aligned records from the index of " + inputFile.getName() + ". The total number of reads only includes the target genes.");
+            }
+        } catch (Exception e) {
+            System.err.println("ERROR! " + e + " in estimateCountsTargeted at ReadCounter!\n");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * FunName: getMateKey. Description: The key of a segment of a pair, given
+     * by its read name, position and whether it is the first segment.
+     */
+    private static long getMateKey(String readName, int refIndex, int alignmentStart, boolean firstOfPair) {
+        return MateBuffer.getPairKey(readName, refIndex, alignmentStart) * 2 + (firstOfPair ? 1 : 0);
+    }
+
+    /**
+     * FunName: overlapsIntervals. Description: Whether the range overlaps any
+     * of the sorted and merged intervals.
+     */
+    private static boolean overlapsIntervals(QueryInterval[] intervals, int refIndex, int start, int end) {
+        int low = 0, high = intervals.length - 1;
+        while (low <= high) { // find the last interval starting at or before the end of the range
+            int mid = (low + high) >>> 1;
+            if (intervals[mid].referenceIndex < refIndex || (intervals[mid].referenceIndex == refIndex && intervals[mid].start <= end)) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && intervals[high].referenceIndex == refIndex && (intervals[high].end <= 0 || intervals[high].end >= start);
+    }
+
+    /**
+     * FunName: countAlignedRecords. Description: Sum up the aligned records
+     * of all the chromosomes in the BAM index.
+     *
+     * @return The number of records, or -1 if the index has no such
+     * information, e.g. of CRAM files.
+     */
+    private static long countAlignedRecords(File file) {
+        try (SamReader inputSam = SamInputs.open(file)) {
+            BAMIndex index = inputSam.indexing().getIndex();
+            long numRecords = 0;
+            for (int i = 0; i < inputSam.getFileHeader().getSequenceDictionary().size(); i++) {
+                BAMIndexMetaData metaData = index.getMetaData(i);
+                if (metaData != null) {
+                    numRecords += metaData.getAlignedRecordCount();
+                }
+            }
+            return numRecords;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * FunName: estimateCountsInParallel. Description: count reads which are
+     * overlapping with each feature in the annotation with multiple threads.
+     * The indexed BAM file is split into shards with balanced amount of data,
+     * by chromosome and by ranges within large chromosomes. Each shard is
+     * counted by a worker and the results are merged afterwards. Read pairs
+     * with the two mates in different shards are combined during the merging,
+     * so that the result is the same as the one of estimateCountsSimply.
+     * If the input is not an indexed BAM file, the counting is done with one
+     * thread.
+     *
+     * @param considerNHAttrib If true, use NH attribute in the SAM record to
+     * separate uniquely and multiply mapped reads.
+     * @param onlyUnique If true, only consider the reads with NH=1 tag if it is
+     * single-ended reads
+     * @param readCollapse If true, collapse the plausible PCR duplicates.
+     * @param numThreads The number of worker threads.
+     */
+    void estimateCountsInParallel(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose, int numThreads) {
+        ArrayList<BAMShard> shards;
+        try (SamReader inputSam = SamInputs.open(inputFile)) {
+            if (inputSam.type() != SamReader.Type.BAM_TYPE || !inputSam.hasIndex()) {
+                System.err.println("WARNING: " + inputFile.getName() + " is not an indexed BAM file. Count the reads with one thread.");
+                estimateCountsSimply(considerNHAttrib, onlyUnique, readCollapse, verbose);
+                return;
+            }
+            if (inputSam.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                throw new IllegalArgumentException("The input BAM file should be sorted by coordinate.");
+            }
+            shards = BAMShard.split(inputSam, numThreads * 4);
+        } catch (Exception e) {
+            System.err.println("ERROR! " + e + " in estimateCountsInParallel at ReadCounter!\n");
+            System.exit(1);
+            return;
+        }
+        System.err.println("split " + inputFile.getName() + " into " + shards.size() + " shards");
+        finishShards(countShards(shards, considerNHAttrib, onlyUnique, readCollapse, verbose, numThreads));
+    }
+
+    /**
+     * FunName: estimateCountsOfShard. Description: Count the reads of the
+     * shard set by setShard, with the ranges of the shard counted in parallel.
+     * The pairs whose mates are in other shards and the multi-gene hits of
+     * mode 3 are kept, to be written by writePartial.
+     */
+    private void estimateCountsOfShard(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose, int numThreads) {
+        ArrayList<BAMShard> shards;
+        try {
+            shards = selectShards();
+        } catch (Exception e) {
+            System.err.println("ERROR! " + e + " in estimateCountsOfShard at ReadCounter!\n");
+            System.exit(1);
+            return;
+        }
+        shardPass = countShards(shards, considerNHAttrib, onlyUnique, readCollapse, verbose, numThreads);
+        totalNumReads = shardPass.totalNumReads;
+        printCountingSummary(shardPass.numNoFeature, shardPass.numAmbiguous, shardPass.mateBuffer.getNumEvicted());
+    }
+
+    /**
+     * FunName: countShards. Description: Count the shards of the input with
+     * the given number of threads, and merge their results in genomic order.
+     * The counts are added to the counter, and the rest of the results, i.e.
+     * the read numbers, the first segments whose second segments are not
+     * found, the second segments whose first segments are in earlier shards
+     * and the multi-gene hits of mode 3, are kept in the returned pass.
+     *
+     * @param shards The shards in genomic order.
+     * @return The merged state of the shards.
+     */
+    private CountingPass countShards(ArrayList<BAMShard> shards, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose, int numThreads) {
+        // submit the larger shards first, so that the workers finish at similar time
+        ArrayList<BAMShard> submitOrder = new ArrayList<>(shards);
+        Collections.sort(submitOrder, new Comparator<BAMShard>() {
+            @Override
+            public int compare(BAMShard o1, BAMShard o2) {
+                return Long.compare(o2.getWeight(), o1.getWeight());
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        HashMap<BAMShard, Future<CountingPass>> results = new HashMap<>();
+        for (final BAMShard shard : submitOrder) {
+            final CountingPass pass = new CountingPass(shard, considerNHAttrib, onlyUnique, readCollapse, modeForMultiGenesOverlap, verbose);
+            results.put(shard, pool.submit(new Callable<CountingPass>() {
+                @Override
+                public CountingPass call() throws Exception {
+                    File rangeFile = checkpoint == null ? null : checkpoint.getRangeFile(inputFile.getPath(), shard);
+                    if (rangeFile != null && rangeFile.exists()) { // counted before the restart
+                        for (String[] fields : Checkpoint.read(rangeFile)) {
+                            readCountingPass(fields, pass);
+                        }
+                        return pass;
                     }
-                    if (overlappedGenes.isEmpty()) {
-                        numNoFeature++;
-                    } else if (overlappedGenes.size() == 1 || modeForMultiGenesOverlap == 1) { // Mode 1: For the multi-genes hits, equally assign 1/n to each gene
-                        add /= overlappedGenes.size();
-                        for (String gene : overlappedGenes) {
-                            counts.put(gene, counts.get(gene) + add);
-                            if (verbose){
-                                System.err.println(record.getReadName() + "\t" + gene);
-                            }
+                    try (ShardRecordReader reader = new ShardRecordReader(inputFile, Collections.singletonList(shard))) {
+                        BAMRecordView record = new BAMRecordView();
+                        while (reader.next(record)) {
+                            pass.processRecord(record);
                         }
-                    } else if (overlappedGenes.size() > 1 && modeForMultiGenesOverlap == 2) { // Mode 2: For the multi-genes hits, randomly assign to one of the gene
-                        java.util.Random random = new java.util.Random();
-                        int selected = java.lang.Math.abs(random.nextInt()) % overlappedGenes.size();
-                        counts.put(overlappedGenes.get(selected), counts.get(overlappedGenes.get(selected)) + add);
-                    } else if (modeForMultiGenesOverlap == 0) { // Mode 0: See the multi-genes hits as ambiguous hits
-                        numAmbiguous++;
                     }
-
-                    if (markAmbiguous) { // Mode 3: For the multi-genes hits, save them for the iterative counting
-                        if (record.getReadPairedFlag() && record.getSecondOfPairFlag()) {
-                            String id = record.getReadName();
-                            id = id.replaceAll("[12]$", "");
-                            id = id + " " + record.getReferenceName() + ":" + Integer.toString(record.getAlignmentStart());
-                            if (overlappedGenes.size() > 1) {
-                                outputSam.addAlignment(firstRecordOfPair.get(id));
-                                outputSam.addAlignment(record);
-                            }
-                            firstRecordOfPair.remove(id);
-                        } else if (!record.getReadPairedFlag() && overlappedGenes.size() > 1) {
-                            outputSam.addAlignment(record);
+                    // the first segments whose second segments should have been in this shard
+                    pass.mateBuffer.evictBefore(MateBuffer.toPosition(shard.getChromIndex(), shard.getEnd() + 1));
+                    if (rangeFile != null) {
+                        ByteArrayOutputStream state = new ByteArrayOutputStream();
+                        try (PrintStream out = new PrintStream(state)) {
+                            writeCountingPass(out, pass);
                         }
+                        Checkpoint.write(rangeFile, state.toString());
                     }
-                } catch (SAMFormatException e){
-                    System.err.println("Warning: " + e);
+                    return pass;
                 }
+            }));
+        }
+        pool.shutdown();
+
+        // merge the shards in genomic order
+        CountingPass merged = new CountingPass(null, considerNHAttrib, onlyUnique, readCollapse, modeForMultiGenesOverlap, verbose);
+        merged.counts = counts;
+        try {
+            for (BAMShard shard : shards) {
+                CountingPass pass = results.get(shard).get();
+                for (int gene = 0; gene < counts.length; gene++) {
+                    counts[gene] += pass.counts[gene];
+                }
+                merged.totalNumReads += pass.totalNumReads;
+                merged.numNoFeature += pass.numNoFeature;
+                merged.numAmbiguous += pass.numAmbiguous;
+                if (pass.readLength > merged.readLength)
+                    merged.readLength = pass.readLength;
+                pass.mateBuffer.moveTo(merged.mateBuffer);
+                if (pass.ambiguousClasses != null) {
+                    merged.ambiguousClasses.addAll(pass.ambiguousClasses);
+                }
+                merged.deferredMates.addAll(pass.deferredMates);
             }
-            iterator.close();
-            CloserUtil.close(inputSam);
-            if (markAmbiguous) {
-                outputSam.close();
-            }
-        } catch (Exception e) {
-            System.err.println("ERROR! " + e + " in estimateCountsSimply at ReadCounter!\n");
+        } catch (InterruptedException | ExecutionException e) {
+            pool.shutdownNow();
+            System.err.println("ERROR! " + e + " in countShards at ReadCounter!\n");
             System.exit(1);
         }
+        if (merged.readLength > readLength)
+            readLength = merged.readLength;
+        return merged;
+    }
+
+    /**
+     * FunName: finishShards. Description: Combine the second segments whose
+     * first segments were in earlier shards with them, after all the shards
+     * are merged, and complete the counting.
+     *
+     * @param merged The merged state of the shards.
+     */
+    private void finishShards(CountingPass merged) {
+        SegmentMap segmentMap = annotation.getSegmentMap();
+        for (PendingMate mate : merged.deferredMates) {
+            GeneHits genes = merged.overlappedGenes;
+            genes.clear();
+            genes.union(segmentMap.getGenes(mate.geneSet));
+            int geneSetFirst = merged.mateBuffer.remove(mate.key);
+            if (geneSetFirst > 0) {
+                genes.union(segmentMap.getGenes(geneSetFirst));
+            }
+            merged.assignRead(genes, mate.add, mate.readName);
+        }
+        merged.deferredMates.clear();
+        merged.mateBuffer.evictAll();
+        ambiguousClasses = merged.ambiguousClasses;
+        totalNumReads = merged.totalNumReads;
+
+        printCountingSummary(merged.numNoFeature, merged.numAmbiguous, merged.mateBuffer.getNumEvicted());
+    }
 
+    private void printCountingSummary(int numNoFeature, int numAmbiguous, long numUnpaired) {
         System.err.println(inputFile.getAbsolutePath() + ":");
         System.err.printf("%45s|          %d\n", "Number of mapped reads", (int) totalNumReads);
         System.err.printf("%45s|          %d\n", "Number of reads with assigned feature", (int) totalNumReads - numNoFeature - numAmbiguous);
         System.err.printf("%45s|          %d\n", "Number of reads with no feature", numNoFeature);
         System.err.printf("%45s|          %d\n", "Number of ambiguous reads", numAmbiguous);
+        if (numUnpaired > 0) {
+            System.err.printf("%45s|          %d\n", "Number of first segments evicted unpaired", numUnpaired);
+        }
+    }
+
+    /**
+     * The second segment of a pair whose first segment is located in an
+     * earlier shard. It is assigned after all the shards are merged.
+     */
+    private static class PendingMate {
+        final long key;
+        final String readName;
+        final int geneSet;
+        final double add;
+
+        PendingMate(long key, String readName, int geneSet, double add) {
+            this.key = key;
+            this.readName = readName;
+            this.geneSet = geneSet;
+            this.add = add;
+        }
+    }
+
+    /**
+     * The counting state of one sweep through the coordinate-sorted records,
+     * either of the whole input file or of one shard of it. With nameGrouped
+     * set, the records are instead grouped by read name, e.g. sorted by query
+     * name as given by the aligners; the segments of each group are collected
+     * and the pairs are combined when the group ends, without the mate buffer.
+     * The genes are then looked up in a random order, which the annotation
+     * cursor resolves by binary search instead of moving forward.
+     */
+    private class CountingPass {
+        private final BAMShard shard;
+        private final boolean considerNHAttrib;
+        private final boolean onlyUnique;
+        private final boolean readCollapse;
+        private final int modeForMultiGenesOverlap;
+        private final boolean verbose;
+
+        private double[] counts;
+        private double totalNumReads = 0;
+        private int numNoFeature = 0, numAmbiguous = 0;
+        private int readLength = -1;
+        private final EquivalenceClasses ambiguousClasses;
+        private final RecordOverlap overlap;
+        private final GeneHits overlappedGenes = new GeneHits();
+        private final java.util.Random random = new java.util.Random();
+
+        private boolean notifyPairedCollapse = false;
+        private String chromLast = "";
+        private String strandLast = "";
+        private String cigarLast = "";
+        private int alignmentStartLast = -1;
+        private final MateBuffer mateBuffer = new MateBuffer();
+        private final ArrayList<PendingMate> deferredMates = new ArrayList<>();
+
+        // the segments of the current read group, for the name-grouped records
+        private boolean nameGrouped = false;
+        private final StringBuilder groupName = new StringBuilder();
+        private int numFirsts = 0, numSeconds = 0;
+        private long[] firstMatePositions = new long[4];
+        private int[] firstGeneSets = new int[4];
+        private long[] secondPositions = new long[4];
+        private int[] secondGeneSets = new int[4];
+        private double[] secondAdds = new double[4];
+        private final ArrayList<String> secondNames = new ArrayList<>();
+        private long numUnpairedInGroups = 0;
+
+        CountingPass(BAMShard shard, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, int modeForMultiGenesOverlap, boolean verbose) {
+            this(shard, null, considerNHAttrib, onlyUnique, readCollapse, modeForMultiGenesOverlap, verbose);
+        }
+
+        CountingPass(BAMShard shard, RecordOverlap overlap, boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, int modeForMultiGenesOverlap, boolean verbose) {
+            this.shard = shard;
+            this.overlap = overlap == null ? new RecordOverlap(annotation, strandSpecific) : overlap;
+            this.considerNHAttrib = considerNHAttrib;
+            this.onlyUnique = onlyUnique;
+            this.readCollapse = readCollapse;
+            this.modeForMultiGenesOverlap = modeForMultiGenesOverlap;
+            this.verbose = verbose;
+            this.counts = new double[annotation.getNumGenes()];
+            this.ambiguousClasses = modeForMultiGenesOverlap == 3 ? new EquivalenceClasses(annotation) : null;
+        }
+
+        void processRecord(BAMRecordView record) {
+            if (shard != null && !shard.contains(record.getReferenceIndex(), record.getAlignmentStart())) // the record belongs to another shard
+                return;
+            if (nameGrouped && !isInGroup(record.getReadNameSequence())) { // a new read starts, finish the pairs of the last one
+                finishGroup();
+                CharSequence name = record.getReadNameSequence();
+                groupName.setLength(0);
+                groupName.append(name, 0, MateBuffer.getPairNameLength(name));
+            }
+            int thisReadLength = record.getReadLength();
+            if(thisReadLength > readLength)
+                readLength = thisReadLength;
+            if (record.getReadUnmappedFlag()) // skip if this read is unmapped
+                return;
+            if (record.getReadPairedFlag() && (!record.getProperPairFlag() && (!sameChrIsEnough || !record.getReferenceName().equals(record.getMateReferenceName())))) // skip if the read if paired but not in the proper paired mapping
+                return;
+            Integer nh = record.getIntegerAttribute("NH");
+            if (onlyUnique && nh != null && nh != 1)
+                return;
+
+            String chrom = record.getReferenceName();
+
+            // remove PCR artifact if necessary (only work for single-ended data)
+            if (readCollapse && !record.getReadPairedFlag()) {
+                int alignmentStart = record.getAlignmentStart();
+                String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
+                String cigar = record.getCigarString();
+                if (chromLast.equals(chrom) && strandLast.equals(strand) && cigarLast.equals(cigar) && alignmentStartLast == alignmentStart) {
+                    return;
+                } else {
+                    chromLast = chrom;
+                    strandLast = strand;
+                    cigarLast = cigar;
+                    alignmentStartLast = alignmentStart;
+                }
+            } else if (readCollapse && record.getReadPairedFlag() && !notifyPairedCollapse) {
+                System.err.println("WARNING: Redundant reads removal is not supported for paired-ended RNA-seq data yet.");
+                notifyPairedCollapse = true;
+            }
+
+            double add = 1;
+            if (considerNHAttrib && nh != null) {
+                add = add / nh;
+            }
+
+            // count total reads
+            if ((record.getReadPairedFlag() && record.getSecondOfPairFlag()) || !record.getReadPairedFlag()) {
+                totalNumReads += add;
+                if (shard == null && java.lang.Math.ceil(totalNumReads) % 1000000 == 0) {
+                    System.err.println("reading reads " + Double.valueOf(java.lang.Math.ceil(totalNumReads)).longValue() + "...");
+                }
+            }
+
+            // skip if no gene exists in this chromosome in annotation
+            if (!annotation.chromIsExisted(chrom)) {
+                if(record.getReadPairedFlag() && record.getFirstOfPairFlag())
+                    return;
+                numNoFeature++;
+                return;
+            }
+
+            // get overlapping genes for the record
+            int geneSet = overlap.getOverlapGeneSet(record, overlappedGenes);
+
+            if (nameGrouped && record.getReadPairedFlag()) { // keep the segment until the whole group is read
+                addToGroup(record, keepGeneSet(geneSet), add);
+                return;
+            }
+            if (record.getReadPairedFlag()) { // the first segments whose second segments should have been seen are not needed any more
+                mateBuffer.evictBefore(MateBuffer.toPosition(record.getReferenceIndex(), record.getAlignmentStart()));
+            }
+            if (record.getReadPairedFlag() && record.getFirstOfPairFlag()) { // if this is the first segment of a pair, denote its overlapping genes, and the record as well if needed
+                if (geneSet != 0) {
+                    mateBuffer.putFirstSegment(record, keepGeneSet(geneSet));
+                }
+                return;
+
+            } else if (record.getReadPairedFlag() && record.getSecondOfPairFlag()) { // if this is the second segment of a pair, combine the overlapping genes of the two segments
+                if (shard != null && shard.isBefore(record.getMateReferenceIndex(), record.getMateAlignmentStart())) { // the first segment is in an earlier shard, combine them when merging the shards
+                    deferredMates.add(new PendingMate(MateBuffer.getPairKey(record.getReadNameSequence(), record.getReferenceIndex(), record.getAlignmentStart()), verbose ? record.getReadName() : null, keepGeneSet(geneSet), add));
+                    return;
+                }
+                int geneSetFirst = mateBuffer.removeFirstSegment(record);
+                if (geneSetFirst > 0) {
+                    overlappedGenes.union(annotation.getSegmentMap().getGenes(geneSetFirst));
+                }
+            }
+
+            // add count to the genes
+            assignRead(overlappedGenes, add, record.getReadNameSequence());
+        }
+
+        /**
+         * FunName: keepGeneSet. Description: Get the ID of the gene set of the
+         * current record to be kept after the record, e.g. in the mate buffer.
+         * The union of several sets of the segment map is only interned here.
+         */
+        private int keepGeneSet(int geneSet) {
+            return geneSet == SegmentMap.UNION_OF_SETS ? annotation.getSegmentMap().intern(overlappedGenes.toArray()) : geneSet;
+        }
+
+        /**
+         * FunName: isInGroup. Description: Whether the read name belongs to
+         * the current group, ignoring the suffix of the segment.
+         */
+        private boolean isInGroup(CharSequence readName) {
+            int length = MateBuffer.getPairNameLength(readName);
+            if (length != groupName.length()) {
+                return false;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (readName.charAt(i) != groupName.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * FunName: addToGroup. Description: Keep a segment of a pair in the
+         * current group. The first segments without any gene are not needed.
+         */
+        private void addToGroup(BAMRecordView record, int geneSet, double add) {
+            if (record.getFirstOfPairFlag()) {
+                if (geneSet == 0) {
+                    return;
+                }
+                if (numFirsts == firstGeneSets.length) {
+                    firstMatePositions = java.util.Arrays.copyOf(firstMatePositions, numFirsts * 2);
+                    firstGeneSets = java.util.Arrays.copyOf(firstGeneSets, numFirsts * 2);
+                }
+                firstMatePositions[numFirsts] = MateBuffer.toPosition(record.getMateReferenceIndex(), record.getMateAlignmentStart());
+                firstGeneSets[numFirsts] = geneSet;
+                numFirsts++;
+            } else if (record.getSecondOfPairFlag()) {
+                if (numSeconds == secondGeneSets.length) {
+                    secondPositions = java.util.Arrays.copyOf(secondPositions, numSeconds * 2);
+                    secondGeneSets = java.util.Arrays.copyOf(secondGeneSets, numSeconds * 2);
+                    secondAdds = java.util.Arrays.copyOf(secondAdds, numSeconds * 2);
+                }
+                secondPositions[numSeconds] = MateBuffer.toPosition(record.getReferenceIndex(), record.getAlignmentStart());
+                secondGeneSets[numSeconds] = geneSet;
+                secondAdds[numSeconds] = add;
+                if (verbose) {
+                    secondNames.add(record.getReadName());
+                }
+                numSeconds++;
+            }
+        }
+
+        /**
+         * FunName: finishGroup. Description: Combine each second segment of
+         * the current group with the first segment pointing to it, and assign
+         * the pairs to the genes. The first segments left without their second
+         * segments are counted as unpaired.
+         */
+        void finishGroup() {
+            for (int i = 0; i < numSeconds; i++) {
+                overlappedGenes.clear();
+                if (secondGeneSets[i] > 0) {
+                    overlappedGenes.union(annotation.getSegmentMap().getGenes(secondGeneSets[i]));
+                }
+                for (int j = 0; j < numFirsts; j++) {
+                    if (firstGeneSets[j] > 0 && firstMatePositions[j] == secondPositions[i]) {
+                        overlappedGenes.union(annotation.getSegmentMap().getGenes(firstGeneSets[j]));
+                        firstGeneSets[j] = -1;
+                        break;
+                    }
+                }
+                assignRead(overlappedGenes, secondAdds[i], verbose ? secondNames.get(i) : groupName);
+            }
+            for (int j = 0; j < numFirsts; j++) {
+                if (firstGeneSets[j] > 0) {
+                    numUnpairedInGroups++;
+                }
+            }
+            numFirsts = 0;
+            numSeconds = 0;
+            secondNames.clear();
+        }
+
+        void assignRead(GeneHits overlappedGenes, double add, CharSequence readName) {
+            if (overlappedGenes.isEmpty()) {
+                numNoFeature++;
+            } else if (overlappedGenes.size() == 1 || modeForMultiGenesOverlap == 1) { // Mode 1: For the multi-genes hits, equally assign 1/n to each gene
+                add /= overlappedGenes.size();
+                for (int i = 0; i < overlappedGenes.size(); i++) {
+                    int gene = overlappedGenes.get(i);
+                    counts[gene] += add;
+                    if (verbose){
+                        System.err.println(readName + "\t" + annotation.getGeneID(gene));
+                    }
+                }
+            } else if (overlappedGenes.size() > 1 && modeForMultiGenesOverlap == 2) { // Mode 2: For the multi-genes hits, randomly assign to one of the gene
+                int selected = java.lang.Math.abs(random.nextInt()) % overlappedGenes.size();
+                counts[overlappedGenes.get(selected)] += add;
+            } else if (modeForMultiGenesOverlap == 0) { // Mode 0: See the multi-genes hits as ambiguous hits
+                numAmbiguous++;
+            } else if (modeForMultiGenesOverlap == 3) { // Mode 3: For the multi-genes hits, save them as equivalence classes for the EM
+                ambiguousClasses.add(overlappedGenes.toArray(), add);
+            }
+        }
     }
 
     /**
@@ -569,7 +1336,8 @@ public class ReadCounter {
      * @param modeForMultiGenesOverlap The mode to process ambiguous reads.
      */
     private void estimateRPKM(int modeForMultiGenesOverlap) {
-        for (String gene : counts.keySet()) {
+        for (int ordinal = 0; ordinal < counts.length; ordinal++) {
+            String gene = annotation.getGeneID(ordinal);
             int length;
             if (modeForMultiGenesOverlap == 0) {
                 if (annotation.getExclusiveGeneLengthNoStrand(gene) == -1) {
@@ -581,31 +1349,14 @@ public class ReadCounter {
             }
 
             if (length != -1 && length != 0) {
-                rpkm.put(gene, counts.get(gene) * 1000 * 1000000 / totalNumReads / length);
+                rpkm[ordinal] = counts[ordinal] * 1000 * 1000000 / totalNumReads / length;
             } else if (length == 0) {
-                rpkm.put(gene, 0.0);
+                rpkm[ordinal] = 0.0;
             }
         }
         calculatedRPKM = true;
     }
 
-    /**
-     * FunName: estimateCountsSimply. Description: Count reads which are
-     * overlapping with each feature (gene, peak, etc) in the annotation, no
-     * iteration. The mode to process ambiguous reads is the one set to the
-     * ReadCounter object
-     * @param onlyUnique If true, only consider the reads with NH=1 tag if it is
-     * single-ended reads
-     * @param considerNHAttrib If true, use NH attribute in the SAM record to
-     * separate uniquely and multiply mapped reads.
-     * @param readCollapse If true, collapse the plausible PCR duplicates, i.e.
-     * reads with the same mapping chromosome, strand, coordinate and cigar,
-     * into one read.
-     */
-    void estimateCountsSimply(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, boolean verbose) {
-        estimateCountsSimply(considerNHAttrib, onlyUnique, readCollapse, this.modeForMultiGenesOverlap, false, verbose);
-    }
-
     /**
      * FunName: estimateRPKM. Description: According to read counting result for
      * features in the annotation, calculate RPKM. The set mode in the
@@ -616,291 +1367,431 @@ public class ReadCounter {
     }
 
     /**
-     * FunName: estimateCountsIteratively. Description: Count reads which are
-     * overlapping with each feature (gene, peak, etc) in the annotation, and
-     * use iteration to better assign the ambiguous reads to one of its
-     * overlapping feature.
+     * FunName: estimateCountsIteratively. Description: Assign the multi-gene
+     * hits saved as equivalence classes during the counting to their
+     * overlapping features, with an EM which iterates until the counts
+     * converge. The counts of the other reads should be estimated already.
+     *
+     * @param convergLimit The upper limit of iteration time.
+     * @param numThreads The number of threads to run the EM.
+     */
+    void estimateCountsIteratively(int convergLimit, int numThreads) {
+        if (ambiguousClasses == null) {
+            return;
+        }
+        int numClasses = ambiguousClasses.getNumClasses();
+        int numIterations = ambiguousClasses.estimate(counts, convergLimit, convergenceTolerance, numThreads);
+        System.err.println("assign the multi-gene hits of " + numClasses + " equivalence classes: " + numIterations + " iterations");
+        ambiguousClasses = null;
+    }
+
+    /**
+     * FunName: estimateJunctionCounts. Description: Count the number of
+     * junction reads supporting each junction in the junction list.
      *
      * @param considerNHAttrib If true, use NH attribute in the SAM record to
      * separate uniquely and multiply mapped reads.
-     * @param onlyUnique If true, only consider the reads with NH=1 tag if it is
-     * single-ended reads
      * @param readCollapse If true, collapse the plausible PCR duplicates, i.e.
      * reads with the same mapping chromosome, strand, coordinate and cigar,
      * into one read.
-     * @param convergLimit The upper limit of iteration time if the counter is
-     * set to use iteration to better assign ambiguous reads to genes.
      */
-    private void estimateCountsIteratively(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse, int convergLimit) {
-        estimateCountsSimply(considerNHAttrib, onlyUnique, readCollapse, 0, true, false);
-        estimateRPKM(0);
-
-        boolean continueIterate = true;
-        int iterationTime = 0;
-        HashMap<String, Double> countsBackup = new HashMap<>();
-        while (continueIterate) {
-            System.err.println("start iteration: round " + String.valueOf(iterationTime + 1));
-
-            HashMap<String, Double> influencedGenesLastRPKM = new HashMap<>();
-            annotation.resetPointer();
-
-            try (SamReader inputSam = SamReaderFactory.makeDefault().open(new File(inputFile.getAbsolutePath() + "-ambiguous.bam"))) {
-                inputSam.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
-
-                HashMap<String, HashSet<String>> overlapGenesForPair = new HashMap<>(); // overlapping genes of the first segment of a pair
-                
-                for (SAMRecord record : inputSam) {
-                    SAMRecordProcessor recordProcessor = new SAMRecordProcessor(record, annotation);
-                    ArrayList<String> overlappedGenes = recordProcessor.getOverlapGenes(strandSpecific);
-
-                    // if paired-ended data, save if it's the first segment, union the ones of the first segment if it's the second one
-                    if(record.getReadPairedFlag() && record.getFirstOfPairFlag() && !overlappedGenes.isEmpty()){
-                        String id=record.getReadName();
-                        id = id.replaceAll("[12]$", "");
-                        id = id + " " + record.getMateReferenceName() + ":" + Integer.toString(record.getMateAlignmentStart());
-                        HashSet<String> genes=new HashSet<>();
-                        genes.addAll(overlappedGenes);
-                        overlapGenesForPair.put(id, genes);
-                    } else if(record.getReadPairedFlag() && record.getSecondOfPairFlag()){
-                        String id=record.getReadName();
-                        id = id.replaceAll("[12]$", "");
-                        id = id + " " + record.getReferenceName() + ":" + Integer.toString(record.getAlignmentStart());
-                        if(overlapGenesForPair.containsKey(id)){
-                            HashSet<String> genes=overlapGenesForPair.get(id);
-                            genes.addAll(overlappedGenes);
-                            overlappedGenes.clear();
-                            overlappedGenes.addAll(genes);
-                            overlapGenesForPair.remove(id);
-                        }
-                    }
-                    
-                    if(!record.getReadPairedFlag() || record.getSecondOfPairFlag()){
-                        ArrayList<Double> cdfOverlappedGenes = new ArrayList<>();
-                        for (String gene : overlappedGenes) {
-                            if (counts.get(gene).intValue() > 0) {
-                                influencedGenesLastRPKM.put(gene, rpkm.get(gene));
-                            }
+    void estimateJunctionCounts(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse) {
+        try (RecordViewReader reader = numShards > 0 ? new ShardRecordReader(inputFile, selectShards()) : openRecordViews()) {
+            new SinglePass(newJunctionConsumer(considerNHAttrib, onlyUnique, readCollapse)).run(reader);
+        } catch (Exception e) {
+            System.err.println("Error in ReadCounter when estimate junction count: " + e);
+            System.exit(1);
+        }
+    }
 
-                            if (cdfOverlappedGenes.isEmpty()) {
-                                cdfOverlappedGenes.add(rpkm.get(gene));
-                            } else {
-                                cdfOverlappedGenes.add(cdfOverlappedGenes.get(cdfOverlappedGenes.size() - 1) + rpkm.get(gene));
-                            }
+    /**
+     * FunName: newJunctionConsumer. Description: Get the junction counting of
+     * the input file as a consumer of its records, e.g. to share one pass
+     * through the file with other analyses. Without a junction list, the
+     * junctions of the annotation are counted.
+     */
+    RecordConsumer newJunctionConsumer(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse) {
+        if (junctions == null) {
+            junctions = new JunctionSet(annotation);
+            initJunctionCounts();
+        }
+        return new JunctionConsumer(considerNHAttrib, onlyUnique, readCollapse);
+    }
 
-                            if (!countsBackup.containsKey(gene)) {
-                                countsBackup.put(gene, new Double(counts.get(gene).doubleValue()));
-                            }
-                        }
+    /**
+     * The counting of the junction reads supporting each junction in the
+     * junction list.
+     */
+    private class JunctionConsumer implements RecordConsumer {
+        private final boolean considerNHAttrib;
+        private final boolean onlyUnique;
+        private final boolean readCollapse;
+        private final HashMap<String, HashSet<Junction>> juncListChrom = junctions.getJunctions();
+        private int numJuncReads = 0;
+        private boolean notifyPairedCollapse = false;
+        private String chromLast = "";
+        private String strandLast = "";
+        private String cigarLast = "";
+        private int alignmentStartLast = -1;
+
+        JunctionConsumer(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse) {
+            this.considerNHAttrib = considerNHAttrib;
+            this.onlyUnique = onlyUnique;
+            this.readCollapse = readCollapse;
+        }
 
-                        if (cdfOverlappedGenes.get(cdfOverlappedGenes.size() - 1) > 0) {
-                            double add = 1;
-                            if (considerNHAttrib && record.getIntegerAttribute("NH") != null) {
-                                add = add / record.getIntegerAttribute("NH");
-                            }
+        @Override
+        public void start(SAMFileHeader header) {
+        }
 
-                            java.util.Random random = new java.util.Random();
-                            double randomNum = random.nextDouble() * cdfOverlappedGenes.get(cdfOverlappedGenes.size() - 1);
-                            int selected = 0;
-                            while (randomNum > cdfOverlappedGenes.get(selected) && selected < cdfOverlappedGenes.size()) {
-                                selected++;
-                            }
+        @Override
+        public void accept(BAMRecordView record) {
+            if (record.getReadUnmappedFlag()) // skip if this read is unmapped
+            {
+                return;
+            }
+            if (record.getReadPairedFlag() && (!record.getProperPairFlag())) // skip if the read if paired but not in the proper paired mapping
+            {
+                return;
+            }
+            Integer nh = record.getIntegerAttribute("NH");
+            if ((! record.getReadPairedFlag()) && onlyUnique && nh!=null && (! nh.equals(1)))
+            {
+                return;
+            }
 
-                            counts.put(overlappedGenes.get(selected), counts.get(overlappedGenes.get(selected)) + add);
-                        }
-                    }
+            // remove PCR artifact if necessary
+            String chrom = record.getReferenceName();
+            String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
+            String cigarString = record.getCigarString();
+            int alignmentStart = record.getAlignmentStart();
+            if (readCollapse && ! record.getReadPairedFlag()) {
+                if (chromLast.equals(chrom) && strandLast.equals(strand) && cigarLast.equals(cigarString) && alignmentStartLast == alignmentStart) {
+                    return;
+                } else {
+                    chromLast = chrom;
+                    strandLast = strand;
+                    cigarLast = cigarString;
+                    alignmentStartLast = alignmentStart;
                 }
+            } else if(readCollapse && record.getReadPairedFlag() && !notifyPairedCollapse){
+                System.err.println("WARNING: Redundant reads removal is not supported for paired-ended RNA-seq data yet.");
+                notifyPairedCollapse = true;
+            }
 
-                inputSam.close();
-            } catch (Exception e) {
-                System.err.println("ERROR! " + e + " in estimateCountsIteratively at ReadCounter!\n");
-                System.exit(1);
+            // count total reads
+            double add = 1.0;
+            if (considerNHAttrib && nh != null) {
+                add /= nh;
+            }
+            totalNumReads += add;
+            if (java.lang.Math.ceil(totalNumReads) % 1000000 == 0) {
+                System.err.println("reading reads " + (int) java.lang.Math.ceil(totalNumReads) + "...");
             }
 
-            estimateRPKM(2);
+            // determine junction strand
+            strand = "*";
+            if (strandSpecific == 1) {
+                strand = record.getReadNegativeStrandFlag() ? "-" : "+";
+            } else if (strandSpecific == -1) {
+                strand = record.getReadNegativeStrandFlag() ? "+" : "1";
+            }
+
+            // get cigar
+            int numCigarElements = record.getNumCigarElements();
+            if (numCigarElements == 1) {
+                return;
+            }
+
+            // determine whether it is junction read, and count the junction
+            int lastBlockEnd = alignmentStart - 1;
+            boolean containJunction = false;
 
-            int numConverg = 0;
-            for (String gene : influencedGenesLastRPKM.keySet()) {
-                Double rpkmThis = rpkm.get(gene);
-                if (java.lang.Math.abs(rpkmThis - influencedGenesLastRPKM.get(gene)) < 0.1 * influencedGenesLastRPKM.get(gene)) {
-                    numConverg++;
+            for (int i = 0; i < numCigarElements; i++) {
+                CigarOperator operator = record.getCigarOperator(i);
+                if (operator.consumesReferenceBases()) {
+                    int thisBlockEnd = lastBlockEnd + record.getCigarLength(i);
+                    if (operator.equals(CigarOperator.N)) {
+                        containJunction = true;
+
+                        // skip reads to unannotated chromosomes
+                        if (!juncListChrom.containsKey(chrom)) {
+                            break;
+                        }
+
+                        Junction junc = new Junction(chrom, strand, lastBlockEnd, thisBlockEnd + 1);
+                        // count it only the junction is in the junction list with the correct strand.
+                        if (juncListChrom.get(chrom).contains(junc)) {
+                            if (junctionCounts.containsKey(junc)) {
+                                junctionCounts.put(junc, junctionCounts.get(junc) + add);
+                            } else {
+                                junctionCounts.put(junc, add);
+                            }
+                        } else if (strand.equals("*")) {
+                            /*
+                             * If the library has no strand information,
+                             * i.e. the strand of the junction cannot be
+                             * determined, and there is no existed junction
+                             * with no strand information has the same
+                             * coordinates, then count it if either an
+                             * existed junction in the list has the same
+                             * coordinates and at the forward strand, or at
+                             * the reverse strand, but not both.
+                             */
+                            Junction juncPos = new Junction(chrom, "+", lastBlockEnd, thisBlockEnd + 1);
+                            Junction juncNeg = new Junction(chrom, "-", lastBlockEnd, thisBlockEnd + 1);
+                            if (juncListChrom.get(chrom).contains(juncPos) && !juncListChrom.get(chrom).contains(juncNeg)) {
+                                if (junctionCounts.containsKey(juncPos)) {
+                                    junctionCounts.put(juncPos, junctionCounts.get(juncPos) + add);
+                                } else {
+                                    junctionCounts.put(juncPos, add);
+                                }
+                            } else if (juncListChrom.get(chrom).contains(juncNeg) && !juncListChrom.get(chrom).contains(juncPos)) {
+                                if (junctionCounts.containsKey(juncNeg)) {
+                                    junctionCounts.put(juncNeg, junctionCounts.get(juncNeg) + add);
+                                } else {
+                                    junctionCounts.put(juncNeg, add);
+                                }
+                            }
+                        }
+                    }
+                    lastBlockEnd = thisBlockEnd;
                 }
             }
-            System.err.println("Converged genes: " + numConverg + " out of " + influencedGenesLastRPKM.size());
 
-            iterationTime++;
-            if (numConverg > influencedGenesLastRPKM.keySet().size() * 0.9 || iterationTime >= convergLimit) {
-                continueIterate = false;
+            if (containJunction) {
+                numJuncReads += add;
+                //System.err.println(numJuncReads);
             } else {
-                for (String gene : countsBackup.keySet()) {
-                    counts.put(gene, new Double(countsBackup.get(gene).doubleValue()));
-                }
-                //System.err.println("ENSG00000000457.9\t"+counts.get("ENSG00000000457.9").intValue());
+                //System.err.println(record.getReadName()+"\t"+record.getCigarString());
             }
         }
 
-        File file = new File(inputFile.getAbsolutePath() + "-ambiguous.bam");
-        file.delete();
+        @Override
+        public void finish() {
+            System.err.println(inputFile.getAbsolutePath() + ":");
+            System.err.printf("%45s|          %d\n", "Number of mapped reads", (int) totalNumReads);
+            System.err.printf("%45s|          %d\n", "Number of junction reads", (int) numJuncReads);
+        }
+    }
+
+    HashMap<Junction, Double> getJunctionCounts() {
+        return (junctionCounts);
     }
 
     /**
-     * FunName: estimateJunctionCounts. Description: Count the number of
-     * junction reads supporting each junction in the junction list.
+     * FunName: writePartial. Description: Write the raw results of the shard
+     * set by setShard, to be merged with the ones of the other shards by
+     * mergePartial. One line is written for each accumulator: the read
+     * numbers, the non-zero counts of the genes, the intervals of the genes
+     * for the 3'-bias, the non-zero counts of the junctions, and for the read
+     * counting, the pairs whose mates are in other shards and the multi-gene
+     * hits of mode 3. The genes are given by their IDs.
      *
-     * @param considerNHAttrib If true, use NH attribute in the SAM record to
-     * separate uniquely and multiply mapped reads.
-     * @param readCollapse If true, collapse the plausible PCR duplicates, i.e.
-     * reads with the same mapping chromosome, strand, coordinate and cigar,
-     * into one read.
+     * @param out The output stream.
      */
-    void estimateJunctionCounts(boolean considerNHAttrib, boolean onlyUnique, boolean readCollapse) {
-        int numJuncReads = 0;
-        boolean notifyPairedCollapse=false;
-        HashMap<String, HashSet<Junction>> juncListChrom = junctions.getJunctions();
-        try (SamReader inputSam = SamReaderFactory.makeDefault().open(inputFile)) {
-            String chromLast = "";
-            String strandLast = "";
-            String cigarLast = "";
-            int alignmentStartLast = -1;
-
-            for (SAMRecord record : inputSam) {
-                if (record.getReadUnmappedFlag()) // skip if this read is unmapped
-                {
-                    continue;
-                }
-                if (record.getReadPairedFlag() && (!record.getProperPairFlag())) // skip if the read if paired but not in the proper paired mapping
-                {
-                    continue;
-                }
-                if ((! record.getReadPairedFlag()) && onlyUnique && record.getIntegerAttribute("NH")!=null && (! record.getIntegerAttribute("NH").equals(1)))
-                {
-                    continue;
+    void writePartial(PrintStream out) {
+        if (shardPass != null) {
+            writeCountingPass(out, shardPass);
+        } else {
+            out.println("TOTAL_READS\t" + totalNumReads);
+            out.println("READ_LENGTH\t" + readLength);
+            if (counts != null) {
+                writeCounts(out, counts);
+            }
+        }
+        if (numReadsInIntervals != null) {
+            for (int gene = 0; gene < counts.length; gene++) {
+                if (counts[gene] != 0) {
+                    StringBuilder line = new StringBuilder("BINS\t").append(annotation.getGeneID(gene));
+                    for (double numReads : numReadsInIntervals[gene]) {
+                        line.append('\t').append(numReads);
+                    }
+                    out.println(line);
                 }
-
-                List<AlignmentBlock> hitsList = record.getAlignmentBlocks();
-                ArrayList<AlignmentBlock> hits = new ArrayList<>();
-                for (AlignmentBlock block : hitsList) {
-                    hits.add(block);
+            }
+        }
+        if (junctionCounts != null) {
+            for (Junction junc : junctionCounts.keySet()) {
+                if (junctionCounts.get(junc) != 0) {
+                    out.println("JUNC\t" + junc.getChrom() + "\t" + junc.getStartSite() + "\t" + junc.getEndSite() + "\t" + junc.getStrand() + "\t" + junctionCounts.get(junc));
                 }
+            }
+        }
+    }
 
-                // remove PCR artifact if necessary
-                String chrom = record.getReferenceName();
-                String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
-                String cigarString = record.getCigarString();
-                int alignmentStart = hits.get(0).getReferenceStart();
-                if (readCollapse && ! record.getReadPairedFlag()) {
-                    if (chromLast.equals(chrom) && strandLast.equals(strand) && cigarLast.equals(cigarString) && alignmentStartLast == alignmentStart) {
-                        continue;
-                    } else {
-                        chromLast = chrom;
-                        strandLast = strand;
-                        cigarLast = cigarString;
-                        alignmentStartLast = alignmentStart;
-                    }
-                } else if(readCollapse && record.getReadPairedFlag() && !notifyPairedCollapse){
-                    System.err.println("WARNING: Redundant reads removal is not supported for paired-ended RNA-seq data yet.");
-                    notifyPairedCollapse = true;
-                }
+    private void writeCounts(PrintStream out, double[] geneCounts) {
+        for (int gene = 0; gene < geneCounts.length; gene++) {
+            if (geneCounts[gene] != 0) {
+                out.println("COUNT\t" + annotation.getGeneID(gene) + "\t" + geneCounts[gene]);
+            }
+        }
+    }
 
-                // count total reads
-                double add = 1.0;
-                if (considerNHAttrib && record.getIntegerAttribute("NH") != null) {
-                    add /= record.getIntegerAttribute("NH");
-                }
-                totalNumReads += add;
-                if (java.lang.Math.ceil(totalNumReads) % 1000000 == 0) {
-                    System.err.println("reading reads " + (int) java.lang.Math.ceil(totalNumReads) + "...");
-                }
+    /**
+     * FunName: writeCountingPass. Description: Write the state of a counting
+     * pass of a shard, as the lines read by readCountingPass.
+     */
+    private void writeCountingPass(PrintStream out, CountingPass pass) {
+        SegmentMap segmentMap = annotation.getSegmentMap();
+        out.println("TOTAL_READS\t" + pass.totalNumReads);
+        out.println("READ_LENGTH\t" + pass.readLength);
+        out.println("NO_FEATURE\t" + pass.numNoFeature);
+        out.println("AMBIGUOUS\t" + pass.numAmbiguous);
+        out.println("UNPAIRED\t" + pass.mateBuffer.getNumEvicted());
+        for (long key : pass.mateBuffer.getKeys()) {
+            out.println("FIRST\t" + key + "\t" + pass.mateBuffer.getMatePosition(key) + "\t" + toGeneList(segmentMap.getGenes(pass.mateBuffer.get(key))));
+        }
+        for (PendingMate mate : pass.deferredMates) {
+            out.println("SECOND\t" + mate.key + "\t" + mate.add + "\t" + toGeneList(segmentMap.getGenes(mate.geneSet)) + "\t" + (mate.readName == null ? "*" : mate.readName));
+        }
+        if (pass.ambiguousClasses != null) {
+            for (int geneSet : pass.ambiguousClasses.getGeneSets()) {
+                out.println("CLASS\t" + pass.ambiguousClasses.getWeight(geneSet) + "\t" + toGeneList(segmentMap.getGenes(geneSet)));
+            }
+        }
+        writeCounts(out, pass.counts);
+    }
 
-                // determine junction strand
-                strand = "*";
-                if (strandSpecific == 1) {
-                    strand = record.getReadNegativeStrandFlag() ? "-" : "+";
-                } else if (strandSpecific == -1) {
-                    strand = record.getReadNegativeStrandFlag() ? "+" : "1";
+    /**
+     * FunName: readCountingPass. Description: Add one line written by
+     * writeCountingPass to the state of a counting pass.
+     *
+     * @param fields The line, split into fields.
+     * @param pass The counting pass.
+     * @return false if the line is not the state of a counting pass.
+     */
+    private boolean readCountingPass(String[] fields, CountingPass pass) {
+        switch (fields[0]) {
+            case "TOTAL_READS":
+                pass.totalNumReads += Double.parseDouble(fields[1]);
+                return true;
+            case "READ_LENGTH":
+                pass.readLength = Math.max(pass.readLength, Integer.parseInt(fields[1]));
+                return true;
+            case "NO_FEATURE":
+                pass.numNoFeature += Integer.parseInt(fields[1]);
+                return true;
+            case "AMBIGUOUS":
+                pass.numAmbiguous += Integer.parseInt(fields[1]);
+                return true;
+            case "UNPAIRED":
+                pass.mateBuffer.addNumEvicted(Long.parseLong(fields[1]));
+                return true;
+            case "FIRST":
+                pass.mateBuffer.put(Long.parseLong(fields[1]), Long.parseLong(fields[2]), annotation.getSegmentMap().intern(parseGeneList(fields[3])));
+                return true;
+            case "SECOND":
+                pass.deferredMates.add(new PendingMate(Long.parseLong(fields[1]), fields[4].equals("*") ? null : fields[4], annotation.getSegmentMap().intern(parseGeneList(fields[3])), Double.parseDouble(fields[2])));
+                return true;
+            case "CLASS":
+                if (pass.ambiguousClasses == null) {
+                    throw new IllegalArgumentException("The multi-gene hits are only kept in mode 3.");
                 }
+                pass.ambiguousClasses.add(parseGeneList(fields[2]), Double.parseDouble(fields[1]));
+                return true;
+            case "COUNT":
+                pass.counts[getGeneOrdinal(fields[1])] += Double.parseDouble(fields[2]);
+                return true;
+            default:
+                return false;
+        }
+    }
 
-                // get cigar
-                Cigar cigar = record.getCigar();
-                if (cigar.numCigarElements() == 1) {
+    /**
+     * FunName: mergePartial. Description: Merge the partial results of all
+     * the shards of the input, as written by writePartial, so that the results
+     * of the counter are the same as the ones of counting the whole input. The
+     * pairs split between the shards are combined as in
+     * estimateCountsInParallel. In mode 3, estimateCountsIteratively should be
+     * run afterwards.
+     *
+     * @param lines The lines of the partial results of all the shards, split
+     * into fields.
+     */
+    void mergePartial(List<String[]> lines) {
+        CountingPass merged = null;
+        if (annotation != null) {
+            merged = new CountingPass(null, false, false, false, modeForMultiGenesOverlap, false);
+            merged.counts = counts;
+        }
+        boolean counted = false;
+        totalNumReads = 0;
+        try {
+            for (String[] fields : lines) {
+                if (merged != null && readCountingPass(fields, merged)) {
+                    counted |= fields[0].equals("NO_FEATURE");
                     continue;
                 }
-
-                // determine whether it is junction read, and count the junction
-                int lastBlockEnd = hits.get(0).getReferenceStart() - 1;
-                boolean containJunction = false;
-
-                for (int i = 0; i < cigar.numCigarElements(); i++) {
-                    CigarElement element = cigar.getCigarElement(i);
-                    if (element.getOperator().consumesReferenceBases()) {
-                        int thisBlockEnd = lastBlockEnd + element.getLength();
-                        if (element.getOperator().equals(CigarOperator.N)) {
-                            containJunction = true;
-
-                            // skip reads to unannotated chromosomes
-                            if (!juncListChrom.containsKey(chrom)) {
-                                break;
-                            }
-
-                            Junction junc = new Junction(chrom, strand, lastBlockEnd, thisBlockEnd + 1);
-                            // count it only the junction is in the junction list with the correct strand.
-                            if (juncListChrom.get(chrom).contains(junc)) {
-                                if (junctionCounts.containsKey(junc)) {
-                                    junctionCounts.put(junc, junctionCounts.get(junc) + add);
-                                } else {
-                                    junctionCounts.put(junc, add);
-                                }
-                            } else if (strand.equals("*")) {
-                                /*
-                                 * If the library has no strand information,
-                                 * i.e. the strand of the junction cannot be
-                                 * determined, and there is no existed junction
-                                 * with no strand information has the same
-                                 * coordinates, then count it if either an
-                                 * existed junction in the list has the same
-                                 * coordinates and at the forward strand, or at
-                                 * the reverse strand, but not both.
-                                 */
-                                Junction juncPos = new Junction(chrom, "+", lastBlockEnd, thisBlockEnd + 1);
-                                Junction juncNeg = new Junction(chrom, "-", lastBlockEnd, thisBlockEnd + 1);
-                                if (juncListChrom.get(chrom).contains(juncPos) && !juncListChrom.get(chrom).contains(juncNeg)) {
-                                    if (junctionCounts.containsKey(juncPos)) {
-                                        junctionCounts.put(juncPos, junctionCounts.get(juncPos) + add);
-                                    } else {
-                                        junctionCounts.put(juncPos, add);
-                                    }
-                                } else if (juncListChrom.get(chrom).contains(juncNeg) && !juncListChrom.get(chrom).contains(juncPos)) {
-                                    if (junctionCounts.containsKey(juncNeg)) {
-                                        junctionCounts.put(juncNeg, junctionCounts.get(juncNeg) + add);
-                                    } else {
-                                        junctionCounts.put(juncNeg, add);
-                                    }
-                                }
-                            }
+                switch (fields[0]) {
+                    case "TOTAL_READS":
+                        totalNumReads += Double.parseDouble(fields[1]);
+                        break;
+                    case "READ_LENGTH":
+                        break;
+                    case "BINS":
+                        initNumReadsInIntervals();
+                        if (fields.length - 2 != numIntervals) {
+                            throw new IllegalArgumentException("The number of intervals of " + fields[1] + " is not " + numIntervals + ".");
                         }
-                        lastBlockEnd = thisBlockEnd;
-                    }
-                }
-
-                if (containJunction) {
-                    numJuncReads += add;
-                    //System.err.println(numJuncReads);
-                } else {
-                    //System.err.println(record.getReadName()+"\t"+record.getCigarString());
+                        double[] bins = numReadsInIntervals[getGeneOrdinal(fields[1])];
+                        for (int i = 0; i < numIntervals; i++) {
+                            bins[i] += Double.parseDouble(fields[i + 2]);
+                        }
+                        break;
+                    case "JUNC":
+                        Junction junc = new Junction(fields[1], fields[4], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                        if (!junctionCounts.containsKey(junc)) {
+                            throw new IllegalArgumentException("The junction " + junc + " is not in the junction list.");
+                        }
+                        junctionCounts.put(junc, junctionCounts.get(junc) + Double.parseDouble(fields[5]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown line of partial results: " + fields[0]);
                 }
             }
-
-            CloserUtil.close(inputSam);
-        } catch (Exception e) {
-            System.err.println("Error in ReadCounter when estimate junction count: " + e);
+        } catch (RuntimeException e) {
+            System.err.println("ERROR! " + e + " in mergePartial at ReadCounter!\n");
             System.exit(1);
         }
+        if (merged != null) {
+            totalNumReads = merged.totalNumReads;
+            readLength = Math.max(readLength, merged.readLength);
+            if (counted) {
+                finishShards(merged);
+            }
+        }
+    }
 
-        System.err.println(inputFile.getAbsolutePath() + ":");
-        System.err.printf("%45s|          %d\n", "Number of mapped reads", (int) totalNumReads);
-        System.err.printf("%45s|          %d\n", "Number of junction reads", (int) numJuncReads);
+    private int getGeneOrdinal(String geneID) {
+        int ordinal = annotation.getGeneOrdinal(geneID);
+        if (ordinal == -1) {
+            throw new IllegalArgumentException("The gene " + geneID + " is not in the annotation.");
+        }
+        return ordinal;
     }
 
-    HashMap<Junction, Double> getJunctionCounts() {
-        return (junctionCounts);
+    private String toGeneList(int[] genes) {
+        StringBuilder list = new StringBuilder();
+        for (int gene : genes) {
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(annotation.getGeneID(gene));
+        }
+        return list.toString();
+    }
+
+    private int[] parseGeneList(String list) {
+        if (list.isEmpty()) {
+            return new int[0];
+        }
+        String[] geneIDs = list.split(",");
+        int[] genes = new int[geneIDs.length];
+        for (int i = 0; i < genes.length; i++) {
+            genes[i] = getGeneOrdinal(geneIDs[i]);
+        }
+        Arrays.sort(genes);
+        return genes;
     }
 }
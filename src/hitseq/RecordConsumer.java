@@ -0,0 +1,36 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.bam.BAMRecordView;
+import htsjdk.samtools.SAMFileHeader;
+
+/**
+ * An analysis of the records of an input file, e.g. the read counting or the
+ * 3'-bias, fed with the records one by one. Several consumers can share one
+ * pass through the file, so that the file is read and decoded only once for
+ * all of them; see SinglePass.
+ */
+public interface RecordConsumer {
+    /**
+     * FunName: start.
+     * Description: Prepare for the records of an input file, before the first record.
+     * @param header The header of the input file.
+     */
+    void start(SAMFileHeader header);
+
+    /**
+     * FunName: accept.
+     * Description: Process one record. The view is reused for the next record, so it should be copied if it is kept.
+     * @param record The record.
+     */
+    void accept(BAMRecordView record);
+
+    /**
+     * FunName: finish.
+     * Description: Complete the analysis after the last record.
+     */
+    void finish();
+}
@@ -0,0 +1,55 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.annotation.Annotation;
+import hitseq.annotation.GeneHits;
+import hitseq.bam.BAMRecordView;
+
+/**
+ * The genes overlapping with the current record, resolved once by an
+ * OverlapEngine and kept until the next record, so that the consumers
+ * sharing one pass through a file, e.g. the read counting and the 3'-bias,
+ * do not resolve the same record again. The consumers sharing it should
+ * use the same strandedness.
+ */
+public class RecordOverlap {
+    private final OverlapEngine engine;
+    private final int strandSpecific;
+    private final GeneHits hits = new GeneHits();
+    private BAMRecordView record = null;
+    private int serial = -1;
+    private int geneSet = 0;
+
+    /**
+     * @param annotation The annotation of the genes.
+     * @param strandSpecific The strandedness. 0 for no strand information, 1 for the same strand, -1 for the opposite strand.
+     */
+    public RecordOverlap(Annotation annotation, int strandSpecific){
+        this.engine = new OverlapEngine(annotation);
+        this.strandSpecific = strandSpecific;
+    }
+
+    public int getStrandSpecific(){
+        return strandSpecific;
+    }
+
+    /**
+     * FunName: getOverlapGeneSet.
+     * Description: Get the genes whose exons are overlapping with the record, resolving them only if the record is not the last one resolved.
+     * @param record The record.
+     * @param overlappedGenes The buffer to receive the ordinals of the overlapping genes, which is owned by the caller.
+     * @return The ID of the gene set in the segment map, 0 if no gene is overlapping, or SegmentMap.UNION_OF_SETS if the genes are only in the buffer.
+     */
+    public int getOverlapGeneSet(BAMRecordView record, GeneHits overlappedGenes){
+        if(record != this.record || record.getSerial() != serial){
+            geneSet = engine.getOverlapGeneSet(record, strandSpecific, hits);
+            this.record = record;
+            this.serial = record.getSerial();
+        }
+        overlappedGenes.copyFrom(hits);
+        return geneSet;
+    }
+}
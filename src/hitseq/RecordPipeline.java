@@ -0,0 +1,197 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A two-stage pipeline over the records of a SAM/BAM file. The reader stage,
+ * running in its own thread, inflates and decodes the records in batches and
+ * hands them to the consumer through a bounded queue, while the consumer,
+ * i.e. the thread iterating this object, does the overlap and accumulation.
+ * The records are given to the consumer in the same order as in the file.
+ *
+ * The reader stage also decodes the lazily decoded fields needed by the
+ * counting (read name, CIGAR and tags), so that this work is moved out of
+ * the consumer. Bases and qualities are left untouched.
+ */
+public class RecordPipeline implements CloseableIterator<SAMRecord> {
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final ArrayList<SAMRecord> END = new ArrayList<>(0);
+
+    private final CloseableIterator<SAMRecord> source;
+    private final String name;
+    private final int batchSize;
+    private final BlockingQueue<ArrayList<SAMRecord>> queue;
+    private final Thread reader;
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+
+    private ArrayList<SAMRecord> batch = new ArrayList<>(0);
+    private int indexInBatch = 0;
+    private boolean finished = false;
+
+    // the stage-level timing, in nanoseconds
+    private volatile long readerBusy = 0, readerBlocked = 0;
+    private volatile long numRecords = 0, numBatches = 0;
+    private long consumerWaiting = 0;
+    private final long startTime;
+
+    private RecordPipeline(CloseableIterator<SAMRecord> source, String name, int queueDepth, int batchSize){
+        this.source = source;
+        this.name = name;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+        this.startTime = System.nanoTime();
+        this.reader = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                readRecords();
+            }
+        }, "reader of " + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * FunName: wrap.
+     * Description: Put the records of the iterator through a pipeline.
+     * @param source The iterator of the records, which is closed when the pipeline is closed.
+     * @param name The name of the input, used in the log.
+     * @param queueDepth The maximum number of batches waiting in the queue. If 0, no pipeline is used and the source is returned.
+     * @param batchSize The number of records in each batch.
+     * @return The iterator of the records.
+     */
+    public static CloseableIterator<SAMRecord> wrap(CloseableIterator<SAMRecord> source, String name, int queueDepth, int batchSize){
+        if(queueDepth < 1)
+            return source;
+        return new RecordPipeline(source, name, queueDepth, Math.max(1, batchSize));
+    }
+
+    /**
+     * FunName: readRecords.
+     * Description: The reader stage. Malformed records are reported and skipped, as in the counting loops.
+     */
+    private void readRecords(){
+        try{
+            ArrayList<SAMRecord> records = new ArrayList<>(batchSize);
+            long busyStart = System.nanoTime();
+            while(! closed){
+                SAMRecord record;
+                try{
+                    if(! source.hasNext())
+                        break;
+                    record = source.next();
+                } catch(SAMFormatException e){
+                    System.err.println("Warning: " + e);
+                    continue;
+                }
+                record.getReadName();
+                record.getCigar();
+                record.getAttribute("NH");
+                records.add(record);
+                if(records.size() == batchSize){
+                    readerBusy += System.nanoTime() - busyStart;
+                    handOver(records);
+                    records = new ArrayList<>(batchSize);
+                    busyStart = System.nanoTime();
+                }
+            }
+            readerBusy += System.nanoTime() - busyStart;
+            if(! records.isEmpty())
+                handOver(records);
+        } catch(InterruptedException e){
+            return;
+        } catch(Throwable e){
+            failure = e;
+        }
+        try{
+            while(! closed && ! queue.offer(END, 100, TimeUnit.MILLISECONDS)){
+                // wait for the consumer, unless it is closed
+            }
+        } catch(InterruptedException e){
+            // closed
+        }
+    }
+
+    private void handOver(ArrayList<SAMRecord> records) throws InterruptedException{
+        long waitStart = System.nanoTime();
+        queue.put(records);
+        readerBlocked += System.nanoTime() - waitStart;
+        numRecords += records.size();
+        numBatches++;
+    }
+
+    @Override
+    public boolean hasNext(){
+        while(indexInBatch >= batch.size()){
+            if(finished)
+                return false;
+            long waitStart = System.nanoTime();
+            try{
+                batch = queue.take();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted when reading " + name, e);
+            }
+            consumerWaiting += System.nanoTime() - waitStart;
+            indexInBatch = 0;
+            if(batch == END){
+                finished = true;
+                if(failure instanceof RuntimeException)
+                    throw (RuntimeException) failure;
+                else if(failure instanceof Error)
+                    throw (Error) failure;
+                else if(failure != null)
+                    throw new RuntimeException(failure);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SAMRecord next(){
+        if(! hasNext())
+            throw new NoSuchElementException();
+        return batch.get(indexInBatch++);
+    }
+
+    @Override
+    public void remove(){
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * FunName: close.
+     * Description: Stop the reader stage, close the source and print the timing of the stages.
+     */
+    @Override
+    public void close(){
+        if(closed)
+            return;
+        closed = true;
+        reader.interrupt();
+        try{
+            reader.join();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        source.close();
+
+        double total = (System.nanoTime() - startTime) / 1e9;
+        System.err.printf("pipeline of %s: %d records in %d batches, %.2f s; reader busy %.2f s, blocked %.2f s; counter busy %.2f s, waiting %.2f s\n",
+                name, numRecords, numBatches, total, readerBusy / 1e9, readerBlocked / 1e9, total - consumerWaiting / 1e9, consumerWaiting / 1e9);
+    }
+}
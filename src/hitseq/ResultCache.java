@@ -0,0 +1,109 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.bam.SamInputs;
+import htsjdk.samtools.SamFiles;
+import htsjdk.samtools.SamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * The on-disk cache of the results of the input files, shared by the runs of
+ * the counting commands, e.g. when the same matrix is counted again after
+ * adding a few samples. The results of an input file are saved in the format
+ * of the partial results, in a file named by the digest of everything which
+ * changes them: the input file (its size, modification time, SAM header and
+ * index), the content of the annotation and the options of the command. A
+ * cached input file is therefore only used as long as none of them changes,
+ * and the cache never needs to be cleared for correctness.
+ */
+public class ResultCache {
+    private final File directory;
+    private final String runDigest;
+
+    /**
+     * Open the cache directory, or create it.
+     * @param directory The directory.
+     * @param run The command and the options which affect the results.
+     * @param annotation The annotation file, whose content is digested.
+     * @param targetFile The file of the target genes, or null if all the genes are counted.
+     * @throws IOException If the directory cannot be created, or the annotation cannot be read.
+     */
+    public ResultCache(File directory, List<String> run, File annotation, File targetFile) throws IOException{
+        this.directory = directory;
+        if(! directory.isDirectory() && ! directory.mkdirs())
+            throw new IOException("cannot create the cache directory " + directory);
+        MessageDigest digest = newDigest();
+        for(String arg : run)
+            update(digest, arg);
+        update(digest, digestFile(annotation));
+        if(targetFile != null)
+            update(digest, digestFile(targetFile));
+        this.runDigest = toHex(digest.digest());
+    }
+
+    /**
+     * FunName: getFile.
+     * Description: Get the cache file of the results of the given input file in this run.
+     * @param sample The path of the input file.
+     * @return The cache file, or null if the input cannot be cached, e.g. the standard input.
+     * @throws IOException If the input file cannot be read.
+     */
+    public File getFile(String sample) throws IOException{
+        File input = new File(sample);
+        if(SamInputs.isStandardInput(input) || ! input.isFile())
+            return null;
+        MessageDigest digest = newDigest();
+        update(digest, runDigest);
+        update(digest, String.valueOf(input.length()));
+        update(digest, String.valueOf(input.lastModified()));
+        try(SamReader reader = SamInputs.open(input)){
+            update(digest, reader.getFileHeader().getSAMString());
+        }
+        File index = SamFiles.findIndex(input);
+        if(index != null && index.isFile())
+            update(digest, digestFile(index));
+        return new File(directory, toHex(digest.digest()) + ".txt");
+    }
+
+    private static MessageDigest newDigest(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // each field is ended by a zero byte, so that the fields cannot run into each other
+    private static void update(MessageDigest digest, String field){
+        digest.update(field.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String digestFile(File file) throws IOException{
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[1 << 16];
+        try(InputStream in = new FileInputStream(file)){
+            int length;
+            while((length = in.read(buffer)) > 0)
+                digest.update(buffer, 0, length);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes){
+        StringBuilder hex = new StringBuilder();
+        for(byte b : bytes)
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
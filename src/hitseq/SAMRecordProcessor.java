@@ -8,10 +8,11 @@ import hitseq.annotation.Annotation;
 import hitseq.annotation.Gene;
 import hitseq.annotation.Transcript;
 import hitseq.annotation.Exon;
+import hitseq.bam.BAMRecordView;
 import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 import java.util.ArrayList;
-import java.util.List;
 /**
  *
  * @author hezhisong
@@ -59,95 +60,45 @@ public class SAMRecordProcessor {
         return(readName+"|"+mateRef+"|"+mateRef+"|"+mateStrand);
     }
     
-    ArrayList<String> getOverlapGenes(int strandSpecific){
-        ArrayList<String> overlappedGenes=new ArrayList<>();
-        List<AlignmentBlock> hitsList=record.getAlignmentBlocks();
-        ArrayList<AlignmentBlock> hits=new ArrayList<>();
-        for(AlignmentBlock block : hitsList)
-            hits.add(block);
-        int alignmentStart=hits.get(0).getReferenceStart();
-        int alignmentEnd=hits.get(hits.size()-1).getReferenceStart()+hits.get(hits.size()-1).getLength()-1;
-
-        String chrom=record.getReferenceName();
-        String strand=record.getReadNegativeStrandFlag() ? "-" : "+";
-        
-        int pointer=annotation.getCurrentGenePointer(chrom);
-        if(pointer!=-1){
-            String currentGene=annotation.getGene(chrom, pointer);
-            int currentGeneEnd=annotation.getGeneEnd(currentGene);
-            while(currentGeneEnd < alignmentStart){
-                pointer=annotation.movePointerGene(chrom);
-                if(pointer==-1)
-                    break;
-                currentGene=annotation.getGene(chrom, annotation.getCurrentGenePointer(chrom));
-                currentGeneEnd=annotation.getGeneEnd(currentGene);
-            }
-            int currentGeneStart=annotation.getGeneStart(currentGene);
-            int additionalIndex=0;
-            while(currentGeneStart<=alignmentEnd){ 
-                // this gene regions is overlapping with the read region
-                if((alignmentStart <= currentGeneStart && currentGeneStart <= alignmentEnd) || (currentGeneStart <= alignmentStart && alignmentStart <= currentGeneEnd))
-                    if(record.getReadPairedFlag()){
-                        if(strandSpecific==0
-                                || (strandSpecific==1 && record.getFirstOfPairFlag() && strand.equals(annotation.getGeneStrand(currentGene)))
-                                || (strandSpecific==1 && record.getSecondOfPairFlag() && (! strand.equals(annotation.getGeneStrand(currentGene))))
-                                || (strandSpecific==-1 && record.getFirstOfPairFlag() && (! strand.equals(annotation.getGeneStrand(currentGene))))
-                                || (strandSpecific==-1 && record.getSecondOfPairFlag() && strand.equals(annotation.getGeneStrand(currentGene))))
-                                overlappedGenes.add(currentGene);
-                    } else if((strandSpecific==0) 
-                            || (strandSpecific==1 && strand.equals(annotation.getGeneStrand(currentGene))) 
-                            || (strandSpecific==-1 && (!strand.equals(annotation.getGeneStrand(currentGene)))))
-                        overlappedGenes.add(currentGene);
-
-                additionalIndex++;
-                currentGene=annotation.getGene(chrom, annotation.getCurrentGenePointer(chrom)+additionalIndex);
-                if(currentGene==null)
-                    break;
-                currentGeneStart=annotation.getGeneStart(currentGene);
-                currentGeneEnd=annotation.getGeneEnd(currentGene);
-            }
+    double[] getGeneBodyQuantile(Gene gene, int strandSpecific){
+        java.util.List<AlignmentBlock> blocks = record.getAlignmentBlocks();
+        int[] blockStarts = new int[blocks.size()];
+        int[] blockEnds = new int[blocks.size()];
+        for(int i = 0; i < blocks.size(); i++){
+            AlignmentBlock block = blocks.get(i);
+            blockStarts[i] = block.getReferenceStart();
+            blockEnds[i] = block.getReferenceStart() + block.getLength() - 1;
         }
-
-        // for each gene in the candidate set, check whether the alignments are overlapping with the exon regions
-        ArrayList<String> notExonicOverlap=new ArrayList<>();
-        for(String gene : overlappedGenes){
-            //System.out.println(record.getReadName()+"\t"+gene);
-            int currentExonIndex=annotation.getCurrentExonIndex(gene);
-            int additionalIndexExon=0;
-            int indexAlignmentBlock=0;
-
-            boolean overlap=false;
-            while(! overlap && currentExonIndex!=-1 && indexAlignmentBlock < hits.size()){
-                int currentExonStart=annotation.getNonRedundantExonStart(gene, currentExonIndex+additionalIndexExon);
-                int currentExonEnd=annotation.getNonRedundantExonEnd(gene, currentExonIndex+additionalIndexExon);
-                int currentAlignmentBlockStart=hits.get(indexAlignmentBlock).getReferenceStart();
-                int currentAlignmentBlockEnd=hits.get(indexAlignmentBlock).getReferenceStart()+hits.get(indexAlignmentBlock).getLength()-1;
-
-                if(currentExonStart==-1 || currentExonEnd==-1)
-                    break;
-                else if(currentExonEnd < alignmentStart) // the current exon is in front of all the alignment blocks
-                    currentExonIndex=annotation.movePointerExon(gene);
-                else if(currentExonEnd < currentAlignmentBlockStart) // the current exon is in front of the current alignment block, while the current alignment block is not the first one
-                    additionalIndexExon++;                        
-                else if(currentAlignmentBlockEnd < currentExonStart) // the current exon is after the current alignment block
-                    indexAlignmentBlock++;
-                else if(currentExonStart <= currentAlignmentBlockStart && currentAlignmentBlockStart <= currentExonEnd) // overlapping
-                    overlap=true;
-                else if(currentAlignmentBlockStart <= currentExonStart && currentExonStart <= currentAlignmentBlockEnd) // overlapping
-                    overlap=true;
-            }
-            
-            if(!overlap)
-                notExonicOverlap.add(gene);
+        return getGeneBodyQuantile(record.getReadName(), record.getReferenceName(), record.getReadNegativeStrandFlag(), record.getAlignmentStart(), record.getAlignmentEnd(), blockStarts, blockEnds, blocks.size(), gene, strandSpecific);
+    }
+    
+    /**
+     * FunName: getGeneBodyQuantile.
+     * Description: The same as getGeneBodyQuantile of a SAMRecord, for a raw BAM record, with the aligned blocks read from the CIGAR.
+     */
+    static double[] getGeneBodyQuantile(BAMRecordView record, Gene gene, int strandSpecific){
+        int numElements = record.getNumCigarElements();
+        int[] blockStarts = new int[numElements];
+        int[] blockEnds = new int[numElements];
+        int numBlocks = 0;
+        int refPos = record.getAlignmentStart();
+        for(int i = 0; i < numElements; i++){
+            CigarOperator operator = record.getCigarOperator(i);
+            int length = record.getCigarLength(i);
+            if(operator == CigarOperator.M || operator == CigarOperator.EQ || operator == CigarOperator.X){
+                blockStarts[numBlocks] = refPos;
+                blockEnds[numBlocks] = refPos + length - 1;
+                numBlocks++;
+                refPos += length;
+            } else if(operator.consumesReferenceBases())
+                refPos += length;
         }
-        overlappedGenes.removeAll(notExonicOverlap);
-        return(overlappedGenes);
+        return getGeneBodyQuantile(record.getReadName(), record.getReferenceName(), record.getReadNegativeStrandFlag(), record.getAlignmentStart(), record.getAlignmentEnd(), blockStarts, blockEnds, numBlocks, gene, strandSpecific);
     }
     
-    double[] getGeneBodyQuantile(Gene gene, int strandSpecific){
+    private static double[] getGeneBodyQuantile(String readName, String chrom, boolean negativeStrand, int recordStart, int recordEnd, int[] blockStarts, int[] blockEnds, int numBlocks, Gene gene, int strandSpecific){
         double[] quantiles;
-        String chrom = record.getReferenceName();
-        String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
+        String strand = negativeStrand ? "-" : "+";
         if(strandSpecific == -1)
             strand = strand.equals("+") ? "-" : "+";
         
@@ -155,12 +106,9 @@ public class SAMRecordProcessor {
                 (strandSpecific != 0 && ! strand.equals(gene.getStrand()))){
             quantiles = new double[]{-1, -1};
         } else{
-            int recordStart = record.getAlignmentStart();
-            int recordEnd = record.getAlignmentEnd();
-            Transcript recordTranscript = new Transcript(record.getReadName(), chrom, gene.getStrand(), recordStart, recordEnd);
-            for(int i = 0; i < record.getAlignmentBlocks().size(); i++){
-                AlignmentBlock block = record.getAlignmentBlocks().get(i);
-                Exon exonBlock = new Exon(chrom, gene.getStrand(), block.getReferenceStart(), block.getReferenceStart() + block.getLength() - 1);
+            Transcript recordTranscript = new Transcript(readName, chrom, gene.getStrand(), recordStart, recordEnd);
+            for(int i = 0; i < numBlocks; i++){
+                Exon exonBlock = new Exon(chrom, gene.getStrand(), blockStarts[i], blockEnds[i]);
                 recordTranscript.addExon(exonBlock);
             }
             
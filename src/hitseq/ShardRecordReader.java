@@ -0,0 +1,95 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.bam.BAMRecordDecoder;
+import hitseq.bam.BAMRecordView;
+import hitseq.bam.RecordViewReader;
+import hitseq.bam.SamInputs;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SamReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The records of an indexed BAM file which belong to the given shards, i.e.
+ * whose alignment starts are located in them. The chunks of each shard are
+ * found in the BAM index and read by BAMRecordDecoder, and the records of the
+ * chunks starting outside the shard are skipped.
+ */
+public class ShardRecordReader extends RecordViewReader {
+    private final List<BAMShard> shards;
+    private final ArrayList<List<Chunk>> chunksOfShards = new ArrayList<>();
+    private final BAMRecordDecoder decoder;
+    private int shardIndex = -1;
+    private List<Chunk> chunks;
+    private int chunkIndex;
+
+    /**
+     * Find the chunks of the shards in the index and open the file.
+     * @param file The indexed BAM file.
+     * @param shards The shards to read, in genomic order.
+     * @throws IOException If the file cannot be read.
+     */
+    public ShardRecordReader(File file, List<BAMShard> shards) throws IOException{
+        this.shards = shards;
+        try(SamReader inputSam = SamInputs.open(file)){
+            BAMIndex index = inputSam.indexing().getIndex();
+            for(BAMShard shard : shards){
+                BAMFileSpan span = index.getSpanOverlapping(shard.getChromIndex(), shard.getStart(), shard.getEnd());
+                chunksOfShards.add(span == null ? new ArrayList<Chunk>() : span.getChunks());
+            }
+        }
+        this.decoder = new BAMRecordDecoder(file);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader(){
+        return decoder.getFileHeader();
+    }
+
+    /**
+     * FunName: nextChunk.
+     * Description: Seek to the next chunk, moving to the next shard if needed.
+     * @return false if there is no more chunk.
+     */
+    private boolean nextChunk() throws IOException{
+        while(chunks == null || chunkIndex >= chunks.size()){
+            shardIndex++;
+            if(shardIndex >= shards.size())
+                return false;
+            chunks = chunksOfShards.get(shardIndex);
+            chunkIndex = 0;
+        }
+        decoder.seek(chunks.get(chunkIndex).getChunkStart());
+        return true;
+    }
+
+    @Override
+    public boolean next(BAMRecordView view) throws IOException{
+        if(chunks == null && ! nextChunk())
+            return false;
+        while(true){
+            if(chunkIndex < chunks.size() && decoder.getFilePointer() < chunks.get(chunkIndex).getChunkEnd() && decoder.next(view)){
+                if(shards.get(shardIndex).contains(view.getReferenceIndex(), view.getAlignmentStart()))
+                    return true;
+                continue;
+            }
+            chunkIndex++;
+            if(! nextChunk())
+                return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        decoder.close();
+    }
+}
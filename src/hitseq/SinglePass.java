@@ -0,0 +1,48 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.bam.BAMRecordView;
+import hitseq.bam.RecordViewReader;
+import htsjdk.samtools.SAMFileHeader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * One pass through the records of an input file, which feeds every record to
+ * a list of consumers. The file is decompressed and decoded once, into one
+ * reused BAMRecordView, however many analyses are run on it.
+ */
+public class SinglePass {
+    private final ArrayList<RecordConsumer> consumers = new ArrayList<>();
+
+    public SinglePass(RecordConsumer... consumers){
+        this.consumers.addAll(Arrays.asList(consumers));
+    }
+
+    public void add(RecordConsumer consumer){
+        consumers.add(consumer);
+    }
+
+    /**
+     * FunName: run.
+     * Description: Feed all the records of the reader to the consumers, and finish them at the end.
+     * @param reader The records of the input file. It is not closed by this method.
+     * @throws IOException If the input cannot be read.
+     */
+    public void run(RecordViewReader reader) throws IOException{
+        SAMFileHeader header = reader.getFileHeader();
+        for(RecordConsumer consumer : consumers)
+            consumer.start(header);
+        BAMRecordView record = new BAMRecordView();
+        while(reader.next(record)){
+            for(RecordConsumer consumer : consumers)
+                consumer.accept(record);
+        }
+        for(RecordConsumer consumer : consumers)
+            consumer.finish();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq;
+
+import hitseq.annotation.Annotation;
+import hitseq.annotation.Gene;
+import hitseq.annotation.SegmentMap;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * The subset of genes to be counted, given as a list of gene IDs or as a BED
+ * file of regions, in which case the genes overlapping any region are the
+ * targets. The records to be fetched from an indexed input are the ones
+ * overlapping the whole extent of the target genes, so that the counts of the
+ * targets are the same as the ones of a full scan.
+ */
+public class TargetRegions {
+    private final Annotation annotation;
+    private final BitSet genes;
+    private final int numGenes;
+
+    /**
+     * Read the targets from a file.
+     * @param file A BED file (with at least 3 columns) of regions, or a file with one gene ID per line.
+     * @param annotation The annotation of the genes.
+     */
+    public TargetRegions(File file, Annotation annotation){
+        this.annotation = annotation;
+        this.genes = new BitSet(annotation.getNumGenes());
+        int numUnknown = 0;
+        try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+            String line;
+            while((line = reader.readLine()) != null){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+                    continue;
+                String[] elements = line.split("\t");
+                if(isBEDRegion(elements)){
+                    // BED intervals are 0-based and half-open
+                    addRegion(elements[0], Integer.parseInt(elements[1]) + 1, Integer.parseInt(elements[2]));
+                } else{
+                    int ordinal = annotation.getGeneOrdinal(elements[0].trim());
+                    if(ordinal == -1)
+                        numUnknown++;
+                    else
+                        genes.set(ordinal);
+                }
+            }
+        } catch(Exception e){
+            System.err.println("ERROR! " + e + " in TargetRegions at TargetRegions!\n");
+            System.exit(1);
+        }
+        this.numGenes = genes.cardinality();
+        if(numUnknown > 0)
+            System.err.println("WARNING: " + numUnknown + " target genes are not in the annotation.");
+        System.err.println("target " + numGenes + " genes");
+    }
+
+    private static boolean isBEDRegion(String[] elements){
+        if(elements.length < 3)
+            return false;
+        try{
+            Integer.parseInt(elements[1]);
+            Integer.parseInt(elements[2]);
+            return true;
+        } catch(NumberFormatException e){
+            return false;
+        }
+    }
+
+    private void addRegion(String chrom, int start, int end){
+        for(int ordinal : annotation.query(chrom, start, end, SegmentMap.ANY_STRAND))
+            genes.set(ordinal);
+    }
+
+    public int getNumGenes(){
+        return numGenes;
+    }
+
+    public boolean contains(int ordinal){
+        return genes.get(ordinal);
+    }
+
+    public boolean contains(String geneID){
+        int ordinal = annotation.getGeneOrdinal(geneID);
+        return ordinal != -1 && genes.get(ordinal);
+    }
+
+    /**
+     * FunName: getQueryIntervals.
+     * Description: Get the extents of the target genes as the intervals to query an indexed input, merged and sorted.
+     * @param header The header of the input, to find the reference indices of the chromosomes.
+     * @return The intervals, without the chromosomes not in the input.
+     */
+    public QueryInterval[] getQueryIntervals(SAMFileHeader header){
+        ArrayList<QueryInterval> intervals = new ArrayList<>();
+        for(int ordinal = genes.nextSetBit(0); ordinal >= 0; ordinal = genes.nextSetBit(ordinal + 1)){
+            Gene gene = annotation.getGene(ordinal);
+            int refIndex = header.getSequenceIndex(gene.getChrom());
+            if(refIndex >= 0)
+                intervals.add(new QueryInterval(refIndex, gene.getStart(), gene.getEnd()));
+        }
+        return QueryInterval.optimizeIntervals(intervals.toArray(new QueryInterval[intervals.size()]));
+    }
+}
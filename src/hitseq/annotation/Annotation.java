@@ -9,11 +9,16 @@ import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- *
+ * The gene models. Once loaded, the annotation is not changed by read counting,
+ * so that it can be shared by several readers, each of which sweeps it with its
+ * own AnnotationCursor.
  * @author hezhisong
  */
 public class Annotation {
@@ -21,8 +26,12 @@ public class Annotation {
     private HashMap<String, Gene> allGenes;
     private HashMap<Gene, Integer> lengthOfGene;
     
-    private HashMap<String, Integer> pointerOfChrom;
-    private HashMap<Gene, Integer> pointerOfGene;
+    // every gene gets a dense ordinal in the order it is added, to index the per-gene arrays of the counters
+    private HashMap<String, Integer> ordinalOfGene;
+    private ArrayList<String> geneOfOrdinal;
+    private ArrayList<Gene> genesByOrdinal;
+    private SegmentMap segmentMap; // compiled lazily by getSegmentMap()
+    private GeneIntervalIndex intervalIndex; // built lazily by getIntervalIndex()
     
     private boolean estimatedAmbiguous;
     private boolean estimatedExclusive;
@@ -31,9 +40,23 @@ public class Annotation {
         reset();
     }
     
+    /**
+     * Read the annotation file. An annotation snapshot written by the "index" command is read whatever the given file type.
+     * @param file The annotation file.
+     * @param fileType The file type: struc, gtf, gff3 or bed.
+     */
     public Annotation(File file, String fileType){
         reset();
-        addAdditionalAnnotations(file, fileType);
+        if(AnnotationSnapshot.isSnapshot(file)){
+            try{
+                AnnotationSnapshot.read(this, file);
+                System.err.println("finish reading annotation snapshot");
+            } catch(java.io.IOException e){
+                System.err.println("ERROR! " + e + " in Annotation at Annotation!\n");
+                System.exit(1);
+            }
+        } else
+            addAdditionalAnnotations(file, fileType);
     }
     
     public Annotation(File file){
@@ -42,7 +65,6 @@ public class Annotation {
     
     public final void reset(){
         resetAnnotation();
-        resetPointer();
     }
     
     /**
@@ -53,24 +75,42 @@ public class Annotation {
         genesInChrom=new HashMap<>();
         allGenes=new HashMap<>();
         lengthOfGene=new HashMap<>();
+        ordinalOfGene=new HashMap<>();
+        geneOfOrdinal=new ArrayList<>();
+        genesByOrdinal=new ArrayList<>();
+        segmentMap=null;
+        intervalIndex=null;
         estimatedAmbiguous = false;
         estimatedExclusive = false;
     }
     
     /**
-     * FunName: resetPointer.
-     * Description: Set all gene pointers at chromosomes as well as all exon pointers at genes to 0.
+     * FunName: restore.
+     * Description: Replace the annotation set by the compiled one read from a snapshot, whose ambiguous regions are estimated.
+     * @param genes The genes, indexed by their ordinals.
+     * @param lengths The lengths of the genes, indexed by their ordinals.
+     * @param genesInChrom The sorted gene IDs of each chromosome.
+     * @param segmentMap The segment map.
      */
-    public final void resetPointer(){
-        pointerOfChrom=new HashMap<>();
-        pointerOfGene=new HashMap<>();
-        if(! genesInChrom.isEmpty())
-            for(String chrom : genesInChrom.keySet()){
-                pointerOfChrom.put(chrom, 0);
-                if(!genesInChrom.isEmpty())
-                    for(String gene : genesInChrom.get(chrom))
-                        pointerOfGene.put(allGenes.get(gene), 0);
-            }
+    void restore(ArrayList<Gene> genes, int[] lengths, HashMap<String, ArrayList<String>> genesInChrom, SegmentMap segmentMap){
+        resetAnnotation();
+        for(int ordinal=0; ordinal<genes.size(); ordinal++){
+            addGene(genes.get(ordinal).getID(), genes.get(ordinal));
+            lengthOfGene.put(genes.get(ordinal), lengths[ordinal]);
+        }
+        this.genesInChrom=genesInChrom;
+        this.segmentMap=segmentMap;
+        estimatedAmbiguous = true;
+    }
+    
+    private void addGene(String geneID, Gene gene){
+        allGenes.put(geneID, gene);
+        if(! ordinalOfGene.containsKey(geneID)){
+            ordinalOfGene.put(geneID, geneOfOrdinal.size());
+            geneOfOrdinal.add(geneID);
+            genesByOrdinal.add(gene);
+        } else
+            genesByOrdinal.set(ordinalOfGene.get(geneID), gene);
     }
     
     /**
@@ -80,16 +120,18 @@ public class Annotation {
      * @param fileType The file type of the given file. Should be one of "struc", "gtf" and "bed" (only for BED8).
      */
     public final void addAdditionalAnnotations(File file, String fileType){
-        try{
-            RandomAccessFile fileIn=new RandomAccessFile(file,"r");
-            
-            // Read the annotation file
+        try(AnnotationFileReader fileIn=new AnnotationFileReader(file, fileType, AnnotationFileReader.DEFAULT_NUM_THREADS)){
+            // Read the annotation file, whose lines are tokenized by AnnotationFileReader
             int numLines=0;
-            String line;
-            while((line=fileIn.readLine()) != null){ // deal with each line separately
-                if(line.startsWith("#"))
+            ArrayList<String[]> gff3Transcripts=new ArrayList<>();
+            ArrayList<String[]> gff3Exons=new ArrayList<>();
+            List<String[]> chunk;
+            while((chunk=fileIn.nextChunk()) != null)
+            for(String[] elements : chunk){ // deal with each line separately
+                if(elements==null){ // a line to ignore
+                    numLines++;
                     continue;
-                String[] elements=line.split("\t");
+                }
                 switch (fileType) {
                     case "struc":
                         // File format: gene structure (my customized file type)
@@ -97,18 +139,13 @@ public class Annotation {
                         
                         if(! genesInChrom.containsKey(elements[1])){
                             genesInChrom.put(elements[1], new ArrayList<String>());
-                            pointerOfChrom.put(elements[1], 0);
                         }
                         
-                        Integer geneStart=-1;
-                        Integer geneEnd=-1;
-                        Pattern geneStartPattern=Pattern.compile("^\\d+");
-                        Pattern geneEndPattern=Pattern.compile("\\d+$");
-                        Matcher geneStartMatcher=geneStartPattern.matcher(elements[4]);
-                        Matcher geneEndMatcher=geneEndPattern.matcher(elements[4]);
-                        if(geneStartMatcher.find() && geneEndMatcher.find()){
-                            geneStart=Integer.valueOf(geneStartMatcher.group());
-                            geneEnd=Integer.valueOf(geneEndMatcher.group());
+                        Integer geneStart=AnnotationFileReader.parseLeadingNumber(elements[4]);
+                        Integer geneEnd=AnnotationFileReader.parseTrailingNumber(elements[4]);
+                        if(geneStart==-1 || geneEnd==-1){
+                            geneStart=-1;
+                            geneEnd=-1;
                         }
                         switch (elements[2]) {
                             case "1":
@@ -125,8 +162,7 @@ public class Annotation {
                         else{
                             gene=new Gene(elements[0], elements[1], elements[2], geneStart, geneEnd);
                             genesInChrom.get(elements[1]).add(elements[0]);
-                            allGenes.put(elements[0], gene);
-                            pointerOfGene.put(gene, 0);
+                            addGene(elements[0], gene);
                             lengthOfGene.put(gene, Integer.valueOf(elements[3]));
                         }
                         
@@ -141,8 +177,8 @@ public class Annotation {
                         
                         String[] exons=elements[4].split(",");
                         for(String exon : exons){
-                            String[] coord=exon.split("\\.\\.");
-                            Exon newExon=new Exon(elements[1], elements[2], Integer.valueOf(coord[0]), Integer.valueOf(coord[1]));
+                            int separator=exon.indexOf("..");
+                            Exon newExon=new Exon(elements[1], elements[2], Integer.valueOf(exon.substring(0, separator)), Integer.valueOf(exon.substring(separator+2)));
                             newTranscript.addExon(newExon);
                         }
                         
@@ -153,113 +189,61 @@ public class Annotation {
                         break;
                     case "gtf":
                         // File format: GTF file from Ensembl
-                        if(elements[2].equals("exon")){
-                            if(! genesInChrom.containsKey(elements[0])){
-                                genesInChrom.put(elements[0], new ArrayList<String>());
-                                pointerOfChrom.put(elements[0], 0);
+                        // Fields: chrom, strand, start, end, gene_id, transcript_id, gene_type, transcript_type of the exons
+                        if(! genesInChrom.containsKey(elements[0])){
+                            genesInChrom.put(elements[0], new ArrayList<String>());
+                        }
+                        Integer exonStart=Integer.valueOf(elements[2]);
+                        Integer exonEnd=Integer.valueOf(elements[3]);
+                        String geneId=elements[4];
+                        String transcriptId=elements[5];
+                        
+                        if(geneId!=null && transcriptId!=null){
+                            if(allGenes.containsKey(geneId))
+                                gene=allGenes.get(geneId);
+                            else{
+                                if(elements[6]!=null){
+                                    gene = new Gene(geneId, elements[0], elements[1], elements[6]);
+                                } else{
+                                    gene=new Gene(geneId, elements[0], elements[1]);
+                                }
+                                genesInChrom.get(elements[0]).add(geneId);
+                                addGene(geneId, gene);
                             }
-                            Integer exonStart=Integer.valueOf(elements[3]);
-                            Integer exonEnd=Integer.valueOf(elements[4]);
                             
-                            Pattern geneIdPattern=Pattern.compile("gene_id \"[\\w\\.-]+\";");
-                            Matcher geneIdMatcher=geneIdPattern.matcher(elements[8]);
-                            Pattern transcriptIdPattern=Pattern.compile("transcript_id \"[\\w\\.-]+\";");
-                            Matcher transcriptIdMatcher=transcriptIdPattern.matcher(elements[8]);
                             
-                            if(geneIdMatcher.find() && transcriptIdMatcher.find()){
-                                String geneId=Pattern.compile("gene_id \"").matcher(geneIdMatcher.group()).replaceAll("");
-                                geneId=Pattern.compile("\";").matcher(geneId).replaceAll("");
-                                String transcriptId=Pattern.compile("transcript_id \"").matcher(transcriptIdMatcher.group()).replaceAll("");
-                                transcriptId=Pattern.compile("\";").matcher(transcriptId).replaceAll("");
-                                
-                                if(allGenes.containsKey(geneId))
-                                    gene=allGenes.get(geneId);
-                                else{
-                                    if(elements[8].matches("gene_type \"[\\w_]+\";")){
-                                        String geneType = Pattern.compile("gene_type \"([\\w_]+)\";").matcher(elements[8]).group(1);
-                                        gene = new Gene(geneId, elements[0], elements[6], geneType);
-                                    } else{
-                                        gene=new Gene(geneId, elements[0], elements[6]);
-                                    }
-                                    genesInChrom.get(elements[0]).add(geneId);
-                                    allGenes.put(geneId, gene);
-                                    pointerOfGene.put(gene, 0);
-                                }
-                                
-                                
-                                Transcript transcript;
-                                if(gene.containTranscript(transcriptId))
-                                    transcript=gene.getTranscript(transcriptId);
-                                else{
-                                    if(elements[8].matches("transcript_type \"[\\w_]+\";")){
-                                        String transcriptType = Pattern.compile("transcript_type \"([\\w_]+)\";").matcher(elements[8]).group(1);
-                                        transcript = new Transcript(transcriptId, elements[0], elements[6], transcriptType);
-                                    } else{
-                                        transcript=new Transcript(transcriptId, elements[0], elements[6]);
-                                    }
-                                    gene.addTranscript(transcript);
+                            Transcript transcript;
+                            if(gene.containTranscript(transcriptId))
+                                transcript=gene.getTranscript(transcriptId);
+                            else{
+                                if(elements[7]!=null){
+                                    transcript = new Transcript(transcriptId, elements[0], elements[1], elements[7]);
+                                } else{
+                                    transcript=new Transcript(transcriptId, elements[0], elements[1]);
                                 }
-                                
-                                Exon newExon=new Exon(elements[0], elements[6], exonStart, exonEnd);
-                                transcript.addExon(newExon);
+                                gene.addTranscript(transcript);
                             }
+                            
+                            Exon newExon=new Exon(elements[0], elements[1], exonStart, exonEnd);
+                            transcript.addExon(newExon);
                         }
                         break;
                     case "gff3":
+                        // Fields: chrom, strand, feature type, start, end, ID, Parent
+                        // The genes are added at once, while the transcripts and the exons are linked to their parents after the whole file is read, so that the lines can be in any order
                         if (!genesInChrom.containsKey(elements[0])) {
                             genesInChrom.put(elements[0], new ArrayList<String>());
-                            pointerOfChrom.put(elements[0], 0);
-                        }
-                        
-                        String[] ids=elements[8].split(";");
-                        HashMap<String,String> attributes=new HashMap<>();
-                        for(String id : ids){
-                            String[] attribute=id.split("=");
-                            attributes.put(attribute[0], attribute[1]);
                         }
                         
                         if(elements[2].equals("gene")){
-                            String geneId=attributes.get("ID");
-                            gene=new Gene(geneId, elements[0], elements[6]);
+                            geneId=elements[5];
+                            gene=new Gene(geneId, elements[0], elements[1]);
                             genesInChrom.get(elements[0]).add(geneId);
-                            allGenes.put(geneId, gene);
-                            pointerOfGene.put(gene, 0);
+                            addGene(geneId, gene);
                         } else if(elements[2].equals("mRNA")){
-                            String transcriptId=attributes.get("ID");
-                            String geneId=attributes.get("Parent");
-                            
-                            if(! allGenes.containsKey(geneId)){ // the gene of this transcript is not yet in the list, drop it.
-                                System.err.println("Warning: the parent gene is not in the list for this transcript: "+transcriptId);
-                                break;
-                            }
-                            gene=allGenes.get(geneId);
-                            Transcript transcript=new Transcript(transcriptId, elements[0], elements[6]);
-                            gene.addTranscript(transcript);
+                            gff3Transcripts.add(elements);
                         } else if(elements[2].equals("exon")){
-                            String exonId=attributes.get("ID");
-                            String transcriptId=attributes.get("Parent");
-                            if(! genesInChrom.containsKey(elements[0])){ // the chromosome of this exon is not available
-                                System.err.println("Warning: the chromosome of this exon is not availble: "+exonId);
-                                break;
-                            }
-                            
-                            gene=null;
-                            for(String geneId : genesInChrom.get(elements[0])){
-                                Gene thisGene=allGenes.get(geneId);
-                                if(thisGene.containTranscript(transcriptId)){
-                                    gene=thisGene;
-                                    break;
-                                }
-                            }
-                            
-                            if(gene==null){ // the gene of this exon is not yet in the list, drop it.
-                                System.err.println("Warning: the parent gene is not in the list for this exon: "+exonId);
-                                break;
-                            }
-                            Integer exonStart=Integer.valueOf(elements[3]);
-                            Integer exonEnd=Integer.valueOf(elements[4]);
-                            Exon newExon=new Exon(elements[0], elements[6], exonStart, exonEnd);
-                            gene.getTranscript(transcriptId).addExon(newExon);
+                            gff3Exons.add(elements);
                         }
                         break;
                     case "bed":
@@ -270,10 +254,9 @@ public class Annotation {
                         
                         if(! genesInChrom.containsKey(elements[0])){
                             genesInChrom.put(elements[0], new ArrayList<String>());
-                            pointerOfChrom.put(elements[0], 0);
                         }
-                        Integer exonStart=Integer.valueOf(elements[1])+1;
-                        Integer exonEnd=Integer.valueOf(elements[2]);
+                        exonStart=Integer.valueOf(elements[1])+1;
+                        exonEnd=Integer.valueOf(elements[2]);
                         String name=elements.length>3 ? elements[3] : "Interval."+numLines;
                         String strand=elements.length>5 ? elements[5] : "*";
                         
@@ -290,7 +273,7 @@ public class Annotation {
                         gene.generateNonredundantTranscript();
                         
                         genesInChrom.get(elements[0]).add(name);
-                        allGenes.put(name, gene);
+                        addGene(name, gene);
                         lengthOfGene.put(gene, Integer.valueOf(exonEnd-exonStart+1));
                         
                         break;
@@ -300,6 +283,8 @@ public class Annotation {
                     System.err.println("read annotation (in "+fileType+") "+String.valueOf(numLines)+" lines");
             }
             
+            if(fileType.equals("gff3"))
+                linkGFF3Features(gff3Transcripts, gff3Exons);
             System.err.println("finish reading annotation file (in "+fileType+" format)");
             
             
@@ -314,23 +299,25 @@ public class Annotation {
             }
             
             // sort the gene list for each chromosome
-            for(String chrom : genesInChrom.keySet()){
-                if(genesInChrom.get(chrom).size()==1) // if there is only one gene in the set, sorting is not necessary
+            for(java.util.Map.Entry<String, ArrayList<String>> entry : genesInChrom.entrySet()){
+                ArrayList<String> genes=entry.getValue();
+                if(genes.size()==1) // if there is only one gene in the set, sorting is not necessary
                     continue;
                 
-                for(int i=0; i<genesInChrom.get(chrom).size()-1; i++){ // i: last index of ordered area
-                    int j=i+1; // j: first index of unordered area
-                    String geneFirstUnordered=genesInChrom.get(chrom).get(j);
-                    
-                    while(i>=0 && (allGenes.get(genesInChrom.get(chrom).get(i)).getStart() > allGenes.get(geneFirstUnordered).getStart() || (allGenes.get(genesInChrom.get(chrom).get(i)).getStart() == allGenes.get(geneFirstUnordered).getStart() && allGenes.get(genesInChrom.get(chrom).get(i)).getEnd() > allGenes.get(geneFirstUnordered).getEnd()))){
-                        i--;
-                    }
-                    genesInChrom.get(chrom).add(i+1, geneFirstUnordered);
-                    genesInChrom.get(chrom).remove(j+1);
-                    i=j-1;
+                int[] starts=new int[genes.size()];
+                int[] ends=new int[genes.size()];
+                for(int i=0; i<genes.size(); i++){
+                    starts[i]=allGenes.get(genes.get(i)).getStart();
+                    ends[i]=allGenes.get(genes.get(i)).getEnd();
                 }
+                ArrayList<String> sortedGenes=new ArrayList<>(genes.size());
+                for(int i : sortByCoordinates(starts, ends))
+                    sortedGenes.add(genes.get(i));
+                entry.setValue(sortedGenes);
             }
             
+            segmentMap=null;
+            intervalIndex=null;
             estimatedAmbiguous = false;
             estimatedExclusive = false;
         }
@@ -339,6 +326,77 @@ public class Annotation {
         }
     }
     
+    /**
+     * FunName: linkGFF3Features.
+     * Description: Add the transcripts of GFF3 to their parent genes, and the exons to their parent transcripts, through an index of the transcript IDs.
+     * @param transcripts The fields of the mRNA lines, in the order of the file.
+     * @param exons The fields of the exon lines, in the order of the file. An exon can have several parents, separated by commas.
+     */
+    private void linkGFF3Features(ArrayList<String[]> transcripts, ArrayList<String[]> exons){
+        HashMap<String, Transcript> transcriptOfId=new HashMap<>();
+        for(String[] elements : transcripts){
+            String transcriptId=elements[5];
+            String geneId=elements[6];
+            if(! allGenes.containsKey(geneId)){ // the gene of this transcript is not in the list, drop it.
+                System.err.println("Warning: the parent gene is not in the list for this transcript: "+transcriptId);
+                continue;
+            }
+            Transcript transcript=new Transcript(transcriptId, elements[0], elements[1]);
+            allGenes.get(geneId).addTranscript(transcript);
+            transcriptOfId.put(transcriptId, transcript);
+        }
+        
+        for(String[] elements : exons){
+            boolean linked=false;
+            if(elements[6]!=null)
+                for(String transcriptId : elements[6].split(",")){
+                    Transcript transcript=transcriptOfId.get(transcriptId);
+                    if(transcript!=null){
+                        transcript.addExon(new Exon(elements[0], elements[1], Integer.valueOf(elements[3]), Integer.valueOf(elements[4])));
+                        linked=true;
+                    }
+                }
+            if(! linked) // the gene of this exon is not in the list, drop it.
+                System.err.println("Warning: the parent gene is not in the list for this exon: "+elements[5]);
+        }
+    }
+    
+    /**
+     * FunName: sortByCoordinates.
+     * Description: Stable merge sort of the genes by their starts, and by their ends at the same start.
+     * @param starts The starts of the genes.
+     * @param ends The ends of the genes.
+     * @return The indices of the genes in the sorted order.
+     */
+    private static int[] sortByCoordinates(int[] starts, int[] ends){
+        int n=starts.length;
+        int[] order=new int[n];
+        int[] buffer=new int[n];
+        for(int i=0; i<n; i++)
+            order[i]=i;
+        for(int width=1; width<n; width*=2){
+            for(int from=0; from<n; from+=2*width){
+                int middle=Math.min(from+width, n), to=Math.min(from+2*width, n);
+                int left=from, right=middle, k=from;
+                while(left<middle && right<to){
+                    int a=order[left], b=order[right];
+                    if(starts[b]<starts[a] || (starts[b]==starts[a] && ends[b]<ends[a]))
+                        buffer[k++]=order[right++];
+                    else
+                        buffer[k++]=order[left++];
+                }
+                while(left<middle)
+                    buffer[k++]=order[left++];
+                while(right<to)
+                    buffer[k++]=order[right++];
+            }
+            int[] swap=order;
+            order=buffer;
+            buffer=swap;
+        }
+        return order;
+    }
+    
     /**
      * FunName: outputInStruc.
      * Description: Output the annotation set to STOUT in struc format.
@@ -457,11 +515,72 @@ public class Annotation {
             return null;
     }
     
-    public int getCurrentGenePointer(String chrom){
+    /**
+     * @return The number of genes, i.e. the upper bound of the gene ordinals.
+     */
+    public int getNumGenes(){
+        return geneOfOrdinal.size();
+    }
+    
+    /**
+     * FunName: getGeneOrdinal.
+     * Description: Get the dense ordinal of the gene, which is in [0, getNumGenes()).
+     * @param geneID The gene ID.
+     * @return The ordinal of the gene, or -1 if the gene is not in the annotation.
+     */
+    public int getGeneOrdinal(String geneID){
+        Integer ordinal=ordinalOfGene.get(geneID);
+        return ordinal==null ? -1 : ordinal;
+    }
+    
+    public String getGeneID(int ordinal){
+        return geneOfOrdinal.get(ordinal);
+    }
+    
+    public Gene getGene(int ordinal){
+        return genesByOrdinal.get(ordinal);
+    }
+    
+    /**
+     * FunName: getSegmentMap.
+     * Description: Get the exonic segment map of the annotation, which is compiled at the first call after the annotation is changed.
+     * @return The segment map.
+     */
+    public synchronized SegmentMap getSegmentMap(){
+        if(segmentMap==null)
+            segmentMap=new SegmentMap(this);
+        return segmentMap;
+    }
+    
+    /**
+     * FunName: getIntervalIndex.
+     * Description: Get the interval index of the gene spans, which is built at the first call after the annotation is changed.
+     * @return The interval index.
+     */
+    public synchronized GeneIntervalIndex getIntervalIndex(){
+        if(intervalIndex==null)
+            intervalIndex=new GeneIntervalIndex(this);
+        return intervalIndex;
+    }
+    
+    /**
+     * FunName: query.
+     * Description: Get the genes whose spans are overlapping with the given region, in any order of the queries.
+     * @param chrom The chromosome.
+     * @param start The start of the region, inclusive.
+     * @param end The end of the region, inclusive.
+     * @param strand The strand of the genes to consider: the strand class of SegmentMap, e.g. SegmentMap.ANY_STRAND.
+     * @return The ordinals of the overlapping genes, in the order of the gene starts.
+     */
+    public int[] query(String chrom, int start, int end, int strand){
+        return getIntervalIndex().query(chrom, start, end, strand);
+    }
+    
+    public int getNumGenes(String chrom){
         if(genesInChrom.containsKey(chrom))
-            return pointerOfChrom.get(chrom);
+            return genesInChrom.get(chrom).size();
         else
-            return -1;
+            return 0;
     }
     
     public String getGene(String chrom, int pointer){
@@ -520,13 +639,6 @@ public class Annotation {
             return -1;
     }
     
-    public int getCurrentExonIndex(String gene){
-        if(allGenes.containsKey(gene))
-            return pointerOfGene.get(allGenes.get(gene));
-        else
-            return -1;
-    }
-    
     public int getNonRedundantExonStart(String geneID, int index){
         if(allGenes.containsKey(geneID)){
             Gene gene=allGenes.get(geneID);
@@ -545,69 +657,52 @@ public class Annotation {
         return -1;
     }
     
-    public int movePointerGene(String chrom){
-        if(pointerOfChrom.get(chrom)>=genesInChrom.get(chrom).size())
-            pointerOfChrom.put(chrom, -1);
-        else
-            pointerOfChrom.put(chrom, pointerOfChrom.get(chrom)+1);
-        return pointerOfChrom.get(chrom);
-    }
-    
-    public int movePointerExon(String gene){
-        pointerOfGene.put(allGenes.get(gene), pointerOfGene.get(allGenes.get(gene))+1);
-        return pointerOfGene.get(allGenes.get(gene));
-    }
-    
     /**
      * FunName: estimateExclusiveGeneLength.
-     * Description: Detect overlap among genes to calculate the exclusive exon length of every gene for both consider or not the strand.
-     * @param outputPairs if true, output the gene pairs with overlapping regions (even on different strands).
+     * Description: Detect overlap among genes to calculate the ambiguous and the exclusive exonic regions of every gene for both consider or not the strand,
+     * by one sweep per chromosome over the boundaries of the non-redundant exons. The chromosomes are swept in parallel.
+     * @param outputPairs Not used any more: the overlapping gene pairs are not output.
      */
-    public void estimateAmbiguousGeneRegions(boolean outputPairs){
+    public synchronized void estimateAmbiguousGeneRegions(boolean outputPairs){
+        if(estimatedAmbiguous) // already estimated, e.g. in the snapshot
+            return;
+        ArrayList<GeneRegionSweep> sweeps=new ArrayList<>();
         for(String chrom : genesInChrom.keySet()){
-            ArrayList<String> genesInThisChrom=genesInChrom.get(chrom);
-            for(int i=0; i<genesInThisChrom.size()-1; i++){
-                Gene thisGene=allGenes.get(genesInThisChrom.get(i));
-                int geneStartThis=thisGene.getStart();
-                int geneEndThis=thisGene.getEnd();
-
-                ArrayList<Gene> overlapGenes=new ArrayList<>();
-                for(int j=i+1; j<genesInThisChrom.size(); j++){
-                    Gene thatGene=allGenes.get(genesInThisChrom.get(j));
-                    int geneStartThat=thatGene.getStart();
-                    if(geneStartThis <= geneStartThat && geneStartThat <= geneEndThis)
-                        overlapGenes.add(thatGene);
-                    else if(geneEndThis < geneStartThat)
-                        break;
-                }
-                
-                //if(overlapGenes.size()>0) System.out.println("overlap candidates for "+thisGene+": "+overlapGenes);
-                for(Gene thatGene : overlapGenes){
-                    boolean sameStrand=thisGene.getStrand().equals(thatGene.getStrand());
-                    int overlapSize=0;
-                    int overlapSizeNoStrand=0;
-                    
-                    ArrayList<Exon> overlapRegionsWithStrand=thisGene.getOverlappingRegion(thatGene, true);
-                    ArrayList<Exon> overlapRegionsNoStrand=thisGene.getOverlappingRegion(thatGene, false);
-                    
-                    for(Exon exon : overlapRegionsWithStrand){
-                        thisGene.getAmbiguousRegions().addExon(exon);
-                        thatGene.getAmbiguousRegions().addExon(exon);
-                    }
-                    for(Exon exon : overlapRegionsNoStrand){
-                        thisGene.getAmbiguousRegionsIgnoringStrand().addExon(exon);
-                        thatGene.getAmbiguousRegionsIgnoringStrand().addExon(exon);
-                    }
-                    
-                    if(outputPairs && overlapSizeNoStrand>0)
-                        System.out.println(thisGene+"\t"+thatGene+"\t"+sameStrand+"\t"+overlapSizeNoStrand+"\t"+overlapSize);
-                }
-                //System.out.println("done "+i+" genes in "+chrom);
-                thisGene.getAmbiguousRegions().mergeExons();
-                thisGene.getAmbiguousRegionsIgnoringStrand().mergeExons();
-            }
+            ArrayList<Gene> genesInThisChrom=new ArrayList<>();
+            for(String geneID : genesInChrom.get(chrom))
+                genesInThisChrom.add(allGenes.get(geneID));
+            sweeps.add(new GeneRegionSweep(genesInThisChrom));
         }
+        
+        int numThreads=Math.min(AnnotationFileReader.DEFAULT_NUM_THREADS, sweeps.size());
+        if(numThreads > 1){
+            ExecutorService pool=Executors.newFixedThreadPool(numThreads);
+            try{
+                for(Future<GeneRegionSweep> result : pool.invokeAll(sweeps))
+                    result.get();
+            } catch(InterruptedException | ExecutionException e){
+                System.err.println("ERROR! " + e + " in estimateAmbiguousGeneRegions at Annotation!\n");
+                System.exit(1);
+            } finally{
+                pool.shutdown();
+            }
+        } else
+            for(GeneRegionSweep sweep : sweeps)
+                sweep.call();
+        
+        // the regions are added to the genes in this thread, as a gene can be listed in several chromosomes
+        for(Gene gene : allGenes.values())
+            gene.resetRegions();
+        for(GeneRegionSweep sweep : sweeps)
+            for(int i=0; i<sweep.getNumGenes(); i++){
+                Gene gene=sweep.getGene(i);
+                sweep.addRegions(GeneRegionSweep.AMBIGUOUS, i, gene.getAmbiguousRegions());
+                sweep.addRegions(GeneRegionSweep.AMBIGUOUS_IGNORING_STRAND, i, gene.getAmbiguousRegionsIgnoringStrand());
+                sweep.addRegions(GeneRegionSweep.EXCLUSIVE, i, gene.getExclusiveRegions());
+                sweep.addRegions(GeneRegionSweep.EXCLUSIVE_IGNORING_STRAND, i, gene.getExclusiveRegionsIgnoringStrand());
+            }
         estimatedAmbiguous = true;
+        estimatedExclusive = true;
     }
     
     /**
@@ -619,9 +714,16 @@ public class Annotation {
         estimateAmbiguousGeneRegions(false);
     }
     
-    public void generateUnambiguousGeneRegions(){
+    /**
+     * FunName: generateUnambiguousGeneRegions.
+     * Description: Get the exclusive regions of every gene, which are found with the ambiguous ones,
+     * or derived from the ambiguous ones when only these are given, e.g. in the snapshot.
+     */
+    public synchronized void generateUnambiguousGeneRegions(){
         if(! estimatedAmbiguous)
             estimateAmbiguousGeneRegions();
+        if(estimatedExclusive)
+            return;
         for(Gene gene : allGenes.values()){
             gene.getExclusiveRegions().addExons(gene.getNonredundantTranscript().exclusiveRegions(gene.getAmbiguousRegions(), true));
             gene.getExclusiveRegionsIgnoringStrand().addExons(gene.getNonredundantTranscript().exclusiveRegions(gene.getAmbiguousRegionsIgnoringStrand(), true));
@@ -650,7 +752,7 @@ public class Annotation {
      * Description: Get all the possible junctions based on the current annotation set, and organize junctions at the same chromosome into a HashSet.
      * @return The junctions annotated by the current annotation set, organized by chromosomes.
      */
-    public HashMap<String,HashSet<Junction>> getAllJunctionsInChrom(){
+    public synchronized HashMap<String,HashSet<Junction>> getAllJunctionsInChrom(){
         HashMap<String,HashSet<Junction>> junctions=new HashMap<>();
         for(String chrom : genesInChrom.keySet()){
             junctions.put(chrom, new HashSet<Junction>());
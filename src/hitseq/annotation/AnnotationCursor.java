@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+/**
+ * The sweeping state of one reader over the segment map of an Annotation
+ * object: the chromosome of the last read and the first segment which may
+ * still overlap with the following reads. The Annotation itself is not changed
+ * by the sweep, so that any number of cursors, e.g. one per sample or per
+ * thread, can share the same loaded annotation.
+ */
+public class AnnotationCursor {
+    private final Annotation annotation;
+    private final SegmentMap segmentMap;
+    private String currentChrom;
+    private SegmentMap.ChromSegments currentSegments;
+    private int currentSegment;
+    private int lastStart;
+    
+    public AnnotationCursor(Annotation annotation){
+        this.annotation=annotation;
+        this.segmentMap=annotation.getSegmentMap();
+        reset();
+    }
+    
+    /**
+     * FunName: reset.
+     * Description: Move the cursor back to the beginning of the annotation.
+     */
+    public final void reset(){
+        currentChrom=null;
+        currentSegments=null;
+        currentSegment=0;
+        lastStart=0;
+    }
+    
+    public Annotation getAnnotation(){
+        return annotation;
+    }
+    
+    public SegmentMap getSegmentMap(){
+        return segmentMap;
+    }
+    
+    /**
+     * FunName: getOverlapGeneSet.
+     * Description: Get the genes whose non-redundant exons are overlapping with the given blocks.
+     * The sweep is fastest when the blocks are given in coordinate order, but any order is allowed:
+     * the cursor jumps with a binary search when the chromosome changes or the blocks start earlier than the last ones.
+     * @param chrom The chromosome of the blocks.
+     * @param blockStarts The starts of the blocks, in increasing order.
+     * @param blockEnds The ends of the blocks.
+     * @param numBlocks The number of blocks.
+     * @param strand The strand of the genes to consider: the strand class of SegmentMap, e.g. SegmentMap.ANY_STRAND.
+     * @param hits The buffer to save the ordinals of the overlapping genes, in increasing order. It is cleared first.
+     * @return The ID of the gene set in the segment map, 0 if no gene is overlapping, or SegmentMap.UNION_OF_SETS if the genes come from several sets.
+     * The union of several sets is only built in the hits, and not interned, so that the reads are resolved without changing the segment map.
+     */
+    public int getOverlapGeneSet(String chrom, int[] blockStarts, int[] blockEnds, int numBlocks, int strand, GeneHits hits){
+        hits.clear();
+        if(numBlocks==0)
+            return 0;
+        if(! chrom.equals(currentChrom)){
+            currentChrom=chrom;
+            currentSegments=segmentMap.getSegments(chrom);
+            currentSegment=0;
+        } else if(blockStarts[0] < lastStart)
+            currentSegment=0;
+        lastStart=blockStarts[0];
+        if(currentSegments==null)
+            return 0;
+        
+        int[] starts=currentSegments.starts;
+        int[] geneSets=currentSegments.geneSets[strand];
+        currentSegment=currentSegments.firstSegmentEndingFrom(blockStarts[0], currentSegment);
+        
+        int firstSet=0;
+        boolean multipleSets=false;
+        int segment=currentSegment;
+        for(int i=0; i<numBlocks && segment<starts.length; i++){
+            segment=currentSegments.firstSegmentEndingFrom(blockStarts[i], segment);
+            for(; segment<starts.length && starts[segment]<=blockEnds[i]; segment++){
+                int geneSet=geneSets[segment];
+                if(geneSet==0 || geneSet==firstSet)
+                    continue;
+                if(firstSet==0)
+                    firstSet=geneSet;
+                else
+                    multipleSets=true;
+                for(int gene : segmentMap.getGenes(geneSet))
+                    if(! hits.contains(gene))
+                        hits.add(gene);
+            }
+            if(segment>0)
+                segment--; // the last segment may also overlap with the next block
+        }
+        if(! multipleSets)
+            return firstSet;
+        hits.sort();
+        return SegmentMap.UNION_OF_SETS;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The lines of an annotation file, tokenized into the fields used by
+ * Annotation. The file is split into chunks of whole lines, which are read
+ * with positional reads of the file channel and tokenized by a pool of worker
+ * threads ahead of the consumer; the chunks are handed back in the original
+ * order, so that the genes are added in the same order as the lines. The
+ * fields and the attributes of GTF/GFF3 are cut by hand instead of by regular
+ * expressions, and a file of one chunk is tokenized in the consumer thread.
+ *
+ * The fields of each line depend on the file type:
+ * struc and bed - the tab-separated columns, without the empty trailing ones;
+ * gtf - chrom, strand, start, end, gene_id, transcript_id, gene_type, transcript_type of the exons;
+ * gff3 - chrom, strand, feature type, start, end, ID, Parent.
+ * The lines to ignore, e.g. the other features of GTF or the lines with too few
+ * columns, are given as null, so that they are still counted; the comment
+ * lines are skipped.
+ */
+class AnnotationFileReader implements Closeable {
+    static final int DEFAULT_NUM_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private static final int CHUNK_SIZE = 1 << 23;
+
+    private final String fileType;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ArrayList<Long> chunkStarts = new ArrayList<>(); // the chunk boundaries, ending with the file length
+    private final ExecutorService pool;
+    private final int numThreads;
+    private final ArrayDeque<Future<List<String[]>>> pending = new ArrayDeque<>();
+    private int nextChunk = 0; // the next chunk to submit
+
+    /**
+     * Open the annotation file and find the chunk boundaries.
+     * @param path The annotation file.
+     * @param fileType The file type: struc, gtf, gff3 or bed.
+     * @param numThreads The number of worker threads.
+     */
+    AnnotationFileReader(File path, String fileType, int numThreads) throws IOException{
+        this.fileType = fileType;
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        long length = channel.size();
+        chunkStarts.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for(long start = CHUNK_SIZE; start < length; ){
+            // move the boundary to the start of the next line
+            long position = start;
+            boolean found = false;
+            while(! found && position < length){
+                probe.clear();
+                int read = channel.read(probe, position);
+                for(int i = 0; i < read && ! found; i++)
+                    if(probe.get(i) == '\n'){
+                        position += i + 1;
+                        found = true;
+                    }
+                if(! found)
+                    position += read;
+            }
+            if(position >= length)
+                break;
+            chunkStarts.add(position);
+            start = position + CHUNK_SIZE;
+        }
+        chunkStarts.add(length);
+
+        int numChunks = chunkStarts.size() - 1;
+        this.numThreads = numThreads;
+        this.pool = numThreads > 1 && numChunks > 1 ? Executors.newFixedThreadPool(Math.min(numThreads, numChunks), new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable task){
+                Thread thread = new Thread(task, "annotation-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * FunName: nextChunk.
+     * Description: Get the tokenized lines of the next chunk.
+     * @return The fields of the lines in the chunk, or null at the end of the file.
+     */
+    List<String[]> nextChunk() throws IOException{
+        if(pool == null)
+            return nextChunk < chunkStarts.size() - 1 ? readChunk(nextChunk++) : null;
+        // keep two chunks per worker in flight
+        while(nextChunk < chunkStarts.size() - 1 && pending.size() < 2 * numThreads){
+            final int chunk = nextChunk++;
+            pending.add(pool.submit(new Callable<List<String[]>>(){
+                @Override
+                public List<String[]> call() throws IOException{
+                    return readChunk(chunk);
+                }
+            }));
+        }
+        if(pending.isEmpty())
+            return null;
+        try{
+            return pending.poll().get();
+        } catch(InterruptedException | ExecutionException e){
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        if(pool != null)
+            pool.shutdownNow();
+        file.close();
+    }
+
+    private List<String[]> readChunk(int chunk) throws IOException{
+        long start = chunkStarts.get(chunk);
+        byte[] bytes = new byte[(int) (chunkStarts.get(chunk + 1) - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, start + buffer.position());
+            if(read < 0)
+                throw new IOException("unexpected end of the annotation file");
+        }
+
+        ArrayList<String[]> lines = new ArrayList<>();
+        ArrayList<String> fields = new ArrayList<>();
+        for(int lineStart = 0; lineStart < bytes.length; ){
+            int lineEnd = lineStart;
+            while(lineEnd < bytes.length && bytes[lineEnd] != '\n')
+                lineEnd++;
+            int next = lineEnd + 1;
+            if(lineEnd > lineStart && bytes[lineEnd - 1] == '\r')
+                lineEnd--;
+            if(lineEnd == lineStart || bytes[lineStart] != '#'){
+                splitFields(bytes, lineStart, lineEnd, fields);
+                lines.add(toRecord(fields));
+            }
+            lineStart = next;
+        }
+        return lines;
+    }
+
+    /**
+     * FunName: splitFields.
+     * Description: Split a line at the tabs, dropping the empty fields at the end as String.split does.
+     */
+    private static void splitFields(byte[] bytes, int from, int to, ArrayList<String> fields){
+        fields.clear();
+        for(int fieldStart = from, i = from; i <= to; i++)
+            if(i == to || bytes[i] == '\t'){
+                fields.add(toString(bytes, fieldStart, i));
+                fieldStart = i + 1;
+            }
+        while(fields.size() > 1 && fields.get(fields.size() - 1).isEmpty())
+            fields.remove(fields.size() - 1);
+    }
+
+    // the file is read byte by byte as characters, as RandomAccessFile.readLine does
+    @SuppressWarnings("deprecation")
+    private static String toString(byte[] bytes, int from, int to){
+        return new String(bytes, 0, from, to - from);
+    }
+
+    private String[] toRecord(ArrayList<String> fields){
+        switch(fileType){
+            case "gtf":
+                if(fields.size() < 9 || ! fields.get(2).equals("exon"))
+                    return null;
+                String attributes = fields.get(8);
+                return new String[]{fields.get(0), fields.get(6), fields.get(3), fields.get(4),
+                    getGTFAttribute(attributes, "gene_id", true), getGTFAttribute(attributes, "transcript_id", true),
+                    getGTFAttribute(attributes, "gene_type", false), getGTFAttribute(attributes, "transcript_type", false)};
+            case "gff3":
+                if(fields.size() < 9)
+                    return null;
+                String id = null, parent = null;
+                String column = fields.get(8);
+                for(int from = 0; from < column.length(); ){
+                    int to = column.indexOf(';', from);
+                    if(to < 0)
+                        to = column.length();
+                    int equal = column.indexOf('=', from);
+                    if(equal > from && equal < to){
+                        String key = column.substring(from, equal);
+                        if(key.equals("ID"))
+                            id = column.substring(equal + 1, to);
+                        else if(key.equals("Parent"))
+                            parent = column.substring(equal + 1, to);
+                    }
+                    from = to + 1;
+                }
+                return new String[]{fields.get(0), fields.get(6), fields.get(2), fields.get(3), fields.get(4), id, parent};
+            case "struc":
+                return fields.size() < 5 ? null : fields.toArray(new String[fields.size()]);
+            default:
+                return fields.toArray(new String[fields.size()]);
+        }
+    }
+
+    /**
+     * FunName: getGTFAttribute.
+     * Description: Get the value of an attribute in the last column of GTF, given as key "value"; and separated by semicolons.
+     * @param attributes The last column.
+     * @param key The key of the attribute.
+     * @param allowDot If true, the value can contain '.' and '-' besides the word characters, as the IDs of Ensembl.
+     * @return The value, or null if the attribute is not given or its value has other characters.
+     */
+    static String getGTFAttribute(String attributes, String key, boolean allowDot){
+        int length = attributes.length();
+        for(int i = 0; i < length; ){
+            while(i < length && (attributes.charAt(i) == ' ' || attributes.charAt(i) == ';'))
+                i++;
+            int keyEnd = attributes.indexOf(' ', i);
+            if(keyEnd < 0)
+                return null;
+            boolean isKey = keyEnd - i == key.length() && attributes.startsWith(key, i);
+            int valueStart = keyEnd + 1;
+            while(valueStart < length && attributes.charAt(valueStart) == ' ')
+                valueStart++;
+            int valueEnd;
+            if(valueStart < length && attributes.charAt(valueStart) == '"'){
+                valueStart++;
+                valueEnd = attributes.indexOf('"', valueStart);
+                if(valueEnd < 0)
+                    return null;
+                i = valueEnd + 1;
+            } else{
+                valueEnd = attributes.indexOf(';', valueStart);
+                if(valueEnd < 0)
+                    valueEnd = length;
+                i = valueEnd;
+            }
+            if(isKey){
+                if(valueEnd == valueStart)
+                    return null;
+                for(int c = valueStart; c < valueEnd; c++){
+                    char ch = attributes.charAt(c);
+                    if(! (ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' || ch == '_' || allowDot && (ch == '.' || ch == '-')))
+                        return null;
+                }
+                return attributes.substring(valueStart, valueEnd);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * FunName: parseLeadingNumber.
+     * @return The non-negative integer at the beginning of the string, or -1 if it does not start with a digit.
+     */
+    static int parseLeadingNumber(String text){
+        int end = 0;
+        while(end < text.length() && text.charAt(end) >= '0' && text.charAt(end) <= '9')
+            end++;
+        return end == 0 ? -1 : Integer.parseInt(text.substring(0, end));
+    }
+
+    /**
+     * FunName: parseTrailingNumber.
+     * @return The non-negative integer at the end of the string, or -1 if it does not end with a digit.
+     */
+    static int parseTrailingNumber(String text){
+        int start = text.length();
+        while(start > 0 && text.charAt(start - 1) >= '0' && text.charAt(start - 1) <= '9')
+            start--;
+        return start == text.length() ? -1 : Integer.parseInt(text.substring(start));
+    }
+}
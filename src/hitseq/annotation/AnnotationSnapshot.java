@@ -0,0 +1,214 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * The binary snapshot of a compiled annotation, written by the "index"
+ * command, so that the runs using the annotation skip the parsing, the sorting
+ * of the genes, the estimation of the ambiguous regions and the compiling of
+ * the segment map. The snapshot keeps, in the order of the gene ordinals, the
+ * genes with their merged exons, lengths and ambiguous regions; then the
+ * sorted genes and the segments of each chromosome; and the gene sets of the
+ * segment map. The file is memory mapped while it is read, and the arrays of
+ * the segment map are copied from it in bulk; the genes and their transcripts
+ * are rebuilt as objects on the heap, as the counters use them, so that the
+ * snapshot saves the time to load the annotation but not its memory.
+ *
+ * As in the struc format, each gene of a snapshot has one transcript, i.e. its
+ * merged exons.
+ */
+public class AnnotationSnapshot {
+    private static final long MAGIC = 0x4869545365714958L; // "HiTSeqIX"
+    private static final int VERSION = 2;
+
+    private AnnotationSnapshot(){
+    }
+
+    /**
+     * FunName: isSnapshot.
+     * @return true if the file is an annotation snapshot.
+     */
+    public static boolean isSnapshot(File file){
+        if(! file.isFile() || file.length() < 12)
+            return false;
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")){
+            return in.readLong() == MAGIC;
+        } catch(IOException e){
+            return false;
+        }
+    }
+
+    /**
+     * FunName: write.
+     * Description: Compile the annotation, i.e. estimate its ambiguous regions and its segment map, and write its snapshot.
+     * @param annotation The annotation.
+     * @param file The snapshot file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Annotation annotation, File file) throws IOException{
+        annotation.estimateAmbiguousGeneRegions();
+        SegmentMap segmentMap = annotation.getSegmentMap();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))){
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+
+            // the genes
+            out.writeInt(annotation.getNumGenes());
+            for(int ordinal = 0; ordinal < annotation.getNumGenes(); ordinal++){
+                Gene gene = annotation.getGene(ordinal);
+                writeString(out, gene.getID());
+                writeString(out, gene.getChrom());
+                writeString(out, gene.getStrand());
+                writeString(out, gene.getType());
+                out.writeInt(annotation.getGeneLength(gene.getID()));
+                writeExons(out, gene.getNonredundantTranscript());
+                writeExons(out, gene.getAmbiguousRegions());
+                writeExons(out, gene.getAmbiguousRegionsIgnoringStrand());
+            }
+
+            // the chromosomes
+            out.writeInt(annotation.getAvailableChromosomes().size());
+            for(String chrom : annotation.getAvailableChromosomes()){
+                writeString(out, chrom);
+                out.writeInt(annotation.getNumGenes(chrom));
+                for(int pointer = 0; pointer < annotation.getNumGenes(chrom); pointer++)
+                    out.writeInt(annotation.getGeneOrdinal(annotation.getGene(chrom, pointer)));
+                SegmentMap.ChromSegments segments = segmentMap.getSegments(chrom);
+                writeInts(out, segments.starts);
+                writeInts(out, segments.ends);
+                for(int[] geneSets : segments.geneSets)
+                    writeInts(out, geneSets);
+            }
+
+            // the gene sets
+            out.writeInt(segmentMap.getNumGeneSets());
+            for(int geneSet = 0; geneSet < segmentMap.getNumGeneSets(); geneSet++)
+                writeInts(out, segmentMap.getGenes(geneSet));
+        }
+    }
+
+    // the strings are written as bytes of the characters, as the annotation files are read
+    private static void writeString(DataOutputStream out, String text) throws IOException{
+        out.writeInt(text.length());
+        for(int i = 0; i < text.length(); i++)
+            out.writeByte(text.charAt(i));
+    }
+
+    private static void writeExons(DataOutputStream out, Transcript transcript) throws IOException{
+        out.writeInt(transcript.getExonNumber());
+        for(int i = 0; i < transcript.getExonNumber(); i++){
+            out.writeInt(transcript.getExon(i).getStart());
+            out.writeInt(transcript.getExon(i).getEnd());
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException{
+        out.writeInt(values.length);
+        for(int value : values)
+            out.writeInt(value);
+    }
+
+    /**
+     * FunName: read.
+     * Description: Replace the content of the annotation by the one of the snapshot.
+     * @param annotation The annotation.
+     * @param file The snapshot file.
+     * @throws IOException If the file cannot be read, or is not a snapshot of this version.
+     */
+    static void read(Annotation annotation, File file) throws IOException{
+        try(RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()){
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.getLong() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException(file.getPath() + " is not an annotation snapshot of this version of HiTSeq");
+
+            // the genes
+            int numGenes = buffer.getInt();
+            ArrayList<Gene> genes = new ArrayList<>(numGenes);
+            int[] lengths = new int[numGenes];
+            for(int ordinal = 0; ordinal < numGenes; ordinal++){
+                String id = readString(buffer);
+                String chrom = readString(buffer);
+                String strand = readString(buffer).intern(); // the strands are compared by reference in places, as the literals of the struc format
+                String type = readString(buffer);
+                lengths[ordinal] = buffer.getInt();
+                Gene gene = new Gene(id, chrom, strand, type);
+                Transcript exons = readExons(buffer, id, chrom, strand);
+                Transcript merged = new Transcript("Structure", chrom, strand);
+                merged.addExons(exons.getExons());
+                gene.addTranscript(exons);
+                gene.setNonredundantTranscript(merged);
+                gene.getAmbiguousRegions().addExons(readExons(buffer, "Ambiguous", chrom, strand).getExons());
+                gene.getAmbiguousRegionsIgnoringStrand().addExons(readExons(buffer, "Ambiguous", chrom, strand).getExons());
+                genes.add(gene);
+            }
+
+            // the chromosomes
+            int numChroms = buffer.getInt();
+            LinkedHashMap<String, ArrayList<String>> genesInChrom = new LinkedHashMap<>();
+            HashMap<String, SegmentMap.ChromSegments> segmentsInChrom = new HashMap<>();
+            for(int i = 0; i < numChroms; i++){
+                String chrom = readString(buffer);
+                int numGenesInChrom = buffer.getInt();
+                ArrayList<String> genesInThisChrom = new ArrayList<>(numGenesInChrom);
+                for(int pointer = 0; pointer < numGenesInChrom; pointer++)
+                    genesInThisChrom.add(genes.get(buffer.getInt()).getID());
+                genesInChrom.put(chrom, genesInThisChrom);
+                int[] starts = readInts(buffer);
+                int[] ends = readInts(buffer);
+                int[][] geneSets = new int[SegmentMap.NUM_STRAND_CLASSES][];
+                for(int strand = 0; strand < SegmentMap.NUM_STRAND_CLASSES; strand++)
+                    geneSets[strand] = readInts(buffer);
+                segmentsInChrom.put(chrom, new SegmentMap.ChromSegments(starts, ends, geneSets));
+            }
+
+            // the gene sets
+            int numGeneSets = buffer.getInt();
+            ArrayList<int[]> genesOfSet = new ArrayList<>(numGeneSets);
+            for(int geneSet = 0; geneSet < numGeneSets; geneSet++)
+                genesOfSet.add(readInts(buffer));
+
+            annotation.restore(genes, lengths, genesInChrom, new SegmentMap(segmentsInChrom, genesOfSet));
+        } catch(java.nio.BufferUnderflowException e){
+            throw new IOException(file.getPath() + " is truncated");
+        }
+    }
+
+    private static String readString(ByteBuffer buffer){
+        char[] chars = new char[buffer.getInt()];
+        for(int i = 0; i < chars.length; i++)
+            chars[i] = (char) (buffer.get() & 0xff);
+        return new String(chars);
+    }
+
+    private static Transcript readExons(ByteBuffer buffer, String id, String chrom, String strand){
+        Transcript transcript = new Transcript(id, chrom, strand);
+        int numExons = buffer.getInt();
+        for(int i = 0; i < numExons; i++){
+            int start = buffer.getInt();
+            transcript.addExon(new Exon(chrom, strand, start, buffer.getInt()));
+        }
+        return transcript;
+    }
+
+    private static int[] readInts(ByteBuffer buffer){
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+        return values;
+    }
+}
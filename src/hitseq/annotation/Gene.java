@@ -53,10 +53,7 @@ public class Gene {
         this.junctions=new HashSet<>();
         this.transcriptTSS=new HashSet<>();
         this.type=type;
-        this.ambiguousRegions=new Transcript("Ambiguous", chrom, strand);
-        this.ambiguousRegionsIgnoreStrand=new Transcript("Ambiguous", chrom, strand);
-        this.exclusiveRegions=new Transcript("Exclusive", chrom, strand);
-        this.exclusiveRegionsIgnoreStrand=new Transcript("Exclusive", chrom, strand);
+        resetRegions();
     }
     
     /**
@@ -129,6 +126,32 @@ public class Gene {
             transcriptTSS.add(nonredundantTranscript.getEnd());
     }
     
+    /**
+     * FunName: setNonredundantTranscript.
+     * Description: Set the non-redundant transcript which is already merged, e.g. read from an annotation snapshot,
+     * instead of generating it from the transcripts.
+     * @param merged The transcript of the sorted, non-overlapping exons.
+     */
+    void setNonredundantTranscript(Transcript merged){
+        nonredundantTranscript=merged;
+        refreshStartAndEnd();
+        if(strand.equals("+"))
+            transcriptTSS.add(nonredundantTranscript.getStart());
+        else
+            transcriptTSS.add(nonredundantTranscript.getEnd());
+    }
+    
+    /**
+     * FunName: resetRegions.
+     * Description: Empty the ambiguous and exclusive regions, before they are estimated again.
+     */
+    final void resetRegions(){
+        ambiguousRegions=new Transcript("Ambiguous", chrom, strand);
+        ambiguousRegionsIgnoreStrand=new Transcript("Ambiguous", chrom, strand);
+        exclusiveRegions=new Transcript("Exclusive", chrom, strand);
+        exclusiveRegionsIgnoreStrand=new Transcript("Exclusive", chrom, strand);
+    }
+    
     /**
      * FunName: generateAllJunctions.
      * Description: According to the transcripts of the gene, identify all the annotated exon-exon junctions.
@@ -0,0 +1,88 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer of gene ordinals, e.g. the genes overlapping with a read.
+ * The buffer grows when needed and is cleared instead of reallocated, so that
+ * no object is created per read.
+ */
+public class GeneHits {
+    private int[] genes;
+    private int size;
+    
+    public GeneHits(){
+        genes=new int[8];
+        size=0;
+    }
+    
+    public void clear(){
+        size=0;
+    }
+    
+    public int size(){
+        return size;
+    }
+    
+    public boolean isEmpty(){
+        return size==0;
+    }
+    
+    public int get(int index){
+        return genes[index];
+    }
+    
+    public void add(int gene){
+        if(size==genes.length)
+            genes=Arrays.copyOf(genes, size*2);
+        genes[size++]=gene;
+    }
+    
+    public boolean contains(int gene){
+        for(int i=0; i<size; i++)
+            if(genes[i]==gene)
+                return true;
+        return false;
+    }
+    
+    /**
+     * FunName: union.
+     * Description: Add the given genes which are not yet in the buffer, e.g. the genes of the mate segment.
+     * @param others The gene ordinals to add.
+     */
+    public void union(int[] others){
+        for(int gene : others)
+            if(! contains(gene))
+                add(gene);
+    }
+    
+    /**
+     * FunName: sort.
+     * Description: Sort the genes in the buffer in increasing order.
+     */
+    public void sort(){
+        Arrays.sort(genes, 0, size);
+    }
+    
+    /**
+     * FunName: copyFrom.
+     * Description: Replace the genes in the buffer with the ones of another buffer.
+     */
+    public void copyFrom(GeneHits that){
+        if(genes.length < that.size)
+            genes=new int[that.genes.length];
+        System.arraycopy(that.genes, 0, genes, 0, that.size);
+        size=that.size;
+    }
+    
+    /**
+     * @return A copy of the genes in the buffer, to be kept after the buffer is reused.
+     */
+    public int[] toArray(){
+        return Arrays.copyOf(genes, size);
+    }
+}
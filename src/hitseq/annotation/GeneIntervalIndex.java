@@ -0,0 +1,162 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.util.HashMap;
+
+/**
+ * The spans of the genes of an annotation, i.e. from the start of the first
+ * exon to the end of the last one, indexed per chromosome for random-access
+ * overlap queries. The genes of each chromosome are kept in arrays sorted by
+ * start, which are laid out as an implicit augmented interval tree: the gene
+ * at index i is a node at level k, the number of trailing ones of i, and the
+ * largest end in its subtree is saved beside it. A query visits the subtrees
+ * reaching the query start only, and returns the overlapping genes in
+ * coordinate order. The index is not changed after it is built, so that it
+ * can be queried by any number of threads.
+ */
+public class GeneIntervalIndex {
+    /**
+     * The genes of one chromosome.
+     */
+    private static class ChromIntervals {
+        final int[] starts;
+        final int[] ends;
+        final int[] maxEnds; // the largest end in the subtree of each node
+        final int[] genes; // the gene ordinals
+        final String[] strands;
+        final int maxLevel; // the level of the root
+
+        ChromIntervals(int[] starts, int[] ends, int[] genes, String[] strands){
+            this.starts=starts;
+            this.ends=ends;
+            this.genes=genes;
+            this.strands=strands;
+            this.maxEnds=new int[starts.length];
+            this.maxLevel=buildTree();
+        }
+
+        private int buildTree(){
+            int n=starts.length;
+            if(n==0)
+                return -1;
+            // the leaves, i.e. the even indices
+            int lastIndex=0, lastMax=0;
+            for(int i=0; i<n; i+=2){
+                lastIndex=i;
+                lastMax=maxEnds[i]=ends[i];
+            }
+            int k=1;
+            for(; 1<<k <= n; k++){
+                int x=1<<(k-1);
+                for(int i=(x<<1)-1; i<n; i+=x<<2){
+                    int maxEnd=Math.max(ends[i], maxEnds[i-x]);
+                    // a right child beyond the array is replaced by the last node of the level below
+                    maxEnd=Math.max(maxEnd, i+x<n ? maxEnds[i+x] : lastMax);
+                    maxEnds[i]=maxEnd;
+                }
+                lastIndex=(lastIndex>>k & 1)!=0 ? lastIndex-x : lastIndex+x;
+                if(lastIndex<n && maxEnds[lastIndex]>lastMax)
+                    lastMax=maxEnds[lastIndex];
+            }
+            return k-1;
+        }
+
+        void query(int start, int end, int strand, GeneHits hits){
+            int n=starts.length;
+            if(n==0)
+                return;
+            // each frame of the stack is a node, its level and whether its left subtree is visited
+            int[] nodes=new int[64], levels=new int[64];
+            boolean[] visitedLeft=new boolean[64];
+            int top=0;
+            nodes[top]=(1<<maxLevel)-1;
+            levels[top]=maxLevel;
+            visitedLeft[top++]=false;
+            while(top>0){
+                top--;
+                int x=nodes[top], k=levels[top];
+                if(k<=3){ // a small subtree is scanned
+                    int from=x>>k<<k;
+                    int to=Math.min(n, from+(1<<(k+1))-1);
+                    for(int i=from; i<to && starts[i]<=end; i++)
+                        if(ends[i]>=start)
+                            add(i, strand, hits);
+                } else if(! visitedLeft[top]){
+                    int left=x-(1<<(k-1));
+                    visitedLeft[top++]=true; // visit the node again after its left subtree
+                    if(left>=n || maxEnds[left]>=start){
+                        nodes[top]=left;
+                        levels[top]=k-1;
+                        visitedLeft[top++]=false;
+                    }
+                } else if(x<n && starts[x]<=end){
+                    if(ends[x]>=start)
+                        add(x, strand, hits);
+                    nodes[top]=x+(1<<(k-1));
+                    levels[top]=k-1;
+                    visitedLeft[top++]=false;
+                }
+            }
+        }
+
+        private void add(int i, int strand, GeneHits hits){
+            if(SegmentMap.isStrandMatched(strand, strands[i]))
+                hits.add(genes[i]);
+        }
+    }
+
+    private final HashMap<String, ChromIntervals> intervalsInChrom;
+
+    /**
+     * Index the genes of the given annotation, whose gene lists are sorted by coordinates.
+     * @param annotation The annotation.
+     */
+    GeneIntervalIndex(Annotation annotation){
+        intervalsInChrom=new HashMap<>();
+        for(String chrom : annotation.getAvailableChromosomes()){
+            int numGenes=annotation.getNumGenes(chrom);
+            int[] starts=new int[numGenes];
+            int[] ends=new int[numGenes];
+            int[] genes=new int[numGenes];
+            String[] strands=new String[numGenes];
+            for(int pointer=0; pointer<numGenes; pointer++){
+                Gene gene=annotation.getGene(annotation.getGene(chrom, pointer));
+                starts[pointer]=gene.getStart();
+                ends[pointer]=gene.getEnd();
+                genes[pointer]=annotation.getGeneOrdinal(gene.getID());
+                strands[pointer]=gene.getStrand();
+            }
+            intervalsInChrom.put(chrom, new ChromIntervals(starts, ends, genes, strands));
+        }
+    }
+
+    /**
+     * FunName: query.
+     * Description: Get the genes whose spans are overlapping with the given region.
+     * @param chrom The chromosome.
+     * @param start The start of the region, inclusive.
+     * @param end The end of the region, inclusive.
+     * @param strand The strand of the genes to consider: the strand class of SegmentMap, e.g. SegmentMap.ANY_STRAND.
+     * @param hits The buffer to save the ordinals of the overlapping genes, in the order of the gene starts. It is cleared first.
+     */
+    public void query(String chrom, int start, int end, int strand, GeneHits hits){
+        hits.clear();
+        ChromIntervals intervals=intervalsInChrom.get(chrom);
+        if(intervals!=null && start<=end)
+            intervals.query(start, end, strand, hits);
+    }
+
+    /**
+     * FunName: query.
+     * Description: Get the genes whose spans are overlapping with the given region.
+     * @return The ordinals of the overlapping genes, in the order of the gene starts.
+     */
+    public int[] query(String chrom, int start, int end, int strand){
+        GeneHits hits=new GeneHits();
+        query(chrom, start, end, strand, hits);
+        return hits.toArray();
+    }
+}
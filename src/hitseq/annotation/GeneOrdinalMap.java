@@ -0,0 +1,111 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only Map view, keyed by gene ID, of an array indexed by the gene
+ * ordinals of an Annotation. No value is copied: the view reflects the current
+ * content of the array.
+ * @param <V> The type of the values.
+ */
+public abstract class GeneOrdinalMap<V> extends AbstractMap<String, V> {
+    private final Annotation annotation;
+    private final int numGenes;
+
+    GeneOrdinalMap(Annotation annotation, int numGenes){
+        this.annotation=annotation;
+        this.numGenes=numGenes;
+    }
+
+    /**
+     * @param ordinal The gene ordinal.
+     * @return The value of the gene with the given ordinal.
+     */
+    protected abstract V valueAt(int ordinal);
+
+    public static GeneOrdinalMap<Double> of(Annotation annotation, final double[] values){
+        return new GeneOrdinalMap<Double>(annotation, values.length){
+            @Override
+            protected Double valueAt(int ordinal){
+                return values[ordinal];
+            }
+        };
+    }
+
+    public static GeneOrdinalMap<double[]> of(Annotation annotation, final double[][] values){
+        return new GeneOrdinalMap<double[]>(annotation, values.length){
+            @Override
+            protected double[] valueAt(int ordinal){
+                return values[ordinal];
+            }
+        };
+    }
+
+    @Override
+    public int size(){
+        return numGenes;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return getOrdinal(key) != -1;
+    }
+
+    @Override
+    public V get(Object key){
+        int ordinal=getOrdinal(key);
+        return ordinal == -1 ? null : valueAt(ordinal);
+    }
+
+    private int getOrdinal(Object key){
+        if(! (key instanceof String))
+            return -1;
+        int ordinal=annotation.getGeneOrdinal((String) key);
+        return ordinal < numGenes ? ordinal : -1;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet(){
+        return new AbstractSet<Map.Entry<String, V>>(){
+            @Override
+            public int size(){
+                return numGenes;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator(){
+                return new Iterator<Map.Entry<String, V>>(){
+                    private int ordinal=0;
+
+                    @Override
+                    public boolean hasNext(){
+                        return ordinal < numGenes;
+                    }
+
+                    @Override
+                    public Map.Entry<String, V> next(){
+                        if(ordinal >= numGenes)
+                            throw new NoSuchElementException();
+                        Map.Entry<String, V> entry=new AbstractMap.SimpleImmutableEntry<>(annotation.getGeneID(ordinal), valueAt(ordinal));
+                        ordinal++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove(){
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The ambiguous and exclusive regions of the genes of one chromosome, found by
+ * one sweep over the boundaries of their non-redundant exons. Between two
+ * consecutive boundaries, the set of the covering genes does not change: the
+ * region is ambiguous for each of the genes if another gene covers it, and
+ * ambiguous considering the strand if another gene at the same strand covers
+ * it; otherwise it is exclusive. The regions of a gene are extended while they
+ * are adjacent, so that they come out sorted and merged, as by
+ * Transcript.mergeExons. The sweep only reads the genes, so that the
+ * chromosomes can be swept in parallel; the regions are added to the genes by
+ * the caller.
+ */
+class GeneRegionSweep implements Callable<GeneRegionSweep> {
+    static final int AMBIGUOUS = 0;
+    static final int AMBIGUOUS_IGNORING_STRAND = 1;
+    static final int EXCLUSIVE = 2;
+    static final int EXCLUSIVE_IGNORING_STRAND = 3;
+
+    private final Gene[] genes;
+    private final int[][][] regions; // indexed by kind, then by gene: the starts and ends of the regions in turn
+    private final int[][] numRegions; // indexed by kind, then by gene
+
+    /**
+     * @param genes The genes of the chromosome, in the sorted order of the chromosome. A gene listed twice is swept twice, i.e. it overlaps with itself.
+     */
+    GeneRegionSweep(List<Gene> genes){
+        this.genes=genes.toArray(new Gene[genes.size()]);
+        this.regions=new int[4][this.genes.length][];
+        this.numRegions=new int[4][this.genes.length];
+    }
+
+    @Override
+    public GeneRegionSweep call(){
+        int n=genes.length;
+        // the genes at the same strand share a strand class
+        int[] strandClass=new int[n];
+        HashMap<String, Integer> classOfStrand=new HashMap<>();
+        int numExons=0;
+        for(int i=0; i<n; i++){
+            Integer strand=classOfStrand.get(genes[i].getStrand());
+            if(strand==null){
+                strand=classOfStrand.size();
+                classOfStrand.put(genes[i].getStrand(), strand);
+            }
+            strandClass[i]=strand;
+            numExons+=genes[i].getNonredundantTranscript().getExonNumber();
+        }
+
+        // the boundaries: the position in the higher bits, then the gene and whether the exon opens at the position;
+        // at the same position, the exon of a gene closes before the next one of the same gene opens
+        long[] events=new long[2*numExons];
+        int numEvents=0;
+        for(int i=0; i<n; i++){
+            Transcript exons=genes[i].getNonredundantTranscript();
+            for(int j=0; j<exons.getExonNumber(); j++){
+                events[numEvents++]=(long) exons.getExon(j).getStart()<<32 | (long) i<<1 | 1;
+                events[numEvents++]=((long) exons.getExon(j).getEnd()+1)<<32 | (long) i<<1;
+            }
+        }
+        Arrays.sort(events);
+
+        int[] active=new int[n]; // the genes covering the current region
+        int[] indexInActive=new int[n];
+        int numActive=0;
+        int[] numActiveOfStrand=new int[classOfStrand.size()];
+        for(int e=0; e<numEvents; ){
+            long position=events[e]>>32;
+            for(; e<numEvents && events[e]>>32==position; e++){
+                int gene=(int) (events[e]&0xffffffffL)>>>1;
+                if((events[e]&1)==1){
+                    indexInActive[gene]=numActive;
+                    active[numActive++]=gene;
+                    numActiveOfStrand[strandClass[gene]]++;
+                } else{
+                    int last=active[--numActive];
+                    active[indexInActive[gene]]=last;
+                    indexInActive[last]=indexInActive[gene];
+                    numActiveOfStrand[strandClass[gene]]--;
+                }
+            }
+            if(numActive==0 || e==numEvents)
+                continue;
+            int start=(int) position;
+            int end=(int) ((events[e]>>32)-1);
+            for(int i=0; i<numActive; i++){
+                int gene=active[i];
+                add(numActive>1 ? AMBIGUOUS_IGNORING_STRAND : EXCLUSIVE_IGNORING_STRAND, gene, start, end);
+                add(numActiveOfStrand[strandClass[gene]]>1 ? AMBIGUOUS : EXCLUSIVE, gene, start, end);
+            }
+        }
+        return this;
+    }
+
+    private void add(int kind, int gene, int start, int end){
+        int[] geneRegions=regions[kind][gene];
+        int size=numRegions[kind][gene];
+        if(size>0 && geneRegions[size-1]==start-1){ // adjacent to the last region
+            geneRegions[size-1]=end;
+            return;
+        }
+        if(geneRegions==null)
+            geneRegions=regions[kind][gene]=new int[4];
+        else if(size==geneRegions.length)
+            geneRegions=regions[kind][gene]=Arrays.copyOf(geneRegions, size*2);
+        geneRegions[size]=start;
+        geneRegions[size+1]=end;
+        numRegions[kind][gene]=size+2;
+    }
+
+    int getNumGenes(){
+        return genes.length;
+    }
+
+    Gene getGene(int index){
+        return genes[index];
+    }
+
+    /**
+     * FunName: addRegions.
+     * Description: Add the regions of the given kind of a gene to the transcript, e.g. its ambiguous regions.
+     * @param kind AMBIGUOUS, AMBIGUOUS_IGNORING_STRAND, EXCLUSIVE or EXCLUSIVE_IGNORING_STRAND.
+     * @param index The index of the gene in the chromosome.
+     * @param transcript The transcript to add the regions to.
+     */
+    void addRegions(int kind, int index, Transcript transcript){
+        Gene gene=genes[index];
+        int[] geneRegions=regions[kind][index];
+        for(int i=0; i<numRegions[kind][index]; i+=2)
+            transcript.addExon(new Exon(gene.getChrom(), gene.getStrand(), geneRegions[i], geneRegions[i+1]));
+    }
+}
@@ -4,6 +4,8 @@
  */
 package hitseq.annotation;
 
+import hitseq.bam.BAMRecordView;
+import hitseq.bam.RecordViewReader;
 import htsjdk.samtools.*;
 import java.io.File;
 import java.io.IOException;
@@ -30,10 +32,11 @@ public class JunctionSet {
      * Generate a JunctionSet object with junctions annotated in the given file.
      * @param file Annotation file
      * @param fileType The file format, can be one of "bam", "bed", "juncs" and "gtf"
+     * @param inflateThreads The number of threads to inflate a BAM file, 0 to inflate it in the reading thread.
      */
-    public JunctionSet(File file, String fileType){
+    public JunctionSet(File file, String fileType, int inflateThreads){
         this();
-        addJunctionSet(file, fileType);
+        addJunctionSet(file, fileType, inflateThreads);
     }
     
     /**
@@ -96,15 +99,16 @@ public class JunctionSet {
      * The existed undirected junctions would be replaced if directed junctions with the same coordinate are available in the new set.
      * @param file File object of the input file
      * @param fileType File type of the input file, should be one of "bam" (will be seen as no-strand), "gtf", "bed" and "juncs"
+     * @param inflateThreads The number of threads to inflate a BAM file, 0 to inflate it in the reading thread.
      */
-    public final void addJunctionSet(File file, String fileType){
+    public final void addJunctionSet(File file, String fileType, int inflateThreads){
         if(! file.exists()){
             System.err.println("Cannot find file "+file.getAbsolutePath()+".");
             System.exit(1);
         }
         
         if(fileType.equalsIgnoreCase("bam")){ // junctions in BAM file, no strand information
-            addJunctionSet(file,0);
+            addJunctionSet(file,0,inflateThreads);
             
         } else if(fileType.equalsIgnoreCase("gtf")){ // junctions annotated as gene structure in GTF file
             Annotation annotation=new Annotation(file, "gtf");
@@ -205,11 +209,13 @@ public class JunctionSet {
      * If the BAM file has no strand information, all junctions will be seen as undirected.
      * @param file File object of the input file
      * @param strandSpecific Strand mode of the BAM file. 0 for no strand, 1 for the same strand, -1 for the opposite strand.
+     * @param inflateThreads The number of threads to inflate the BAM file, 0 to inflate it in the reading thread.
      */
-    public final void addJunctionSet(File file, int strandSpecific){
-        try (SamReader inputSam = SamReaderFactory.makeDefault().open(file)) {
+    public final void addJunctionSet(File file, int strandSpecific, int inflateThreads){
+        try (RecordViewReader reader = RecordViewReader.open(file, inflateThreads)) {
             int numJunctionReads=0, numMappedReads=0;
-            for(SAMRecord record : inputSam){
+            BAMRecordView record=new BAMRecordView();
+            while(reader.next(record)){
                 if(record.getReadUnmappedFlag()) // skip if this read is unmapped
                     continue;
                 if(record.getReadPairedFlag() && (! record.getProperPairFlag())) // skip if the read if paired but not in the proper paired mapping
@@ -219,33 +225,29 @@ public class JunctionSet {
                 if(numMappedReads%1000000==0)
                     System.err.println("reading reads "+numMappedReads+"...");
 
-                List<AlignmentBlock> hitsList=record.getAlignmentBlocks();
-                ArrayList<AlignmentBlock> hits=new ArrayList<>();
-                for(AlignmentBlock block : hitsList)
-                    hits.add(block);
-
                 String chrom=record.getReferenceName();
                 String strand;
-                if(strandSpecific==0 && record.getCharacterAttribute("XS")==null)
+                Character xs=record.getCharacterAttribute("XS");
+                if(strandSpecific==0 && xs==null)
                     strand="*";
-                else if(record.getAttribute("XS")!=null)
-                    strand=record.getCharacterAttribute("XS").toString();
+                else if(xs!=null)
+                    strand=xs.toString();
                 else if(strandSpecific==1)
                     strand=record.getReadNegativeStrandFlag() ? "-" : "+";
                 else
                     strand=record.getReadNegativeStrandFlag() ? "+" : "-";
 
-                Cigar cigar=record.getCigar();
-                if(cigar.numCigarElements()==1)
+                int numCigarElements=record.getNumCigarElements();
+                if(numCigarElements==1)
                     continue;
 
-                int lastBlockEnd=hits.get(0).getReferenceStart()-1;
+                int lastBlockEnd=record.getAlignmentStart()-1;
                 boolean containJunction=false;
-                for(int i=0; i<cigar.numCigarElements(); i++){
-                    CigarElement element=cigar.getCigarElement(i);
-                    if(element.getOperator().consumesReferenceBases()){
-                        int thisBlockEnd=lastBlockEnd+element.getLength();
-                        if(element.getOperator().equals(CigarOperator.N)){
+                for(int i=0; i<numCigarElements; i++){
+                    CigarOperator operator=record.getCigarOperator(i);
+                    if(operator.consumesReferenceBases()){
+                        int thisBlockEnd=lastBlockEnd+record.getCigarLength(i);
+                        if(operator.equals(CigarOperator.N)){
                             Junction junction=new Junction(chrom, strand, lastBlockEnd, thisBlockEnd+1);
                             if(!juncInChrom.containsKey(chrom))
                                 juncInChrom.put(chrom, new HashSet<Junction>());
@@ -0,0 +1,281 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The exonic regions of an annotation flattened into sorted, disjoint
+ * segments per chromosome. Each segment is labelled with the set of genes
+ * whose non-redundant exons cover it, separately for each strand class: the
+ * genes at any strand, at the plus strand, at the minus strand, and at any but
+ * the plus or the minus strand. The last two classes keep the genes with an
+ * unknown strand, e.g. "." or the "*" of BED files without the strand column,
+ * as the read counting compares the strands of the genes and the reads by
+ * equality: such genes are never at the same strand as a read, but always at
+ * a different one. The gene sets are interned, i.e. each distinct set of gene
+ * ordinals has one integer ID, and ID 0 is the empty set. The sets of the
+ * segments are not changed after the map is compiled, so that the reads are
+ * resolved by any number of threads without locking. The unions of several
+ * sets which are kept during the counting, e.g. in the mate buffer, are added
+ * to a concurrent table and get the IDs after the ones of the segments.
+ */
+public class SegmentMap {
+    public static final int ANY_STRAND = 0;
+    public static final int PLUS_STRAND = 1;
+    public static final int MINUS_STRAND = 2;
+    public static final int NOT_PLUS_STRAND = 3;
+    public static final int NOT_MINUS_STRAND = 4;
+    static final int NUM_STRAND_CLASSES = 5;
+    public static final int UNION_OF_SETS = -1; // the genes of several sets, which are not interned
+    
+    /**
+     * The segments of one chromosome.
+     */
+    static class ChromSegments {
+        final int[] starts;
+        final int[] ends;
+        final int[][] geneSets; // indexed by strand, then by segment
+        
+        ChromSegments(int[] starts, int[] ends, int[][] geneSets){
+            this.starts=starts;
+            this.ends=ends;
+            this.geneSets=geneSets;
+        }
+        
+        /**
+         * FunName: firstSegmentEndingFrom.
+         * Description: Binary search of the first segment ending at or after the given position.
+         * @param position The coordinate.
+         * @param from The first segment to consider.
+         * @return The index of the segment, or the number of segments if there is no such segment.
+         */
+        int firstSegmentEndingFrom(int position, int from){
+            int lo=from, hi=ends.length;
+            while(lo < hi){
+                int mid=(lo+hi)>>>1;
+                if(ends[mid] < position)
+                    lo=mid+1;
+                else
+                    hi=mid;
+            }
+            return lo;
+        }
+    }
+    
+    /**
+     * The key of a gene set in the interning table.
+     */
+    private static class GeneSetKey {
+        final int[] genes;
+        final int hash;
+        
+        GeneSetKey(int[] genes){
+            this.genes=genes;
+            this.hash=Arrays.hashCode(genes);
+        }
+        
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object o){
+            return o instanceof GeneSetKey && Arrays.equals(genes, ((GeneSetKey) o).genes);
+        }
+    }
+    
+    private final HashMap<String, ChromSegments> segmentsInChrom;
+    private final int[][] genesOfSet; // the sets of the segments, indexed by their IDs
+    private final HashMap<GeneSetKey, Integer> idOfGeneSet;
+    private final ConcurrentHashMap<GeneSetKey, Integer> idOfAddedSet;
+    private final ConcurrentHashMap<Integer, int[]> genesOfAddedSet;
+    private final AtomicInteger nextAddedSet;
+    
+    /**
+     * Compile the segment map of the given annotation.
+     * @param annotation The annotation.
+     */
+    SegmentMap(Annotation annotation){
+        segmentsInChrom=new HashMap<>();
+        ArrayList<int[]> sets=new ArrayList<>();
+        idOfGeneSet=new HashMap<>();
+        internSegmentSet(new int[0], sets);
+        
+        for(String chrom : annotation.getAvailableChromosomes()){
+            // the boundaries of the exons: the start of an exon opens the gene, the position after its end closes it
+            ArrayList<long[]> events=new ArrayList<>();
+            for(int pointer=0; pointer<annotation.getNumGenes(chrom); pointer++){
+                int ordinal=annotation.getGeneOrdinal(annotation.getGene(chrom, pointer));
+                Transcript exons=annotation.getGene(ordinal).getNonredundantTranscript();
+                for(int i=0; i<exons.getExonNumber(); i++){
+                    events.add(new long[]{exons.getExon(i).getStart(), ordinal});
+                    events.add(new long[]{(long) exons.getExon(i).getEnd()+1, -ordinal-1});
+                }
+            }
+            Collections.sort(events, new Comparator<long[]>(){
+                @Override
+                public int compare(long[] o1, long[] o2){
+                    return Long.compare(o1[0], o2[0]);
+                }
+            });
+            
+            ArrayList<int[]> segments=new ArrayList<>();
+            int[] numActive=new int[annotation.getNumGenes()];
+            TreeSet<Integer> active=new TreeSet<>();
+            for(int i=0; i<events.size(); ){
+                long position=events.get(i)[0];
+                for(; i<events.size() && events.get(i)[0]==position; i++){
+                    long gene=events.get(i)[1];
+                    if(gene >= 0){
+                        if(numActive[(int) gene]++ == 0)
+                            active.add((int) gene);
+                    } else if(--numActive[(int) (-gene-1)] == 0)
+                        active.remove((int) (-gene-1));
+                }
+                if(! active.isEmpty() && i<events.size()){
+                    int[] segment=new int[2+NUM_STRAND_CLASSES];
+                    segment[0]=(int) position;
+                    segment[1]=(int) (events.get(i)[0]-1);
+                    for(int strand=0; strand<NUM_STRAND_CLASSES; strand++){
+                        int[] genes=new int[active.size()];
+                        int numGenes=0;
+                        for(int gene : active)
+                            if(isStrandMatched(strand, annotation.getGene(gene).getStrand()))
+                                genes[numGenes++]=gene;
+                        segment[2+strand]=internSegmentSet(Arrays.copyOf(genes, numGenes), sets);
+                    }
+                    segments.add(segment);
+                }
+            }
+            
+            int[] starts=new int[segments.size()];
+            int[] ends=new int[segments.size()];
+            int[][] geneSets=new int[NUM_STRAND_CLASSES][segments.size()];
+            for(int i=0; i<segments.size(); i++){
+                starts[i]=segments.get(i)[0];
+                ends[i]=segments.get(i)[1];
+                for(int strand=0; strand<NUM_STRAND_CLASSES; strand++)
+                    geneSets[strand][i]=segments.get(i)[2+strand];
+            }
+            segmentsInChrom.put(chrom, new ChromSegments(starts, ends, geneSets));
+        }
+        genesOfSet=sets.toArray(new int[sets.size()][]);
+        idOfAddedSet=new ConcurrentHashMap<>();
+        genesOfAddedSet=new ConcurrentHashMap<>();
+        nextAddedSet=new AtomicInteger(genesOfSet.length);
+    }
+    
+    /**
+     * Restore the segment map saved in an annotation snapshot.
+     * @param segmentsInChrom The segments of each chromosome.
+     * @param genesOfSet The gene sets, indexed by their IDs.
+     */
+    SegmentMap(HashMap<String, ChromSegments> segmentsInChrom, ArrayList<int[]> genesOfSet){
+        this.segmentsInChrom=segmentsInChrom;
+        this.genesOfSet=genesOfSet.toArray(new int[genesOfSet.size()][]);
+        this.idOfGeneSet=new HashMap<>();
+        for(int id=0; id<genesOfSet.size(); id++)
+            idOfGeneSet.put(new GeneSetKey(genesOfSet.get(id)), id);
+        this.idOfAddedSet=new ConcurrentHashMap<>();
+        this.genesOfAddedSet=new ConcurrentHashMap<>();
+        this.nextAddedSet=new AtomicInteger(genesOfSet.size());
+    }
+    
+    /**
+     * FunName: internSegmentSet.
+     * Description: Get the ID of the gene set of a segment while the map is compiled, and add the set if it is new.
+     */
+    private int internSegmentSet(int[] sortedGenes, ArrayList<int[]> sets){
+        GeneSetKey key=new GeneSetKey(sortedGenes);
+        Integer id=idOfGeneSet.get(key);
+        if(id==null){
+            id=sets.size();
+            sets.add(sortedGenes);
+            idOfGeneSet.put(key, id);
+        }
+        return id;
+    }
+    
+    /**
+     * FunName: isStrandMatched.
+     * Description: Check whether a gene at the given strand is in the strand class.
+     * @param strand The strand class: ANY_STRAND, PLUS_STRAND, MINUS_STRAND, NOT_PLUS_STRAND or NOT_MINUS_STRAND.
+     * @param geneStrand The strand of the gene, e.g. "+", "-" or "*".
+     * @return true if the gene is in the class.
+     */
+    static boolean isStrandMatched(int strand, String geneStrand){
+        switch(strand){
+            case PLUS_STRAND:
+                return "+".equals(geneStrand);
+            case MINUS_STRAND:
+                return "-".equals(geneStrand);
+            case NOT_PLUS_STRAND:
+                return ! "+".equals(geneStrand);
+            case NOT_MINUS_STRAND:
+                return ! "-".equals(geneStrand);
+            default:
+                return true;
+        }
+    }
+    
+    ChromSegments getSegments(String chrom){
+        return segmentsInChrom.get(chrom);
+    }
+    
+    public int getNumSegments(String chrom){
+        ChromSegments segments=segmentsInChrom.get(chrom);
+        return segments==null ? 0 : segments.starts.length;
+    }
+    
+    /**
+     * FunName: intern.
+     * Description: Get the ID of the gene set, and add the set to the concurrent table if it is new,
+     * e.g. a union of the sets of several segments which has to be kept.
+     * @param sortedGenes The gene ordinals of the set, in increasing order. The array should not be changed afterwards.
+     * @return The ID of the gene set.
+     */
+    public int intern(int[] sortedGenes){
+        GeneSetKey key=new GeneSetKey(sortedGenes);
+        Integer id=idOfGeneSet.get(key);
+        if(id==null)
+            id=idOfAddedSet.get(key);
+        if(id==null){
+            // the genes are published before the ID, so that the set of any ID returned can be read;
+            // the ID is left unused if another thread adds the same set meanwhile
+            int newId=nextAddedSet.getAndIncrement();
+            genesOfAddedSet.put(newId, sortedGenes);
+            id=idOfAddedSet.putIfAbsent(key, newId);
+            if(id==null)
+                id=newId;
+            else
+                genesOfAddedSet.remove(newId);
+        }
+        return id;
+    }
+    
+    /**
+     * @param geneSet The ID of a gene set.
+     * @return The gene ordinals of the set, in increasing order. The array should not be changed.
+     */
+    public int[] getGenes(int geneSet){
+        return geneSet<genesOfSet.length ? genesOfSet[geneSet] : genesOfAddedSet.get(geneSet);
+    }
+    
+    /**
+     * @return The number of the gene sets of the segments, i.e. without the ones added during the counting.
+     */
+    public int getNumGeneSets(){
+        return genesOfSet.length;
+    }
+}
@@ -5,6 +5,8 @@
 package hitseq.annotation;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 /**
  *
@@ -65,13 +67,12 @@ public class Transcript {
     
     public void sortExons(){
         if(exons.size()>1){
-            for(int i=1; i<exons.size(); i++){
-                int j=0;
-                while(j<i && exons.get(i).compareTo(exons.get(j))>0)
-                    j++;
-                exons.add(j, exons.get(i));
-                exons.remove(i+1);
-            }
+            Collections.sort(exons, new Comparator<Exon>(){
+                @Override
+                public int compare(Exon exon1, Exon exon2){
+                    return exon1.compareTo(exon2);
+                }
+            });
         }
         
         this.start=exons.get(0).getStart();
@@ -82,30 +83,19 @@ public class Transcript {
         if(exons.size()>1){
             sortExons();
             
-            for(int i=0; i<exons.size()-1; i++){
-                int exonEndThis=exons.get(i).getEnd();
-                int exonStartNext=exons.get(i+1).getStart();
-                int exonEndNext=exons.get(i+1).getEnd();
-
-                if(exonStartNext <= exonEndThis){ // these two exons are overlapping
-                    int newExonStart=exons.get(i).getStart();
-                    int newExonEnd=exonEndThis > exonEndNext ? exonEndThis : exonEndNext;
-                    Exon newExon=new Exon(chrom, strand, newExonStart, newExonEnd);
-                    exons.add(i, newExon);
-                    exons.remove(i+1);
-                    exons.remove(i+1);
-                    i--;
-                }
-                else if(exonStartNext == exonEndThis+1){
-                    int newExonStart=exons.get(i).getStart();
-                    int newExonEnd=exons.get(i+1).getEnd();
-                    Exon newExon=new Exon(chrom, strand, newExonStart, newExonEnd);
-                    exons.add(i, newExon);
-                    exons.remove(i+1);
-                    exons.remove(i+1);
-                    i--;
+            // the overlapping or adjacent exons are replaced by one exon in a single pass
+            ArrayList<Exon> mergedExons=new ArrayList<>(exons.size());
+            Exon last=null;
+            for(Exon exon : exons){
+                if(last!=null && exon.getStart() <= last.getEnd()+1){
+                    last=new Exon(chrom, strand, last.getStart(), Math.max(last.getEnd(), exon.getEnd()));
+                    mergedExons.set(mergedExons.size()-1, last);
+                } else{
+                    mergedExons.add(exon);
+                    last=exon;
                 }
             }
+            exons=mergedExons;
             
             length=0;
             for(Exon exon : exons)
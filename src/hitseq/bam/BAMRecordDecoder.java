@@ -0,0 +1,202 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BufferedLineReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A decoder of BAM files for the counting-only workloads, which need the
+ * flag, position, CIGAR and a few tags of the records but not the rest.
+ * The BGZF blocks are inflated by ParallelBGZFInputStream, optionally by a
+ * pool of threads, and each record is read as raw bytes into a reusable
+ * BAMRecordView, instead of being decoded into a SAMRecord with its bases and
+ * qualities.
+ */
+public class BAMRecordDecoder extends RecordViewReader {
+    private static final byte[] BAM_MAGIC = new byte[]{'B', 'A', 'M', 1};
+
+    private final InputStream input;
+    private final ParallelBGZFInputStream seekableInput; // null if the input is a stream
+    private final SAMFileHeader header;
+    private final String[] referenceNames;
+    private final byte[] intBuffer = new byte[4];
+
+    /**
+     * Open a BAM file and read its header.
+     * @param file The BAM file.
+     * @param inflateThreads The number of threads to inflate the BGZF blocks ahead of the decoding. If 0, they are inflated in the decoding thread.
+     * @throws IOException If the file cannot be read or is not a BAM file.
+     */
+    public BAMRecordDecoder(File file, int inflateThreads) throws IOException{
+        this(new ParallelBGZFInputStream(file, inflateThreads), file.getPath());
+    }
+
+    public BAMRecordDecoder(File file) throws IOException{
+        this(file, 0);
+    }
+
+    /**
+     * Read a BAM stream, e.g. the standard input, which cannot seek.
+     * @param stream The uncompressed stream of the BAM file.
+     * @param name The name of the input, used in the header and the messages.
+     * @throws IOException If the stream cannot be read or is not a BAM stream.
+     */
+    public BAMRecordDecoder(InputStream stream, String name) throws IOException{
+        input = stream;
+        seekableInput = stream instanceof ParallelBGZFInputStream ? (ParallelBGZFInputStream) stream : null;
+        try{
+            byte[] magic = new byte[4];
+            readFully(magic, 4);
+            for(int i = 0; i < 4; i++)
+                if(magic[i] != BAM_MAGIC[i])
+                    throw new IOException(name + " is not a BAM file");
+
+            byte[] text = new byte[readInt()];
+            readFully(text, text.length);
+            int textLength = 0;
+            while(textLength < text.length && text[textLength] != 0)
+                textLength++;
+            header = new SAMTextHeaderCodec().decode(new BufferedLineReader(new ByteArrayInputStream(text, 0, textLength)), name);
+
+            int numReferences = readInt();
+            referenceNames = new String[numReferences];
+            ArrayList<SAMSequenceRecord> sequences = new ArrayList<>();
+            for(int i = 0; i < numReferences; i++){
+                byte[] referenceName = new byte[readInt()];
+                readFully(referenceName, referenceName.length);
+                referenceNames[i] = new String(referenceName, 0, referenceName.length - 1, StandardCharsets.US_ASCII);
+                sequences.add(new SAMSequenceRecord(referenceNames[i], readInt()));
+            }
+            if(header.getSequenceDictionary().isEmpty())
+                header.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+        } catch(IOException | RuntimeException e){
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * FunName: isBAMFile.
+     * Description: Check whether the file is a BAM file, i.e. it can be decoded by this class.
+     * @param file The input file.
+     * @return true if the file is a BAM file, false for SAM, CRAM and other files.
+     */
+    public static boolean isBAMFile(File file){
+        try(InputStream stream = new BufferedInputStream(new FileInputStream(file))){
+            if(! BlockCompressedInputStream.isValidFile(stream))
+                return false;
+        } catch(Exception e){
+            return false;
+        }
+        try(BlockCompressedInputStream input = new BlockCompressedInputStream(file)){
+            byte[] magic = new byte[4];
+            int numRead = 0;
+            while(numRead < 4){
+                int n = input.read(magic, numRead, 4 - numRead);
+                if(n <= 0)
+                    return false;
+                numRead += n;
+            }
+            for(int i = 0; i < 4; i++)
+                if(magic[i] != BAM_MAGIC[i])
+                    return false;
+            return true;
+        } catch(Exception e){
+            return false;
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader(){
+        return header;
+    }
+
+    public String[] getReferenceNames(){
+        return referenceNames;
+    }
+
+    /**
+     * FunName: next.
+     * Description: Read the next record into the view.
+     * @param view The view to reuse.
+     * @return false if there is no more record.
+     * @throws IOException If the file is truncated or cannot be read.
+     */
+    @Override
+    public boolean next(BAMRecordView view) throws IOException{
+        int numRead = 0;
+        while(numRead < 4){
+            int n = input.read(intBuffer, numRead, 4 - numRead);
+            if(n <= 0){
+                if(numRead == 0)
+                    return false;
+                throw new EOFException("truncated BAM record");
+            }
+            numRead += n;
+        }
+        int blockSize = toInt(intBuffer, 0);
+        byte[] buffer = view.getBuffer(blockSize);
+        readFully(buffer, blockSize);
+        view.set(blockSize, referenceNames);
+        return true;
+    }
+
+    /**
+     * @return The virtual file pointer of the next record.
+     */
+    public long getFilePointer(){
+        if(seekableInput == null)
+            throw new UnsupportedOperationException("cannot get the file pointer of a stream");
+        return seekableInput.getFilePointer();
+    }
+
+    /**
+     * FunName: seek.
+     * Description: Move to the given virtual file pointer, e.g. the start of a chunk in the BAM index.
+     */
+    public void seek(long virtualFilePointer) throws IOException{
+        if(seekableInput == null)
+            throw new UnsupportedOperationException("cannot seek in a stream");
+        seekableInput.seek(virtualFilePointer);
+    }
+
+    @Override
+    public void close() throws IOException{
+        input.close();
+    }
+
+    private int readInt() throws IOException{
+        readFully(intBuffer, 4);
+        return toInt(intBuffer, 0);
+    }
+
+    private static int toInt(byte[] bytes, int offset){
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException{
+        int numRead = 0;
+        while(numRead < length){
+            int n = input.read(buffer, numRead, length - numRead);
+            if(n <= 0)
+                throw new EOFException("truncated BAM file");
+            numRead += n;
+        }
+    }
+}
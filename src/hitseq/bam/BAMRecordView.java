@@ -0,0 +1,409 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.CigarOperator;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A flyweight over one record of an uncompressed BAM stream. The record is
+ * kept as the raw bytes given by BAMRecordDecoder, and the buffer is reused
+ * for the next record. The fixed fields are read directly from the bytes;
+ * the read name, CIGAR string, bases and tags are only parsed when they are
+ * asked for, and nothing is allocated for the fields that are not used.
+ * A record to be kept after the decoder moves on must be copied.
+ */
+public class BAMRecordView {
+    // offsets of the fixed fields in the record, without the block_size
+    private static final int REF_ID = 0;
+    private static final int POS = 4;
+    private static final int L_READ_NAME = 8;
+    private static final int N_CIGAR_OP = 12;
+    private static final int FLAG = 14;
+    private static final int L_SEQ = 16;
+    private static final int NEXT_REF_ID = 20;
+    private static final int NEXT_POS = 24;
+    private static final int READ_NAME = 32;
+    private static final String BASES = "=ACMGRSVTWYHKDBN";
+
+    private String[] referenceNames;
+    private byte[] data;
+    private int length;
+    private int serial = 0; // changed with every record, to tell the records apart in the caches
+
+    // the lazily parsed fields, reset for every record
+    private String readName;
+    private String cigarString;
+    private int tagsOffset;
+    private final ReadNameSequence readNameSequence = new ReadNameSequence();
+
+    public BAMRecordView(){
+        this.data = new byte[512];
+        this.length = 0;
+    }
+
+    /**
+     * The read name as a CharSequence over the raw bytes, e.g. for hashing without creating a String.
+     */
+    private class ReadNameSequence implements CharSequence {
+        @Override
+        public int length(){
+            return getReadNameLength();
+        }
+
+        @Override
+        public char charAt(int index){
+            return (char) (data[READ_NAME + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end){
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString(){
+            return getReadName();
+        }
+    }
+
+    /**
+     * FunName: getBuffer.
+     * Description: Get the buffer to be filled with a record of the given length by the decoder.
+     */
+    byte[] getBuffer(int recordLength){
+        if(data.length < recordLength)
+            data = new byte[Math.max(recordLength, data.length * 2)];
+        return data;
+    }
+
+    /**
+     * FunName: set.
+     * Description: Point the view at the record in the buffer.
+     */
+    void set(int recordLength, String[] referenceNames){
+        this.length = recordLength;
+        this.referenceNames = referenceNames;
+        this.serial++;
+        this.readName = null;
+        this.cigarString = null;
+        this.tagsOffset = -1;
+    }
+
+    /**
+     * FunName: copy.
+     * Description: Get a copy of the record which is not changed when the decoder moves on.
+     */
+    public BAMRecordView copy(){
+        BAMRecordView copy = new BAMRecordView();
+        copy.data = Arrays.copyOf(data, length);
+        copy.set(length, referenceNames);
+        return copy;
+    }
+
+    /**
+     * @return A number which changes whenever another record is read into the view.
+     */
+    public int getSerial(){
+        return serial;
+    }
+
+    private int readInt(int offset){
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private int readUnsignedShort(int offset){
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    public int getFlags(){
+        return readUnsignedShort(FLAG);
+    }
+
+    public boolean getReadPairedFlag(){
+        return (getFlags() & 0x1) != 0;
+    }
+
+    public boolean getProperPairFlag(){
+        return (getFlags() & 0x2) != 0;
+    }
+
+    public boolean getReadUnmappedFlag(){
+        return (getFlags() & 0x4) != 0;
+    }
+
+    public boolean getReadNegativeStrandFlag(){
+        return (getFlags() & 0x10) != 0;
+    }
+
+    public boolean getFirstOfPairFlag(){
+        return (getFlags() & 0x40) != 0;
+    }
+
+    public boolean getSecondOfPairFlag(){
+        return (getFlags() & 0x80) != 0;
+    }
+
+    public boolean getNotPrimaryAlignmentFlag(){
+        return (getFlags() & 0x100) != 0;
+    }
+
+    public boolean getReadFailsVendorQualityCheckFlag(){
+        return (getFlags() & 0x200) != 0;
+    }
+
+    public boolean getDuplicateReadFlag(){
+        return (getFlags() & 0x400) != 0;
+    }
+
+    public int getReferenceIndex(){
+        return readInt(REF_ID);
+    }
+
+    /**
+     * @return The name of the reference, or "*" if the record has no reference.
+     */
+    public String getReferenceName(){
+        int index = getReferenceIndex();
+        return index < 0 || index >= referenceNames.length ? "*" : referenceNames[index];
+    }
+
+    /**
+     * @return The 1-based leftmost coordinate of the alignment, 0 if the record has no position.
+     */
+    public int getAlignmentStart(){
+        return readInt(POS) + 1;
+    }
+
+    public int getMateReferenceIndex(){
+        return readInt(NEXT_REF_ID);
+    }
+
+    public String getMateReferenceName(){
+        int index = getMateReferenceIndex();
+        return index < 0 || index >= referenceNames.length ? "*" : referenceNames[index];
+    }
+
+    public int getMateAlignmentStart(){
+        return readInt(NEXT_POS) + 1;
+    }
+
+    public int getReadLength(){
+        return readInt(L_SEQ);
+    }
+
+    /**
+     * @return The length of the read name, without the terminating NUL.
+     */
+    public int getReadNameLength(){
+        return (data[L_READ_NAME] & 0xff) - 1;
+    }
+
+    /**
+     * @return The read name as a CharSequence over the buffer, which changes with the record.
+     */
+    public CharSequence getReadNameSequence(){
+        return readNameSequence;
+    }
+
+    public String getReadName(){
+        if(readName == null)
+            readName = new String(data, READ_NAME, getReadNameLength(), StandardCharsets.US_ASCII);
+        return readName;
+    }
+
+    private int getCigarOffset(){
+        return READ_NAME + (data[L_READ_NAME] & 0xff);
+    }
+
+    public int getNumCigarElements(){
+        return readUnsignedShort(N_CIGAR_OP);
+    }
+
+    public CigarOperator getCigarOperator(int index){
+        return CigarOperator.binaryToEnum(readInt(getCigarOffset() + 4 * index) & 0xf);
+    }
+
+    public int getCigarLength(int index){
+        return readInt(getCigarOffset() + 4 * index) >>> 4;
+    }
+
+    public String getCigarString(){
+        if(cigarString == null){
+            int numElements = getNumCigarElements();
+            if(numElements == 0)
+                cigarString = "*";
+            else{
+                StringBuilder builder = new StringBuilder();
+                for(int i = 0; i < numElements; i++)
+                    builder.append(getCigarLength(i)).append((char) CigarOperator.enumToCharacter(getCigarOperator(i)));
+                cigarString = builder.toString();
+            }
+        }
+        return cigarString;
+    }
+
+    /**
+     * @return The 1-based rightmost coordinate of the alignment.
+     */
+    public int getAlignmentEnd(){
+        int end = getAlignmentStart() - 1;
+        for(int i = 0; i < getNumCigarElements(); i++)
+            if(getCigarOperator(i).consumesReferenceBases())
+                end += getCigarLength(i);
+        return end;
+    }
+
+    /**
+     * FunName: getReadPositionAtReferencePosition.
+     * Description: The same as the method of SAMRecord.
+     * @param position The 1-based reference coordinate.
+     * @return The 1-based position in the read aligned to the coordinate, or 0 if the coordinate is not covered by an aligned block of the read.
+     */
+    public int getReadPositionAtReferencePosition(int position){
+        int readPos = 0, refPos = getAlignmentStart();
+        for(int i = 0; i < getNumCigarElements(); i++){
+            CigarOperator operator = getCigarOperator(i);
+            int elementLength = getCigarLength(i);
+            if(operator == CigarOperator.M || operator == CigarOperator.EQ || operator == CigarOperator.X){
+                if(position >= refPos && position < refPos + elementLength)
+                    return readPos + position - refPos + 1;
+                readPos += elementLength;
+                refPos += elementLength;
+            } else if(operator.consumesReadBases())
+                readPos += elementLength;
+            else if(operator.consumesReferenceBases())
+                refPos += elementLength;
+        }
+        return 0;
+    }
+
+    private int getSequenceOffset(){
+        return getCigarOffset() + 4 * getNumCigarElements();
+    }
+
+    /**
+     * @param offset The 0-based position in the read.
+     * @return The base at the position, in upper case.
+     */
+    public char getReadBase(int offset){
+        int packed = data[getSequenceOffset() + offset / 2] & 0xff;
+        return BASES.charAt(offset % 2 == 0 ? packed >> 4 : packed & 0xf);
+    }
+
+    public String getReadString(){
+        int readLength = getReadLength();
+        if(readLength == 0)
+            return "*";
+        char[] bases = new char[readLength];
+        for(int i = 0; i < readLength; i++)
+            bases[i] = getReadBase(i);
+        return new String(bases);
+    }
+
+    /**
+     * FunName: findTag.
+     * Description: Scan the tags for the given one.
+     * @return The offset of the type of the tag value, or -1 if the tag does not exist.
+     */
+    private int findTag(String tag){
+        if(tagsOffset == -1)
+            tagsOffset = getSequenceOffset() + (getReadLength() + 1) / 2 + getReadLength();
+        char first = tag.charAt(0), second = tag.charAt(1);
+        int offset = tagsOffset;
+        while(offset + 3 <= length){
+            boolean found = data[offset] == first && data[offset + 1] == second;
+            int typeOffset = offset + 2;
+            if(found)
+                return typeOffset;
+            offset = skipValue(typeOffset);
+        }
+        return -1;
+    }
+
+    private static int getTypeSize(byte type){
+        switch(type){
+            case 'A': case 'c': case 'C':
+                return 1;
+            case 's': case 'S':
+                return 2;
+            case 'i': case 'I': case 'f':
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    private int skipValue(int typeOffset){
+        byte type = data[typeOffset];
+        int offset = typeOffset + 1;
+        int size = getTypeSize(type);
+        if(size > 0)
+            return offset + size;
+        if(type == 'Z' || type == 'H'){
+            while(offset < length && data[offset] != 0)
+                offset++;
+            return offset + 1;
+        }
+        if(type == 'B'){
+            int elementSize = getTypeSize(data[offset]);
+            return offset + 5 + elementSize * readInt(offset + 1);
+        }
+        return length; // unknown type, stop scanning
+    }
+
+    /**
+     * @return The value of an integer tag, e.g. NH, or null if the tag does not exist or is not an integer.
+     */
+    public Integer getIntegerAttribute(String tag){
+        int typeOffset = findTag(tag);
+        if(typeOffset == -1)
+            return null;
+        int offset = typeOffset + 1;
+        switch(data[typeOffset]){
+            case 'c':
+                return (int) data[offset];
+            case 'C':
+                return data[offset] & 0xff;
+            case 's':
+                return (int) (short) readUnsignedShort(offset);
+            case 'S':
+                return readUnsignedShort(offset);
+            case 'i':
+            case 'I':
+                return readInt(offset);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The value of a string tag, e.g. CB or UB, or null if the tag does not exist or is not a string.
+     */
+    public String getStringAttribute(String tag){
+        int typeOffset = findTag(tag);
+        if(typeOffset == -1 || data[typeOffset] != 'Z')
+            return null;
+        int start = typeOffset + 1, end = start;
+        while(end < length && data[end] != 0)
+            end++;
+        return new String(data, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The value of a character tag, e.g. XS, or null if the tag does not exist or is not a character.
+     */
+    public Character getCharacterAttribute(String tag){
+        int typeOffset = findTag(tag);
+        if(typeOffset == -1 || data[typeOffset] != 'A')
+            return null;
+        return (char) data[typeOffset + 1];
+    }
+
+    public boolean hasAttribute(String tag){
+        return findTag(tag) != -1;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.AbstractAsyncWriter;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import java.io.File;
+
+/**
+ * The factory of the SAM/BAM writers. BAM files are written by
+ * ParallelBAMWriter with the given compression level and number of threads,
+ * behind an asynchronous queue so that the encoding and the sorting of the
+ * records are also moved out of the thread producing them. Other files are
+ * written by htsjdk.
+ */
+public class BAMWriterFactory {
+    public static final int DEFAULT_COMPRESSION_LEVEL = 5;
+    public static final int TEMP_COMPRESSION_LEVEL = 1;
+    public static final int DEFAULT_NUM_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+
+    private final int compressionLevel;
+    private final int numThreads;
+
+    /**
+     * @param compressionLevel The deflate level of BAM files, from 0 to 9.
+     * @param numThreads The number of threads to compress BAM files. If 0, the blocks are compressed in the writing thread, without the asynchronous queue.
+     */
+    public BAMWriterFactory(int compressionLevel, int numThreads){
+        this.compressionLevel = compressionLevel;
+        this.numThreads = numThreads;
+    }
+
+    public BAMWriterFactory(){
+        this(DEFAULT_COMPRESSION_LEVEL, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * FunName: forTemporaryFiles.
+     * Description: Get the factory for the intermediate files, which are compressed fast unless a lower level is given.
+     */
+    public BAMWriterFactory forTemporaryFiles(){
+        return new BAMWriterFactory(Math.min(compressionLevel, TEMP_COMPRESSION_LEVEL), numThreads);
+    }
+
+    /**
+     * FunName: makeBAMWriter.
+     * @param header The header of the output.
+     * @param presorted If true, the records are given in the sort order of the header; otherwise they are sorted by the writer.
+     * @param file The output BAM file.
+     * @return The writer.
+     */
+    public SAMFileWriter makeBAMWriter(SAMFileHeader header, boolean presorted, File file){
+        ParallelBAMWriter writer = new ParallelBAMWriter(file, compressionLevel, numThreads);
+        writer.setSortOrder(header.getSortOrder(), presorted);
+        writer.setHeader(header);
+        if(numThreads > 0)
+            return new AsyncWriter(writer);
+        return writer;
+    }
+
+    /**
+     * FunName: makeSAMOrBAMWriter.
+     * Description: The same as the method of SAMFileWriterFactory, i.e. a BAM writer if the file name ends with ".bam", or a SAM writer otherwise.
+     */
+    public SAMFileWriter makeSAMOrBAMWriter(SAMFileHeader header, boolean presorted, File file){
+        if(file.getName().endsWith(".bam"))
+            return makeBAMWriter(header, presorted, file);
+        return new SAMFileWriterFactory().makeSAMOrBAMWriter(header, presorted, file);
+    }
+
+    /**
+     * The writer which hands the records to another writer in a background thread.
+     */
+    private static class AsyncWriter extends AbstractAsyncWriter<SAMRecord> implements SAMFileWriter {
+        private final SAMFileWriter writer;
+
+        AsyncWriter(SAMFileWriter writer){
+            super(DEFAULT_QUEUE_SIZE);
+            this.writer = writer;
+        }
+
+        @Override
+        protected String getThreadNamePrefix(){
+            return "SAMFileWriterThread-";
+        }
+
+        @Override
+        protected void synchronouslyWrite(SAMRecord record){
+            writer.addAlignment(record);
+        }
+
+        @Override
+        protected void synchronouslyClose(){
+            writer.close();
+        }
+
+        @Override
+        public void addAlignment(SAMRecord record){
+            write(record);
+        }
+
+        @Override
+        public SAMFileHeader getFileHeader(){
+            return writer.getFileHeader();
+        }
+
+        @Override
+        public void setProgressLogger(ProgressLoggerInterface progress){
+            writer.setProgressLogger(progress);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.RuntimeIOException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A BAM writer whose BGZF blocks are compressed by ParallelBGZFOutputStream.
+ * The sorting and the sort order check are done by htsjdk's SAMFileWriterImpl,
+ * in the same way as its own BAM writer.
+ */
+public class ParallelBAMWriter extends SAMFileWriterImpl {
+    private final File file;
+    private final ParallelBGZFOutputStream output;
+    private BAMRecordCodec codec;
+
+    /**
+     * Create the writer. The header is given by setHeader, e.g. by BAMWriterFactory.
+     * @param file The output BAM file.
+     * @param compressionLevel The deflate level, from 0 to 9.
+     * @param numThreads The number of threads to compress the blocks.
+     */
+    public ParallelBAMWriter(File file, int compressionLevel, int numThreads){
+        this.file = file;
+        try{
+            this.output = new ParallelBGZFOutputStream(file, compressionLevel, numThreads);
+        } catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    /**
+     * FunName: writeHeader.
+     * Description: Write the binary header of BAM, and start the records in a new BGZF block.
+     */
+    @Override
+    protected void writeHeader(String textHeader){
+        BinaryCodec binaryCodec = new BinaryCodec(output);
+        binaryCodec.writeBytes(new byte[]{'B', 'A', 'M', 1});
+        binaryCodec.writeString(textHeader, true, false);
+        binaryCodec.writeInt(getFileHeader().getSequenceDictionary().size());
+        for(SAMSequenceRecord sequence : getFileHeader().getSequenceDictionary().getSequences()){
+            binaryCodec.writeString(sequence.getSequenceName(), true, true);
+            binaryCodec.writeInt(sequence.getSequenceLength());
+        }
+        try{
+            output.flush();
+        } catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+        codec = new BAMRecordCodec(getFileHeader());
+        codec.setOutputStream(output, getFilename());
+    }
+
+    @Override
+    protected void writeAlignment(SAMRecord alignment){
+        codec.encode(alignment);
+    }
+
+    @Override
+    protected void finish(){
+        try{
+            output.close();
+        } catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    @Override
+    protected String getFilename(){
+        return file.getPath();
+    }
+}
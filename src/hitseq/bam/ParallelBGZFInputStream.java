@@ -0,0 +1,326 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The uncompressed stream of a BGZF file, e.g. a BAM file. The file is memory
+ * mapped and the boundaries of the BGZF blocks are found from their headers
+ * in the consumer thread, which is cheap; the blocks are then inflated ahead
+ * of the consumer by a pool of worker threads, and handed back in the
+ * original order. With no worker thread the blocks are inflated in the
+ * consumer thread, block by block.
+ *
+ * The virtual file pointers are the same as the ones of htsjdk, i.e. the
+ * address of the block in the compressed file shifted by 16 bits plus the
+ * offset in the uncompressed block, so that the chunks of a BAM index can be
+ * used to seek.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+    private static final int HEADER_LENGTH = 18;
+    private static final int FOOTER_LENGTH = 8;
+    private static final int MAX_BLOCK_SIZE = 65536;
+    private static final long MAP_WINDOW = 1L << 28;
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>(){
+        @Override
+        protected Inflater initialValue(){
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * An inflated block.
+     */
+    private static class Block {
+        final long address;
+        final int compressedSize;
+        final byte[] data;
+        final int length;
+
+        Block(long address, int compressedSize, byte[] data, int length){
+            this.address = address;
+            this.compressedSize = compressedSize;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final String name;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final ExecutorService pool;
+    private final int readAhead;
+
+    // the mapped region of the file, which contains the next block header
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private long nextAddress; // the address of the next block to be scheduled
+    private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+    private Block current;
+    private int offsetInBlock;
+
+    /**
+     * Open a BGZF file.
+     * @param file The file.
+     * @param numThreads The number of threads to inflate the blocks. If 0, the blocks are inflated in the thread reading the stream.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ParallelBGZFInputStream(File file, int numThreads) throws IOException{
+        this.name = file.getName();
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.fileLength = channel.size();
+        if(numThreads > 0){
+            final String threadName = "inflater of " + name;
+            pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+                @Override
+                public Thread newThread(Runnable runnable){
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else
+            pool = null;
+        this.readAhead = Math.max(1, numThreads * 4);
+        this.nextAddress = 0;
+        this.windowStart = -1;
+    }
+
+    /**
+     * FunName: mapBlock.
+     * Description: Get the buffer of the compressed block at the given address, mapping a new region of the file if needed.
+     * @return A buffer whose position is the start of the block and whose limit is the end of it.
+     */
+    private ByteBuffer mapBlock(long address) throws IOException{
+        if(window == null || address < windowStart || address + HEADER_LENGTH > windowStart + window.capacity())
+            mapWindow(address);
+        int offset = (int) (address - windowStart);
+        if(window.get(offset) != 31 || (window.get(offset + 1) & 0xff) != 139 || window.get(offset + 2) != 8 || (window.get(offset + 3) & 4) == 0)
+            throw new IOException(name + " is not a BGZF file: invalid block header at " + address);
+        int blockSize = (window.order(ByteOrder.LITTLE_ENDIAN).getShort(offset + 16) & 0xffff) + 1;
+        if(address + blockSize > fileLength)
+            throw new EOFException("truncated BGZF block in " + name);
+        if(address + blockSize > windowStart + window.capacity()){
+            mapWindow(address);
+            offset = 0;
+        }
+        ByteBuffer block = window.duplicate();
+        block.order(ByteOrder.LITTLE_ENDIAN);
+        block.position(offset);
+        block.limit(offset + blockSize);
+        return block;
+    }
+
+    private void mapWindow(long address) throws IOException{
+        if(address + HEADER_LENGTH > fileLength)
+            throw new EOFException("truncated BGZF block in " + name);
+        windowStart = address;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, address, Math.min(MAP_WINDOW, fileLength - address));
+    }
+
+    /**
+     * FunName: inflate.
+     * Description: Inflate one block, given as the buffer from mapBlock.
+     */
+    private static Block inflate(long address, ByteBuffer block) throws IOException{
+        int start = block.position();
+        int compressedSize = block.limit() - start;
+        int uncompressedSize = block.getInt(block.limit() - 4);
+        if(uncompressedSize < 0 || uncompressedSize > MAX_BLOCK_SIZE)
+            throw new IOException("invalid BGZF block size at " + address);
+        byte[] compressed = new byte[compressedSize - HEADER_LENGTH - FOOTER_LENGTH];
+        block.position(start + HEADER_LENGTH);
+        block.get(compressed);
+
+        byte[] data = new byte[uncompressedSize];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        try{
+            int length = 0;
+            while(length < uncompressedSize){
+                int n = inflater.inflate(data, length, uncompressedSize - length);
+                if(n == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                length += n;
+            }
+            if(length != uncompressedSize)
+                throw new IOException("corrupt BGZF block at " + address);
+        } catch(DataFormatException e){
+            throw new IOException("corrupt BGZF block at " + address + ": " + e.getMessage());
+        }
+        return new Block(address, compressedSize, data, uncompressedSize);
+    }
+
+    /**
+     * FunName: schedule.
+     * Description: Find the next blocks and submit them to the pool, up to the read-ahead limit.
+     */
+    private void schedule() throws IOException{
+        while(pending.size() < readAhead && nextAddress < fileLength){
+            final long address = nextAddress;
+            final ByteBuffer block = mapBlock(address);
+            nextAddress += block.remaining();
+            if(pool == null){
+                Block inflated = inflate(address, block);
+                pending.add(new ImmediateBlock(inflated));
+            } else
+                pending.add(pool.submit(new Callable<Block>(){
+                    @Override
+                    public Block call() throws IOException{
+                        return inflate(address, block);
+                    }
+                }));
+        }
+    }
+
+    /**
+     * The block inflated in the consumer thread.
+     */
+    private static class ImmediateBlock implements Future<Block> {
+        private final Block block;
+
+        ImmediateBlock(Block block){
+            this.block = block;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning){
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled(){
+            return false;
+        }
+
+        @Override
+        public boolean isDone(){
+            return true;
+        }
+
+        @Override
+        public Block get(){
+            return block;
+        }
+
+        @Override
+        public Block get(long timeout, java.util.concurrent.TimeUnit unit){
+            return block;
+        }
+    }
+
+    /**
+     * FunName: nextBlock.
+     * Description: Move to the next non-empty block.
+     * @return false at the end of the file.
+     */
+    private boolean nextBlock() throws IOException{
+        while(current == null || offsetInBlock >= current.length){
+            if(pending.isEmpty())
+                schedule();
+            if(pending.isEmpty())
+                return false;
+            Future<Block> next = pending.poll();
+            try{
+                current = next.get();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted when reading " + name);
+            } catch(ExecutionException e){
+                if(e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            offsetInBlock = 0;
+            schedule();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException{
+        if(! nextBlock())
+            return -1;
+        return current.data[offsetInBlock++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException{
+        if(length == 0)
+            return 0;
+        int numRead = 0;
+        while(numRead < length && nextBlock()){
+            int n = Math.min(length - numRead, current.length - offsetInBlock);
+            System.arraycopy(current.data, offsetInBlock, buffer, offset + numRead, n);
+            offsetInBlock += n;
+            numRead += n;
+        }
+        return numRead == 0 ? -1 : numRead;
+    }
+
+    /**
+     * @return The virtual file pointer of the next byte.
+     */
+    public long getFilePointer(){
+        if(current == null)
+            return nextAddress << 16;
+        if(offsetInBlock < current.length)
+            return current.address << 16 | offsetInBlock;
+        return (current.address + current.compressedSize) << 16;
+    }
+
+    /**
+     * FunName: seek.
+     * Description: Move to the given virtual file pointer. The blocks read ahead are dropped.
+     */
+    public void seek(long virtualFilePointer) throws IOException{
+        for(Future<Block> block : pending)
+            block.cancel(false);
+        pending.clear();
+        current = null;
+        nextAddress = virtualFilePointer >>> 16;
+        int offset = (int) (virtualFilePointer & 0xffff);
+        if(! nextBlock()){
+            if(offset == 0)
+                return;
+            throw new EOFException("seek beyond the end of " + name);
+        }
+        if(offset > current.length)
+            throw new IOException("invalid virtual file pointer " + virtualFilePointer + " in " + name);
+        offsetInBlock = offset;
+    }
+
+    @Override
+    public void close() throws IOException{
+        if(pool != null)
+            pool.shutdownNow();
+        pending.clear();
+        window = null;
+        file.close();
+    }
+}
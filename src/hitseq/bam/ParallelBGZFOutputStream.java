@@ -0,0 +1,287 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A BGZF output stream, e.g. of a BAM file, whose blocks are compressed by a
+ * pool of threads. The uncompressed data are cut into blocks in the writing
+ * thread; each full block is deflated by a worker, and a writer thread takes
+ * the compressed blocks in their original order and writes them to the file.
+ * The queue between them is bounded, so that the writing thread waits when
+ * the compression falls behind.
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+    private static final Future<byte[]> END = new ImmediateFuture(null);
+
+    private final String name;
+    private final int compressionLevel;
+    private final ExecutorService pool;
+    private final BlockingQueue<Future<byte[]>> queue;
+    private final OutputStream output;
+    private final Thread writer;
+    private volatile IOException failure = null;
+
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int length = 0;
+    private boolean closed = false;
+
+    private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>(){
+        @Override
+        protected Deflater[] initialValue(){
+            return new Deflater[10];
+        }
+    };
+
+    /**
+     * The future of a block which is compressed in the writing thread.
+     */
+    private static class ImmediateFuture implements Future<byte[]> {
+        private final byte[] block;
+
+        ImmediateFuture(byte[] block){
+            this.block = block;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning){
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled(){
+            return false;
+        }
+
+        @Override
+        public boolean isDone(){
+            return true;
+        }
+
+        @Override
+        public byte[] get(){
+            return block;
+        }
+
+        @Override
+        public byte[] get(long timeout, java.util.concurrent.TimeUnit unit){
+            return block;
+        }
+    }
+
+    /**
+     * Create the stream of a file.
+     * @param file The output file.
+     * @param compressionLevel The deflate level, from 0 (no compression) to 9.
+     * @param numThreads The number of threads to compress the blocks. If 0, the blocks are compressed in the writing thread.
+     * @throws IOException If the file cannot be created.
+     */
+    public ParallelBGZFOutputStream(File file, int compressionLevel, int numThreads) throws IOException{
+        this.name = file.getName();
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        this.output = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+        final String threadName = "deflater of " + name;
+        this.pool = numThreads > 0 ? Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable runnable){
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, numThreads * 4));
+        this.writer = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                writeBlocks();
+            }
+        }, "writer of " + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * FunName: writeBlocks.
+     * Description: The writer thread, which writes the compressed blocks in order until the end mark.
+     * After a failure, the blocks are still taken and dropped until the end mark, so that the writing thread waiting on the full queue is not blocked forever and gets the failure.
+     */
+    private void writeBlocks(){
+        while(true){
+            try{
+                Future<byte[]> block = queue.take();
+                if(block == END)
+                    break;
+                if(failure == null)
+                    output.write(block.get());
+            } catch(InterruptedException e){
+                if(failure == null)
+                    failure = new IOException("interrupted when writing " + name);
+            } catch(ExecutionException e){
+                if(failure == null)
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch(IOException e){
+                if(failure == null)
+                    failure = e;
+            }
+        }
+    }
+
+    /**
+     * FunName: compress.
+     * Description: Compress one block of data into a BGZF block, with the header and the footer.
+     */
+    private static byte[] compress(byte[] data, int length, int compressionLevel){
+        Deflater[] deflaters = DEFLATERS.get();
+        if(deflaters[compressionLevel] == null)
+            deflaters[compressionLevel] = new Deflater(compressionLevel, true);
+        Deflater deflater = deflaters[compressionLevel];
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        int footerLength = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int maxDataLength = compressed.length - headerLength - footerLength;
+        int compressedLength = deflater.deflate(compressed, headerLength, maxDataLength);
+        if(! deflater.finished()){
+            // incompressible data, stored without compression
+            Deflater noCompression = new Deflater(Deflater.NO_COMPRESSION, true);
+            noCompression.setInput(data, 0, length);
+            noCompression.finish();
+            compressedLength = noCompression.deflate(compressed, headerLength, maxDataLength);
+            noCompression.end();
+        }
+        int blockLength = headerLength + compressedLength + footerLength;
+
+        System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, compressed, 0, BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+        writeShort(compressed, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockLength - 1);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeInt(compressed, headerLength + compressedLength, (int) crc.getValue());
+        writeInt(compressed, headerLength + compressedLength + 4, length);
+
+        byte[] block = new byte[blockLength];
+        System.arraycopy(compressed, 0, block, 0, blockLength);
+        return block;
+    }
+
+    private static void writeShort(byte[] bytes, int offset, int value){
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value){
+        writeShort(bytes, offset, value);
+        writeShort(bytes, offset + 2, value >> 16);
+    }
+
+    /**
+     * FunName: submitBlock.
+     * Description: Send the buffered data to be compressed and written as one block.
+     */
+    private void submitBlock() throws IOException{
+        if(length == 0)
+            return;
+        final byte[] data = buffer;
+        final int dataLength = length;
+        Future<byte[]> block;
+        if(pool == null)
+            block = new ImmediateFuture(compress(data, dataLength, compressionLevel));
+        else
+            block = pool.submit(new Callable<byte[]>(){
+                @Override
+                public byte[] call(){
+                    return compress(data, dataLength, compressionLevel);
+                }
+            });
+        enqueue(block);
+        buffer = new byte[BLOCK_SIZE];
+        length = 0;
+    }
+
+    private void enqueue(Future<byte[]> block) throws IOException{
+        if(failure != null && block != END) // the end mark is still sent, to stop the writer thread
+            throw failure;
+        try{
+            queue.put(block);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted when writing " + name);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+        buffer[length++] = (byte) b;
+        if(length == BLOCK_SIZE)
+            submitBlock();
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int numBytes) throws IOException{
+        while(numBytes > 0){
+            int n = Math.min(numBytes, BLOCK_SIZE - length);
+            System.arraycopy(bytes, offset, buffer, length, n);
+            length += n;
+            offset += n;
+            numBytes -= n;
+            if(length == BLOCK_SIZE)
+                submitBlock();
+        }
+    }
+
+    /**
+     * FunName: flush.
+     * Description: End the current block, so that the next data start in a new block. The data are not necessarily written to the file yet.
+     */
+    @Override
+    public void flush() throws IOException{
+        submitBlock();
+    }
+
+    /**
+     * FunName: close.
+     * Description: Write the remaining blocks and the empty block marking the end of a BGZF file, and close the file.
+     */
+    @Override
+    public void close() throws IOException{
+        if(closed)
+            return;
+        closed = true;
+        try{
+            if(failure == null)
+                submitBlock();
+            enqueue(END);
+            writer.join();
+            if(failure != null)
+                throw failure;
+            output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted when writing " + name);
+        } finally{
+            if(pool != null)
+                pool.shutdown();
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.AsyncBlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A reader of the records of a SAM/BAM file into a reusable BAMRecordView.
+ * BAM files are read by BAMRecordDecoder without decoding the records into
+ * SAMRecord objects. Other files, e.g. SAM, are read by htsjdk, and each
+ * record is encoded into the view, so that the counting code has only one
+ * record type to deal with.
+ */
+public abstract class RecordViewReader implements Closeable {
+    
+    public abstract SAMFileHeader getFileHeader();
+    
+    /**
+     * FunName: next.
+     * Description: Read the next record into the view.
+     * @param view The view to reuse.
+     * @return false if there is no more record.
+     * @throws IOException If the file cannot be read.
+     */
+    public abstract boolean next(BAMRecordView view) throws IOException;
+    
+    /**
+     * FunName: open.
+     * Description: Open the file with BAMRecordDecoder if it is a BAM file, or with htsjdk otherwise.
+     * @param file The input file.
+     * @param inflateThreads The number of threads to inflate a BAM file, 0 to inflate it in the reading thread.
+     * @return The reader.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static RecordViewReader open(File file, int inflateThreads) throws IOException{
+        RecordViewReader reader = openBAM(file, inflateThreads);
+        if(reader != null)
+            return reader;
+        SamReader samReader = SamInputs.open(file);
+        return of(samReader, samReader.iterator());
+    }
+    
+    /**
+     * FunName: openBAM.
+     * Description: Open the file with BAMRecordDecoder if it is a BAM file or a BAM stream on the standard input.
+     * @param file The input file.
+     * @param inflateThreads The number of threads to inflate the BAM file.
+     * @return The reader, or null if the input is not BAM.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static BAMRecordDecoder openBAM(File file, int inflateThreads) throws IOException{
+        if(SamInputs.isStandardInput(file)){
+            if(! SamInputs.isBGZFStandardInput())
+                return null;
+            InputStream stream = inflateThreads > 0 ? new AsyncBlockCompressedInputStream(SamInputs.getStandardInput()) : new BlockCompressedInputStream(SamInputs.getStandardInput());
+            return new BAMRecordDecoder(stream, "stdin");
+        }
+        if(BAMRecordDecoder.isBAMFile(file))
+            return new BAMRecordDecoder(file, inflateThreads);
+        return null;
+    }
+    
+    /**
+     * FunName: of.
+     * Description: Read the records of an htsjdk iterator into the view.
+     * @param reader The SamReader of the records, closed together with this reader.
+     * @param iterator The records.
+     * @return The reader.
+     */
+    public static RecordViewReader of(final SamReader reader, final CloseableIterator<SAMRecord> iterator){
+        final BAMRecordCodec codec = new BAMRecordCodec(reader.getFileHeader());
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        codec.setOutputStream(output);
+        final String[] referenceNames = new String[reader.getFileHeader().getSequenceDictionary().size()];
+        for(int i = 0; i < referenceNames.length; i++)
+            referenceNames[i] = reader.getFileHeader().getSequence(i).getSequenceName();
+        
+        return new RecordViewReader(){
+            @Override
+            public SAMFileHeader getFileHeader(){
+                return reader.getFileHeader();
+            }
+            
+            @Override
+            public boolean next(BAMRecordView view) throws IOException{
+                while(iterator.hasNext()){
+                    SAMRecord record;
+                    try{
+                        record = iterator.next();
+                    } catch(SAMFormatException e){
+                        System.err.println("Warning: " + e);
+                        continue;
+                    }
+                    output.reset();
+                    codec.encode(record);
+                    byte[] encoded = output.toByteArray();
+                    int recordLength = encoded.length - 4; // without the block_size
+                    System.arraycopy(encoded, 4, view.getBuffer(recordLength), 0, recordLength);
+                    view.set(recordLength, referenceNames);
+                    return true;
+                }
+                return false;
+            }
+            
+            @Override
+            public void close() throws IOException{
+                iterator.close();
+                reader.close();
+            }
+        };
+    }
+}
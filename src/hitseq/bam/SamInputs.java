@@ -0,0 +1,91 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hitseq.bam;
+
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.cram.ref.ReferenceSource;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The opening of the SAM/BAM/CRAM input files. CRAM files are decoded against
+ * the reference given by setReference, or against the default reference
+ * source of htsjdk (REF_PATH/REF_CACHE) if no reference is given. One
+ * reference source is shared by all the inputs and threads, so that each
+ * reference sequence is loaded once and cached for all the samples, instead
+ * of once per file.
+ *
+ * The path "-" or "/dev/stdin" stands for the standard input, e.g. a pipe
+ * from the aligner, whose format (SAM, BAM or CRAM) is detected from the
+ * stream. It can only be read once.
+ */
+public class SamInputs {
+    private static CRAMReferenceSource referenceSource = null;
+    private static BufferedInputStream standardInput = null;
+
+    private SamInputs(){
+    }
+
+    /**
+     * FunName: setReference.
+     * Description: Set the reference genome used to decode the CRAM inputs.
+     * @param fasta The FASTA file of the reference genome, with its .fai index.
+     */
+    public static synchronized void setReference(File fasta){
+        referenceSource = new ReferenceSource(fasta);
+    }
+
+    /**
+     * FunName: factory.
+     * @return The SamReaderFactory with the shared reference source, if any.
+     */
+    public static synchronized SamReaderFactory factory(){
+        SamReaderFactory factory = SamReaderFactory.makeDefault();
+        if(referenceSource != null)
+            factory.referenceSource(referenceSource);
+        return factory;
+    }
+
+    /**
+     * FunName: isStandardInput.
+     * @return true if the path of the file stands for the standard input.
+     */
+    public static boolean isStandardInput(File file){
+        return file.getPath().equals("-") || file.getPath().equals("/dev/stdin");
+    }
+
+    /**
+     * FunName: getStandardInput.
+     * @return The buffered standard input, which supports mark and reset for the format detection.
+     */
+    static synchronized BufferedInputStream getStandardInput(){
+        if(standardInput == null)
+            standardInput = new BufferedInputStream(System.in, 1 << 20);
+        return standardInput;
+    }
+
+    /**
+     * FunName: isBGZFStandardInput.
+     * @return true if the standard input is BGZF compressed, i.e. a BAM stream.
+     */
+    static boolean isBGZFStandardInput() throws IOException{
+        return BlockCompressedInputStream.isValidFile(getStandardInput());
+    }
+
+    /**
+     * FunName: open.
+     * Description: Open a SAM, BAM or CRAM file, or the standard input.
+     */
+    public static SamReader open(File file){
+        if(isStandardInput(file))
+            return factory().open(SamInputResource.of(getStandardInput()));
+        return factory().open(file);
+    }
+}
@@ -12,6 +12,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.*;
 
 /**
@@ -128,10 +129,9 @@ public class CommandRunner extends Thread{
         for(File mappingFile : parameters.getMappingFiles()){
             if(this.isInterrupted())
                 break;
-            annotation.resetPointer();
             ReadCounter counter = new ReadCounter(mappingFile, annotation, strandSpecific, 0, false);
             counter.estimateCounts(considerNH, onlyUnique, readCollapse, stepLength, false);
-            HashMap<String, Double> count = counter.getCounts();
+            Map<String, Double> count = counter.getCounts();
             
             for (String gene : count.keySet()) {
                 readCount.get(gene).put(mappingFile.getAbsolutePath(), count.get(gene));